@@ -0,0 +1,144 @@
+package com.example.android.shushme.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Measures place lookups by the geofence receiver while the UI writes places, with the UI's
+ * single-row updates racing its inserts, which take the statement and connection locks on two
+ * different paths. Read latencies and write throughput are logged under the
+ * PlaceConcurrencyBenchmark tag; a deadlock fails the test instead of hanging it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaceConcurrencyBenchmark extends PlaceProviderTestCase {
+
+    private static final String TAG = PlaceConcurrencyBenchmark.class.getSimpleName();
+    private static final int PLACES = 1000;
+    private static final int READERS = 4;
+    private static final long DURATION_MILLIS = 5000;
+
+    @Test
+    public void receiverReadsDuringUiWrites() throws Exception {
+        ContentValues[] places = new ContentValues[PLACES];
+        for (int i = 0; i < PLACES; i++) places[i] = place(i);
+        getMockContentResolver().bulkInsert(PlaceEntry.CONTENT_URI, places);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long[][] readNanos = new long[READERS][];
+        final int[] readCounts = new int[READERS];
+        final int[] writeCounts = new int[2];
+        List<Thread> threads = new ArrayList<>();
+
+        for (int reader = 0; reader < READERS; reader++) {
+            final int index = reader;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(index);
+                    long[] nanos = new long[1 << 19];
+                    int count = 0;
+                    try {
+                        while (!stop.get() && count < nanos.length) {
+                            long start = System.nanoTime();
+                            readPlace("place" + random.nextInt(PLACES));
+                            nanos[count++] = System.nanoTime() - start;
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                    readNanos[index] = nanos;
+                    readCounts[index] = count;
+                }
+            }));
+        }
+        // One writer renames places one at a time, the other re-adds them through upserts
+        for (int writer = 0; writer < 2; writer++) {
+            final boolean updates = writer == 0;
+            final int index = writer;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(100 + index);
+                    try {
+                        while (!stop.get()) {
+                            int place = random.nextInt(PLACES);
+                            if (updates) {
+                                ContentValues values = new ContentValues();
+                                values.put(PlaceEntry.COLUMN_PLACE_NAME, "Renamed " + place);
+                                getMockContentResolver().update(
+                                        PlaceEntry.buildPlaceIdUri("place" + place), values,
+                                        null, null);
+                            } else {
+                                getMockContentResolver().insert(PlaceEntry.CONTENT_URI,
+                                        place(place));
+                            }
+                            writeCounts[index]++;
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) thread.start();
+        Thread.sleep(DURATION_MILLIS);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse("Deadlocked", thread.isAlive());
+        }
+        assertNull(failure.get());
+
+        int reads = 0;
+        for (int count : readCounts) reads += count;
+        long[] all = new long[reads];
+        int offset = 0;
+        for (int reader = 0; reader < READERS; reader++) {
+            System.arraycopy(readNanos[reader], 0, all, offset, readCounts[reader]);
+            offset += readCounts[reader];
+        }
+        Arrays.sort(all);
+        Log.i(TAG, String.format("%d readers: %d reads/s, median %d us, p99 %d us, max %d us",
+                READERS, reads * 1000L / DURATION_MILLIS, percentile(all, 50) / 1000,
+                percentile(all, 99) / 1000, all[all.length - 1] / 1000));
+        Log.i(TAG, String.format("Writers: %d updates/s, %d upserts/s",
+                writeCounts[0] * 1000L / DURATION_MILLIS,
+                writeCounts[1] * 1000L / DURATION_MILLIS));
+        assertEquals(PLACES, countPlaces());
+    }
+
+    private void readPlace(String placeId) {
+        Cursor cursor = getMockContentResolver().query(PlaceEntry.buildPlaceIdUri(placeId),
+                new String[]{PlaceEntry.COLUMN_PLACE_LATITUDE, PlaceEntry.COLUMN_PLACE_LONGITUDE},
+                null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
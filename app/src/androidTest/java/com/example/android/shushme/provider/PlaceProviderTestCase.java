@@ -0,0 +1,64 @@
+package com.example.android.shushme.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.test.ProviderTestCase2;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * Runs against a fresh PlaceContentProvider with its own empty database, reached through a
+ * mock resolver, so the app's own places are never touched
+ */
+public abstract class PlaceProviderTestCase extends ProviderTestCase2<PlaceContentProvider> {
+
+    public PlaceProviderTestCase() {
+        super(PlaceContentProvider.class, PlaceContract.AUTHORITY);
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        // The provider's files are prefixed with "test.", and may be left over from a last run
+        context.deleteDatabase("test." + PlaceDbHelper.DATABASE_NAME);
+        setContext(context);
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    /**
+     * @return the columns of a place, unique by its index
+     */
+    static ContentValues place(int index) {
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_ID, "place" + index);
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, "Place " + index);
+        values.put(PlaceEntry.COLUMN_PLACE_LATITUDE, 40.75 + (index % 1000) * 0.0001);
+        values.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, -73.99 + (index / 1000) * 0.0001);
+        return values;
+    }
+
+    /**
+     * @return the number of places a UI query sees
+     */
+    int countPlaces() {
+        Cursor cursor = getMockContentResolver().query(PlaceEntry.CONTENT_URI,
+                new String[]{PlaceEntry._ID}, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.android.shushme.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks through the provider which lookups the query cache answers, and that every kind of
+ * write evicts what it made stale
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaceQueryCacheTest extends PlaceProviderTestCase {
+
+    private static final Uri PLACE0_URI = PlaceEntry.buildPlaceIdUri("place0");
+
+    @Test
+    public void rowLookupMissesThenHits() {
+        getMockContentResolver().insert(PlaceEntry.CONTENT_URI, place(0));
+        Bundle before = stats();
+        assertEquals("Place 0", queryName(PLACE0_URI));
+        assertCounts(before, 0, 1);
+        assertEquals("Place 0", queryName(PLACE0_URI));
+        assertCounts(before, 1, 1);
+    }
+
+    @Test
+    public void rowLookupsByIdAndPlaceIdShareTheCachedRow() {
+        Uri uri = getMockContentResolver().insert(PlaceEntry.CONTENT_URI, place(0));
+        Bundle before = stats();
+        queryName(uri);
+        assertEquals("Place 0", queryName(PLACE0_URI));
+        assertCounts(before, 1, 1);
+    }
+
+    @Test
+    public void directoryQueryMissesThenHits() {
+        insertPlaces(10);
+        Bundle before = stats();
+        assertEquals(10, countPlaces());
+        assertEquals(10, countPlaces());
+        assertCounts(before, 1, 1);
+    }
+
+    @Test
+    public void largeDirectoryResultIsNotCached() {
+        insertPlaces(300);
+        Bundle before = stats();
+        assertEquals(300, countPlaces());
+        assertEquals(300, countPlaces());
+        assertCounts(before, 0, 2);
+    }
+
+    @Test
+    public void updateEvictsTheRowAndDirectoryResults() {
+        insertPlaces(10);
+        queryName(PLACE0_URI);
+        countPlaces();
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, "Renamed");
+        assertEquals(1, getMockContentResolver().update(PLACE0_URI, values, null, null));
+
+        Bundle before = stats();
+        assertEquals("Renamed", queryName(PLACE0_URI));
+        assertEquals(10, countPlaces());
+        assertCounts(before, 0, 2);
+    }
+
+    @Test
+    public void updateKeepsOtherRows() {
+        insertPlaces(2);
+        Uri place1Uri = PlaceEntry.buildPlaceIdUri("place1");
+        queryName(PLACE0_URI);
+        queryName(place1Uri);
+        ContentValues values = new ContentValues();
+        values.put(PlaceEntry.COLUMN_PLACE_NAME, "Renamed");
+        getMockContentResolver().update(PLACE0_URI, values, null, null);
+
+        Bundle before = stats();
+        assertEquals("Place 1", queryName(place1Uri));
+        assertCounts(before, 1, 0);
+    }
+
+    @Test
+    public void deleteEvictsTheRow() {
+        insertPlaces(2);
+        queryName(PLACE0_URI);
+        countPlaces();
+        assertEquals(1, getMockContentResolver().delete(PLACE0_URI, null, null));
+        assertNull(queryName(PLACE0_URI));
+        assertEquals(1, countPlaces());
+    }
+
+    @Test
+    public void bulkInsertEvictsEverything() {
+        insertPlaces(2);
+        queryName(PLACE0_URI);
+        countPlaces();
+        ContentValues renamed = place(0);
+        renamed.put(PlaceEntry.COLUMN_PLACE_NAME, "Renamed");
+        getMockContentResolver().bulkInsert(PlaceEntry.CONTENT_URI,
+                new ContentValues[]{renamed, place(2)});
+
+        Bundle before = stats();
+        assertEquals("Renamed", queryName(PLACE0_URI));
+        assertEquals(3, countPlaces());
+        assertCounts(before, 0, 2);
+    }
+
+    @Test
+    public void applyBatchEvictsWhatItWrote() throws Exception {
+        insertPlaces(2);
+        queryName(PLACE0_URI);
+        countPlaces();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(PLACE0_URI)
+                .withValue(PlaceEntry.COLUMN_PLACE_NAME, "Renamed")
+                .build());
+        operations.add(ContentProviderOperation.newInsert(PlaceEntry.CONTENT_URI)
+                .withValues(place(2))
+                .build());
+        getMockContentResolver().applyBatch(PlaceContract.AUTHORITY, operations);
+
+        assertEquals("Renamed", queryName(PLACE0_URI));
+        assertEquals(3, countPlaces());
+    }
+
+    @Test
+    public void computedProjectionGoesToTheDatabase() {
+        getMockContentResolver().insert(PlaceEntry.CONTENT_URI, place(0));
+        queryName(PLACE0_URI);
+        Bundle before = stats();
+        Cursor cursor = getMockContentResolver().query(PLACE0_URI,
+                new String[]{"COUNT(*)", PlaceEntry.COLUMN_PLACE_NAME + " AS title"}, null, null,
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1, cursor.getInt(0));
+            assertEquals("Place 0", cursor.getString(cursor.getColumnIndexOrThrow("title")));
+        } finally {
+            cursor.close();
+        }
+        assertCounts(before, 0, 0);
+    }
+
+    private void insertPlaces(int count) {
+        ContentValues[] places = new ContentValues[count];
+        for (int i = 0; i < count; i++) places[i] = place(i);
+        getMockContentResolver().bulkInsert(PlaceEntry.CONTENT_URI, places);
+    }
+
+    /**
+     * @return the name of the place at a URI, or null if there is none
+     */
+    private String queryName(Uri uri) {
+        Cursor cursor = getMockContentResolver().query(uri,
+                new String[]{PlaceEntry.COLUMN_PLACE_NAME}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Bundle stats() {
+        return getMockContentResolver().call(PlaceEntry.CONTENT_URI,
+                PlaceContract.METHOD_GET_CACHE_STATS, null, null);
+    }
+
+    /**
+     * Asserts the hits and misses counted since a snapshot of the stats
+     */
+    private void assertCounts(Bundle before, int hits, int misses) {
+        Bundle after = stats();
+        assertEquals(hits, after.getInt(PlaceContract.KEY_CACHE_HITS) -
+                before.getInt(PlaceContract.KEY_CACHE_HITS));
+        assertEquals(misses, after.getInt(PlaceContract.KEY_CACHE_MISSES) -
+                before.getInt(PlaceContract.KEY_CACHE_MISSES));
+    }
+}
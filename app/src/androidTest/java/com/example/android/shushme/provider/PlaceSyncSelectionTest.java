@@ -0,0 +1,136 @@
+package com.example.android.shushme.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the conditions the sync service puts on its writes to single places hold, so a
+ * place edited, deleted or added again during an exchange is not marked as synced
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaceSyncSelectionTest extends PlaceProviderTestCase {
+
+    private static final Uri PLACE0_SYNC_URI =
+            PlaceContract.asSyncCaller(PlaceEntry.buildPlaceIdUri("place0"));
+    private static final String SYNCED_ROW = PlaceEntry.COLUMN_DIRTY + " = ? AND " +
+            PlaceEntry.COLUMN_DELETED + " = 0";
+    private static final String SYNCED_TOMBSTONE = PlaceEntry.COLUMN_DIRTY + " = ? AND " +
+            PlaceEntry.COLUMN_DELETED + " = 1";
+
+    @Test
+    public void syncedMarkNeedsTheSentChange() {
+        insertSynced(3);
+        long sent = queryDirty();
+        assertEquals(0, markSynced(sent - 1));
+        assertEquals(sent, queryDirty());
+        assertEquals(1, markSynced(sent));
+        assertEquals(0, queryDirty());
+    }
+
+    @Test
+    public void syncedMarkSkipsAPlaceEditedMeanwhile() {
+        insertSynced(3);
+        long sent = queryDirty();
+        // Edited after the sync service read it, while the exchange is under way
+        ContentValues radius = new ContentValues();
+        radius.put(PlaceEntry.COLUMN_RADIUS, 120);
+        getMockContentResolver().update(PlaceEntry.buildPlaceIdUri("place0"), radius, null,
+                null);
+        long edited = queryDirty();
+        assertTrue(edited > sent);
+
+        assertEquals(0, markSynced(sent));
+        assertEquals(edited, queryDirty());
+        // The edit goes up with the next exchange
+        assertEquals(1, markSynced(edited));
+        assertEquals(0, queryDirty());
+    }
+
+    @Test
+    public void localChangesKeepGrowingAfterASync() {
+        insertSynced(3);
+        long sent = queryDirty();
+        markSynced(sent);
+        ContentValues radius = new ContentValues();
+        radius.put(PlaceEntry.COLUMN_RADIUS, 120);
+        getMockContentResolver().update(PlaceEntry.buildPlaceIdUri("place0"), radius, null,
+                null);
+        assertTrue(queryDirty() > sent);
+    }
+
+    @Test
+    public void syncedMarkSkipsAPlaceDeletedMeanwhile() {
+        insertSynced(3);
+        long sent = queryDirty();
+        getMockContentResolver().delete(PlaceEntry.buildPlaceIdUri("place0"), null, null);
+        assertEquals(0, markSynced(sent));
+        assertTrue(queryDirty() > sent);
+    }
+
+    @Test
+    public void tombstoneRemovalSkipsAPlaceAddedAgain() {
+        insertSynced(3);
+        getMockContentResolver().delete(PlaceEntry.buildPlaceIdUri("place0"), null, null);
+        long sent = queryDirty();
+        assertEquals(0, countPlaces());
+        getMockContentResolver().insert(PlaceEntry.CONTENT_URI, place(0));
+
+        assertEquals(0, getMockContentResolver().delete(PLACE0_SYNC_URI, SYNCED_TOMBSTONE,
+                new String[]{String.valueOf(sent)}));
+        assertEquals(1, countPlaces());
+    }
+
+    /**
+     * Clears the dirty mark of place 0 as the sync service does once the server has it
+     *
+     * @param sent the local change the service read and sent
+     * @return the number of rows marked as synced
+     */
+    private int markSynced(long sent) {
+        ContentValues synced = new ContentValues();
+        synced.put(PlaceEntry.COLUMN_DIRTY, 0);
+        return getMockContentResolver().update(PLACE0_SYNC_URI, synced, SYNCED_ROW,
+                new String[]{String.valueOf(sent)});
+    }
+
+    /**
+     * Inserts place 0 as the sync service would receive it, then changes it locally
+     */
+    private void insertSynced(int version) {
+        ContentValues values = place(0);
+        values.put(PlaceEntry.COLUMN_VERSION, version);
+        getMockContentResolver().insert(PlaceContract.asSyncCaller(PlaceEntry.CONTENT_URI),
+                values);
+        ContentValues scheduled = new ContentValues();
+        scheduled.put(PlaceEntry.COLUMN_SCHEDULE, "MON-FRI 09:00-17:00");
+        getMockContentResolver().update(PlaceEntry.buildPlaceIdUri("place0"), scheduled, null,
+                null);
+    }
+
+    /**
+     * @return the latest local change of place 0, or 0 if it is synced, read through the
+     * directory so tombstones are seen
+     */
+    private long queryDirty() {
+        Cursor cursor = getMockContentResolver().query(
+                PlaceContract.asSyncCaller(PlaceEntry.CONTENT_URI),
+                new String[]{PlaceEntry.COLUMN_DIRTY}, PlaceEntry.COLUMN_PLACE_ID + " = ?",
+                new String[]{"place0"}, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.shushme.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures how many places per second reach the database through the provider, one insert at
+ * a time against one bulkInsert or applyBatch transaction, at 1k, 10k and 100k places. The
+ * results are logged under the PlaceWriteBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaceWriteBenchmark extends PlaceProviderTestCase {
+
+    private static final String TAG = PlaceWriteBenchmark.class.getSimpleName();
+
+    @Test
+    public void singleInserts1k() {
+        ContentValues[] places = places(1000);
+        long start = SystemClock.elapsedRealtime();
+        for (ContentValues place : places) {
+            getMockContentResolver().insert(PlaceEntry.CONTENT_URI, place);
+        }
+        report("insert", places.length, start);
+    }
+
+    @Test
+    public void bulkInsert1k() {
+        bulkInsert(1000);
+    }
+
+    @Test
+    public void bulkInsert10k() {
+        bulkInsert(10000);
+    }
+
+    @Test
+    public void bulkInsert100k() {
+        bulkInsert(100000);
+    }
+
+    @Test
+    public void applyBatch1k() throws Exception {
+        applyBatch(1000);
+    }
+
+    @Test
+    public void applyBatch10k() throws Exception {
+        applyBatch(10000);
+    }
+
+    @Test
+    public void applyBatch100k() throws Exception {
+        applyBatch(100000);
+    }
+
+    /**
+     * Bulk inserts new places, then the same places again, which updates them in place
+     */
+    private void bulkInsert(int count) {
+        ContentValues[] places = places(count);
+        long start = SystemClock.elapsedRealtime();
+        assertEquals(count, getMockContentResolver().bulkInsert(PlaceEntry.CONTENT_URI, places));
+        report("bulkInsert", count, start);
+
+        start = SystemClock.elapsedRealtime();
+        assertEquals(count, getMockContentResolver().bulkInsert(PlaceEntry.CONTENT_URI, places));
+        report("bulkInsert over existing places", count, start);
+    }
+
+    private void applyBatch(int count) throws Exception {
+        ContentValues[] places = places(count);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(count);
+        for (ContentValues place : places) {
+            operations.add(ContentProviderOperation.newInsert(PlaceEntry.CONTENT_URI)
+                    .withValues(place)
+                    .build());
+        }
+        long start = SystemClock.elapsedRealtime();
+        assertEquals(count, getMockContentResolver().applyBatch(PlaceContract.AUTHORITY,
+                operations).length);
+        report("applyBatch", count, start);
+    }
+
+    private ContentValues[] places(int count) {
+        ContentValues[] places = new ContentValues[count];
+        for (int i = 0; i < count; i++) places[i] = place(i);
+        return places;
+    }
+
+    private void report(String operation, int count, long start) {
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(TAG, String.format("%s of %d places: %d ms, %d places/s", operation, count,
+                elapsed, count * 1000L / elapsed));
+        assertEquals(count, countPlaces());
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.android.shushme;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Re-registers the geofences after a reboot, which clears every geofence registered with
+ * Play Services. The zones the device was inside are kept: the re-registered fences report an
+ * ENTER for each one the device is still inside, and the ones not reported again in time are
+ * exited then, so rebooting inside a zone neither restores nor notifies.
+ */
+public class BootReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) return;
+        GeofenceRegistry registry = new GeofenceRegistry(context);
+        GeofenceBroadcastReceiver.onRestart(context, registry);
+        // None of the recorded geofences survived the reboot
+        registry.clear();
+        GeofenceSyncService.startRenewal(context);
+    }
+}
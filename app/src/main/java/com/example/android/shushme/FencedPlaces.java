@@ -0,0 +1,143 @@
+package com.example.android.shushme;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The places to fence at a given time, and the settings of each fence, resolved from a
+ * {@link PlaceSnapshot} for both the Play Services geofences and the local fallback so that the
+ * two always fence the same places the same way.
+ * <p>
+ * Places outside their quiet schedule are left out, and so are places with neither coordinates
+ * nor an outline. A polygon-shaped place is fenced by its enclosing circle, and its entries
+ * are confirmed against the polygon itself. Settings a place doesn't set default to values
+ * derived from its size.
+ * <p>
+ * Pure Java so it can be unit-tested on a plain JVM.
+ */
+public class FencedPlaces {
+
+    // The only columns of the places table that decide the fences
+    public static final String[] PROJECTION = {
+            PlaceEntry.COLUMN_PLACE_ID,
+            PlaceEntry.COLUMN_PLACE_LATITUDE,
+            PlaceEntry.COLUMN_PLACE_LONGITUDE,
+            PlaceEntry.COLUMN_VIEWPORT_RADIUS,
+            PlaceEntry.COLUMN_RADIUS,
+            PlaceEntry.COLUMN_LOITERING_DELAY,
+            PlaceEntry.COLUMN_RESPONSIVENESS,
+            PlaceEntry.COLUMN_POLYGON,
+            PlaceEntry.COLUMN_SCHEDULE
+    };
+    // Largest fence that places within reach of each other are merged into
+    public static final float MAX_MERGED_RADIUS = 250; // 250 meters
+
+    public final String[] placeIds;
+    public final double[] lats;
+    public final double[] lngs;
+    public final float[] radii;
+    // Whether each place is a polygon fenced by its enclosing circle
+    public final boolean[] isPolygon;
+    public final int[] loiteringDelays;
+    public final int[] responsiveness;
+    // The polygon of every fenced polygon-shaped place, by place ID
+    public final Map<String, PlacePolygon> polygons;
+    // When a quiet schedule next turns on or off and the places have to be resolved again,
+    // or Long.MAX_VALUE
+    public final long nextScheduleBoundary;
+
+    private FencedPlaces(String[] placeIds, double[] lats, double[] lngs, float[] radii,
+                         boolean[] isPolygon, int[] loiteringDelays, int[] responsiveness,
+                         Map<String, PlacePolygon> polygons, long nextScheduleBoundary) {
+        this.placeIds = placeIds;
+        this.lats = lats;
+        this.lngs = lngs;
+        this.radii = radii;
+        this.isPolygon = isPolygon;
+        this.loiteringDelays = loiteringDelays;
+        this.responsiveness = responsiveness;
+        this.polygons = polygons;
+        this.nextScheduleBoundary = nextScheduleBoundary;
+    }
+
+    /**
+     * Every place has to be looked at: the nearest ones are chosen by their true distance, and
+     * any schedule may be the next to turn on or off
+     *
+     * @param places the places, with at least the columns of {@link #PROJECTION}
+     * @param now    the current local time, which decides the active schedules
+     * @return the places to fence now
+     */
+    public static FencedPlaces resolve(PlaceSnapshot places, Calendar now) {
+        long nextScheduleBoundary = Long.MAX_VALUE;
+        Map<String, PlacePolygon> polygons = new HashMap<>();
+        String[] placeIds = new String[places.size()];
+        double[] lats = new double[places.size()];
+        double[] lngs = new double[places.size()];
+        float[] radii = new float[places.size()];
+        boolean[] isPolygon = new boolean[places.size()];
+        int[] loiteringDelays = new int[places.size()];
+        int[] responsiveness = new int[places.size()];
+        int count = 0;
+        for (int i = 0; i < places.size(); i++) {
+            // Places outside their quiet schedule are not fenced until it turns on
+            QuietSchedule schedule = QuietSchedule.parse(places.getSchedule(i));
+            if (schedule != null) {
+                nextScheduleBoundary = Math.min(nextScheduleBoundary,
+                        schedule.getNextBoundary(now));
+                if (!schedule.isActive(now)) continue;
+            }
+            PlacePolygon polygon = PlacePolygon.parse(places.getPolygon(i));
+            // Places whose details were never fetched have no coordinates to fence yet,
+            // unless their outline is known
+            if (polygon == null && !places.hasLocation(i)) continue;
+            placeIds[count] = places.getPlaceId(i);
+            if (polygon != null) {
+                polygons.put(placeIds[count], polygon);
+                lats[count] = polygon.getCenterLatitude();
+                lngs[count] = polygon.getCenterLongitude();
+                radii[count] = polygon.getRadius();
+                isPolygon[count] = true;
+            } else {
+                lats[count] = places.getLatitude(i);
+                lngs[count] = places.getLongitude(i);
+                radii[count] = GeofenceSettings.getRadius(places.getRadius(i),
+                        places.getViewportRadius(i));
+            }
+            loiteringDelays[count] =
+                    GeofenceSettings.getLoiteringDelay(places.getLoiteringDelay(i), radii[count]);
+            responsiveness[count] =
+                    GeofenceSettings.getResponsiveness(places.getResponsiveness(i), radii[count]);
+            count++;
+        }
+        return new FencedPlaces(Arrays.copyOf(placeIds, count), Arrays.copyOf(lats, count),
+                Arrays.copyOf(lngs, count), Arrays.copyOf(radii, count),
+                Arrays.copyOf(isPolygon, count), Arrays.copyOf(loiteringDelays, count),
+                Arrays.copyOf(responsiveness, count), polygons, nextScheduleBoundary);
+    }
+
+    public int size() {
+        return placeIds.length;
+    }
+
+    /**
+     * @return a planner choosing the Play Services geofences of these places, or null if there
+     * are none
+     */
+    public GeofencePlanner newPlanner() {
+        if (size() == 0) return null;
+        return new GeofencePlanner(placeIds, lats, lngs, radii, isPolygon, loiteringDelays,
+                responsiveness, MAX_MERGED_RADIUS);
+    }
+
+    /**
+     * @return an engine tracking these places from location fixes, one fence per place
+     */
+    public LocalGeofenceEngine newEngine() {
+        return new LocalGeofenceEngine(placeIds, lats, lngs, radii, loiteringDelays);
+    }
+}
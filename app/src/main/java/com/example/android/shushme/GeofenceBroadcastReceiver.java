@@ -1,65 +1,463 @@
 package com.example.android.shushme;
 
+import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.location.Location;
+import android.location.LocationManager;
 import android.media.AudioManager;
+import android.os.SystemClock;
 import android.support.v4.app.TaskStackBuilder;
 import android.support.v7.app.NotificationCompat;
 import android.util.Log;
 
+import com.example.android.shushme.provider.PlaceContract.TransitionEntry;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingEvent;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class GeofenceBroadcastReceiver extends BroadcastReceiver {
 
     public static final String TAG = GeofenceBroadcastReceiver.class.getSimpleName();
 
+    // A single worker keeps events off the main thread and applies them in arrival order,
+    // so the ringer state needs no further locking
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    // Start time of transitions that did not come from a broadcast, which are not timed
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    // Location fixes re-checking pending polygon entries, requested while there are any
+    private static final String ACTION_RECHECK_ENTRIES =
+            "com.example.android.shushme.action.RECHECK_ENTRIES";
+    static final long RECHECK_MIN_TIME_MILLIS = 30 * 1000; // 30 seconds
+    private static final float RECHECK_MIN_DISTANCE_METERS = 10;
+    // Alarm exiting the zones kept across a reboot that no geofence reported again
+    private static final String ACTION_CONFIRM_RESTART =
+            "com.example.android.shushme.action.CONFIRM_RESTART";
+    // Time for the geofences to be registered again after a reboot, on top of their own delays
+    private static final long RESTART_REGISTER_MARGIN = 2 * 60 * 1000; // 2 minutes
+
+    // Notification resources, built once on the worker and reused for every event
+    private static Bitmap sSilentLargeIcon;
+    private static Bitmap sNormalLargeIcon;
+    private static boolean sLargeIconsDecoded;
+    private static PendingIntent sNotificationPendingIntent;
+
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(Context context, final Intent intent) {
+        final long receivedAt = Metrics.start();
+        final Context appContext = context.getApplicationContext();
+        final boolean recheck = ACTION_RECHECK_ENTRIES.equals(intent.getAction());
+        final boolean confirmRestart = ACTION_CONFIRM_RESTART.equals(intent.getAction());
+        final Location location = recheck ?
+                (Location) intent.getParcelableExtra(LocationManager.KEY_LOCATION_CHANGED) : null;
+        if (recheck && location == null) return;
+        final PendingResult pendingResult = goAsync();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (confirmRestart) {
+                        applyTransition(appContext, Geofence.GEOFENCE_TRANSITION_EXIT,
+                                RingerStateStore.load(appContext).getUnconfirmedIds(), null,
+                                NOT_TIMED);
+                    } else if (recheck) {
+                        recheckPendingEntries(appContext, location);
+                    } else {
+                        handleGeofencingEvent(appContext, intent, receivedAt);
+                    }
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies geofence transitions that did not come from a broadcast, e.g. fences that were
+     * unregistered while the device was inside them
+     *
+     * @param context    the context
+     * @param transition Geofence.GEOFENCE_TRANSITION_ENTER or GEOFENCE_TRANSITION_EXIT
+     * @param requestIds the request IDs of the geofences
+     */
+    static void onTransition(Context context, int transition, Collection<String> requestIds) {
+        onTransition(context, transition, requestIds, null);
+    }
+
+    /**
+     * Applies geofence transitions that did not come from a broadcast, for geofences that may
+     * no longer be in the registry by the time the transitions are logged
+     *
+     * @param context    the context
+     * @param transition Geofence.GEOFENCE_TRANSITION_ENTER or GEOFENCE_TRANSITION_EXIT
+     * @param requestIds the request IDs of the geofences
+     * @param placeIds   the places of each geofence, by request ID, read from the registry
+     *                   before the geofences were removed from it; null to read it when logging
+     */
+    static void onTransition(Context context, final int transition,
+                             final Collection<String> requestIds,
+                             final Map<String, String[]> placeIds) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                applyTransition(appContext, transition, requestIds, placeIds, NOT_TIMED);
+            }
+        });
+    }
+
+    /**
+     * Keeps the zones the device was in across a reboot, which cleared every geofence, rather
+     * than exiting them: the re-registered geofences report an ENTER for each one the device is
+     * still in, which changes nothing. The zones none of them reported again by the time the
+     * slowest geofence would have are exited then.
+     *
+     * @param context  the context
+     * @param registry the geofences registered before the reboot, not cleared yet
+     */
+    static void onRestart(Context context, GeofenceRegistry registry) {
+        final Context appContext = context.getApplicationContext();
+        final long confirmDelay = registry.getLongestTriggerDelay(registry.getRegisteredIds()) +
+                RESTART_REGISTER_MARGIN;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RingerStateMachine state = RingerStateStore.load(appContext);
+                state.onRestart();
+                if (state.getUnconfirmedIds().isEmpty()) return;
+                RingerStateStore.save(appContext, state);
+                AlarmManager alarmManager =
+                        (AlarmManager) appContext.getSystemService(Context.ALARM_SERVICE);
+                Intent intent = new Intent(appContext, GeofenceBroadcastReceiver.class)
+                        .setAction(ACTION_CONFIRM_RESTART);
+                alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                        SystemClock.elapsedRealtime() + confirmDelay,
+                        PendingIntent.getBroadcast(appContext, 0, intent,
+                                PendingIntent.FLAG_UPDATE_CURRENT));
+            }
+        });
+    }
+
+    /**
+     * Applies the removal of geofences the device may be inside, or the end of their tracking,
+     * e.g. when the local fallback takes over from Play Services. A removed geofence whose
+     * places are covered by a replacement the device is inside hands its occupancy over to it;
+     * any other is exited, since no EXIT will ever arrive for a fence that no longer exists.
+     *
+     * @param context      the context
+     * @param requestIds   the request IDs of the removed geofences
+     * @param placeIds     the places of each removed geofence, by request ID
+     * @param replacements the request IDs of the geofences taking over, by removed request ID
+     */
+    static void onGeofencesRemoved(Context context, final Collection<String> requestIds,
+                                   final Map<String, String[]> placeIds,
+                                   final Map<String, List<String>> replacements) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!replacements.isEmpty()) {
+                    RingerStateMachine state = RingerStateStore.load(appContext);
+                    state.onReplace(replacements);
+                    RingerStateStore.save(appContext, state);
+                }
+                applyTransition(appContext, Geofence.GEOFENCE_TRANSITION_EXIT, requestIds,
+                        placeIds, NOT_TIMED);
+            }
+        });
+    }
+
+    /**
+     * Hands the zones the local fallback tracked by place over to the registered geofences
+     * covering those places, once it stops, and exits the ones no registered geofence covers
+     * since nothing will ever report leaving them. The registry is read on the worker, so a
+     * geofence removed meanwhile is either already gone or handed over before its removal is
+     * applied.
+     *
+     * @param context the context
+     */
+    static void onLocalTrackingStopped(Context context) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                GeofenceRegistry registry = new GeofenceRegistry(appContext);
+                Set<String> registeredIds = registry.getRegisteredIds();
+                RingerStateMachine state = RingerStateStore.load(appContext);
+                Set<String> localIds = state.getOccupiedIds();
+                localIds.removeAll(registeredIds);
+                if (localIds.isEmpty()) return;
+                Map<String, List<String>> replacements = new HashMap<>();
+                for (Map.Entry<String, String[]> fence :
+                        registry.getPlaceIds(registeredIds).entrySet()) {
+                    for (String placeId : fence.getValue()) {
+                        if (!localIds.contains(placeId)) continue;
+                        List<String> covering = replacements.get(placeId);
+                        if (covering == null) {
+                            covering = new ArrayList<>();
+                            replacements.put(placeId, covering);
+                        }
+                        covering.add(fence.getKey());
+                    }
+                }
+                state.onReplace(replacements);
+                RingerStateStore.save(appContext, state);
+                applyTransition(appContext, Geofence.GEOFENCE_TRANSITION_EXIT, localIds, null,
+                        NOT_TIMED);
+            }
+        });
+    }
+
+    private static void handleGeofencingEvent(Context context, Intent intent, long receivedAt) {
+        Metrics.increment(Metrics.COUNTER_GEOFENCE_EVENTS);
         GeofencingEvent geofencingEvent = GeofencingEvent.fromIntent(intent);
         if (geofencingEvent.hasError()) {
+            Metrics.increment(Metrics.COUNTER_GEOFENCE_ERRORS);
             Log.e(TAG, String.format("Error code : %d", geofencingEvent.getErrorCode()));
             return;
         }
 
+        // Leaving the re-plan boundary means a different set of places is now the nearest
+        List<String> requestIds = new ArrayList<>();
+        for (Geofence geofence : geofencingEvent.getTriggeringGeofences()) {
+            if (GeofencePlanner.REPLAN_FENCE_ID.equals(geofence.getRequestId())) {
+                GeofenceSyncService.startReplan(context);
+            } else {
+                requestIds.add(geofence.getRequestId());
+            }
+        }
+        if (requestIds.isEmpty()) return;
+
         int geofenceTransition = geofencingEvent.getGeofenceTransition();
-        if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_ENTER) {
-            setRingerMode(context, AudioManager.RINGER_MODE_SILENT);
-        } else if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_EXIT) {
-            setRingerMode(context, AudioManager.RINGER_MODE_NORMAL);
-        } else {
+        // Places with a loitering delay report DWELL instead of ENTER
+        if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_DWELL) {
+            geofenceTransition = Geofence.GEOFENCE_TRANSITION_ENTER;
+        }
+        if (geofenceTransition != Geofence.GEOFENCE_TRANSITION_ENTER &&
+                geofenceTransition != Geofence.GEOFENCE_TRANSITION_EXIT) {
             Log.e(TAG, String.format("Unknown transition : %d", geofenceTransition));
             return;
         }
-        sendNotification(context, geofenceTransition);
+        Location location = geofencingEvent.getTriggeringLocation();
+        if (geofenceTransition == Geofence.GEOFENCE_TRANSITION_ENTER && location != null) {
+            enter(context, requestIds, location, receivedAt);
+        } else {
+            applyTransition(context, geofenceTransition, requestIds, null, receivedAt);
+        }
     }
 
-    private void sendNotification(Context context, int transitionType) {
-        Intent notificationIntent = new Intent(context, MainActivity.class);
-        TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
-        stackBuilder.addParentStack(MainActivity.class);
-        stackBuilder.addNextIntent(notificationIntent);
-        PendingIntent notificationPendingIntent =
-                stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+    /**
+     * Applies entries reported by the local fallback, confirmed against the fix that reported
+     * them like the entries reported by Play Services
+     *
+     * @param context    the context
+     * @param requestIds the request IDs of the entered geofences
+     * @param location   the fix that entered them
+     */
+    static void onLocalEntries(Context context, final List<String> requestIds,
+                               final Location location) {
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                enter(appContext, requestIds, location, NOT_TIMED);
+            }
+        });
+    }
+
+    /**
+     * Applies entries, confirming those into polygon-shaped places against the polygon itself,
+     * since their fence is only the polygon's enclosing circle. An entry the location does not
+     * confirm is kept pending, and re-checked against later fixes until the fence is exited.
+     */
+    private static void enter(Context context, List<String> requestIds, Location location,
+                              long receivedAt) {
+        List<String> confirmed = confirmEntries(context, requestIds, location);
+        if (confirmed.size() < requestIds.size()) {
+            List<String> pending = new ArrayList<>(requestIds);
+            pending.removeAll(confirmed);
+            Log.i(TAG, String.format("Entries outside their polygon pending : %s", pending));
+            RingerStateMachine state = RingerStateStore.load(context);
+            state.onPending(pending);
+            RingerStateStore.save(context, state);
+            requestRechecks(context, true);
+        }
+        if (!confirmed.isEmpty()) {
+            applyTransition(context, Geofence.GEOFENCE_TRANSITION_ENTER, confirmed, null,
+                    receivedAt);
+        }
+    }
+
+    /**
+     * Enters the pending polygon-shaped places whose polygon contains a new fix
+     */
+    private static void recheckPendingEntries(Context context, Location location) {
+        Set<String> pending = RingerStateStore.load(context).getPendingIds();
+        if (pending.isEmpty()) {
+            requestRechecks(context, false);
+            return;
+        }
+        // Too coarse to tell which side of a polygon's edge the device is on
+        if (location.hasAccuracy() && location.getAccuracy() > LocalGeofenceEngine.MAX_ACCURACY) {
+            return;
+        }
+        List<String> confirmed = confirmEntries(context, new ArrayList<>(pending), location);
+        if (!confirmed.isEmpty()) {
+            applyTransition(context, Geofence.GEOFENCE_TRANSITION_ENTER, confirmed, null,
+                    NOT_TIMED);
+        }
+    }
+
+    /**
+     * @param requestIds the request IDs of the entered geofences
+     * @param location   the location that entered them
+     * @return the request IDs of the entries the location confirms
+     */
+    private static List<String> confirmEntries(Context context, List<String> requestIds,
+                                               Location location) {
+        List<String> confirmed = new ArrayList<>(requestIds.size());
+        for (String requestId : requestIds) {
+            PlacePolygon polygon = PolygonCache.get(context, requestId);
+            if (polygon == null || polygon.contains(location.getLatitude(),
+                    location.getLongitude())) {
+                confirmed.add(requestId);
+            }
+        }
+        return confirmed;
+    }
+
+    /**
+     * Starts or stops the location fixes that re-check pending entries. Platform fixes are
+     * used so that this works without a connected Play Services client.
+     */
+    private static void requestRechecks(Context context, boolean request) {
+        LocationManager locationManager =
+                (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        Intent intent = new Intent(context, GeofenceBroadcastReceiver.class)
+                .setAction(ACTION_RECHECK_ENTRIES);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        try {
+            if (request) {
+                locationManager.requestLocationUpdates(LocationManager.NETWORK_PROVIDER,
+                        RECHECK_MIN_TIME_MILLIS, RECHECK_MIN_DISTANCE_METERS, pendingIntent);
+            } else {
+                locationManager.removeUpdates(pendingIntent);
+            }
+        } catch (SecurityException securityException) {
+            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
+            Log.e(TAG, securityException.getMessage());
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, String.format("Location provider unavailable : %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Applies a batch of transitions to the persisted ringer state, changing the ringer only
+     * on the first entry into any zone and on the last exit from all of them.
+     * Must only run on the worker.
+     *
+     * @param placeIds   the places of each geofence, by request ID, or null to read them from
+     *                   the registry
+     * @param receivedAt when the broadcast was received, from Metrics.start(), or NOT_TIMED
+     */
+    private static void applyTransition(Context context, int transition,
+                                        Collection<String> requestIds,
+                                        Map<String, String[]> placeIds, long receivedAt) {
+        RingerStateMachine state = RingerStateStore.load(context);
+        // Only zones the device actually enters or leaves are logged: a repeated ENTER, or the
+        // removal of a fence the device was never inside, changes nothing
+        Set<String> occupiedIds = state.getOccupiedIds();
+        boolean entering = transition == Geofence.GEOFENCE_TRANSITION_ENTER;
+        List<String> changedIds = new ArrayList<>(requestIds.size());
+        for (String requestId : requestIds) {
+            if (entering != occupiedIds.contains(requestId)) changedIds.add(requestId);
+        }
+        boolean hadPending = !state.getPendingIds().isEmpty();
+        int action;
+        if (entering) {
+            AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            action = state.onEnter(requestIds, audioManager.getRingerMode());
+        } else {
+            action = state.onExit(requestIds);
+        }
+        RingerStateStore.save(context, state);
+        if (hadPending && state.getPendingIds().isEmpty()) requestRechecks(context, false);
+
+        if (action == RingerStateMachine.ACTION_SILENCE) {
+            setRingerMode(context, AudioManager.RINGER_MODE_SILENT);
+            if (receivedAt != NOT_TIMED) Metrics.record(Metrics.TIMER_RINGER_CHANGE, receivedAt);
+            sendNotification(context, Geofence.GEOFENCE_TRANSITION_ENTER);
+        } else if (action == RingerStateMachine.ACTION_RESTORE) {
+            int mode = state.getModeBeforeEntry();
+            setRingerMode(context, mode == RingerStateMachine.NO_SAVED_MODE ?
+                    AudioManager.RINGER_MODE_NORMAL : mode);
+            if (receivedAt != NOT_TIMED) Metrics.record(Metrics.TIMER_RINGER_CHANGE, receivedAt);
+            sendNotification(context, Geofence.GEOFENCE_TRANSITION_EXIT);
+        }
+        // Logged once the ringer is set, so the log never delays it
+        logTransition(context, transition, changedIds, placeIds, action);
+    }
+
+    /**
+     * Appends a batch of transitions to the transition log, in a single transaction
+     *
+     * @param placeIds the places of each geofence, by request ID, or null to read them from
+     *                 the registry
+     */
+    private static void logTransition(Context context, int transition,
+                                      Collection<String> requestIds,
+                                      Map<String, String[]> placeIds, int action) {
+        if (requestIds.isEmpty()) return;
+        GeofenceRegistry registry = new GeofenceRegistry(context);
+        long timestamp = System.currentTimeMillis();
+        List<ContentValues> rows = new ArrayList<>();
+        for (String requestId : requestIds) {
+            String[] members = placeIds == null ? null : placeIds.get(requestId);
+            if (members == null) members = registry.getPlaceIds(requestId);
+            for (String placeId : members) {
+                ContentValues values = new ContentValues();
+                values.put(TransitionEntry.COLUMN_TIMESTAMP, timestamp);
+                values.put(TransitionEntry.COLUMN_GEOFENCE_ID, requestId);
+                values.put(TransitionEntry.COLUMN_PLACE_ID, placeId);
+                values.put(TransitionEntry.COLUMN_TRANSITION, transition);
+                values.put(TransitionEntry.COLUMN_RINGER_ACTION, action);
+                rows.add(values);
+            }
+        }
+        context.getContentResolver().bulkInsert(TransitionEntry.CONTENT_URI,
+                rows.toArray(new ContentValues[rows.size()]));
+    }
+
+    private static void sendNotification(Context context, int transitionType) {
+        loadNotificationResources(context);
         NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
         if (transitionType == Geofence.GEOFENCE_TRANSITION_ENTER) {
             builder.setSmallIcon(R.drawable.ic_volume_off_white_24dp)
-                    .setLargeIcon(BitmapFactory.decodeResource(context.getResources(),
-                            R.drawable.ic_volume_off_white_24dp))
+                    .setLargeIcon(sSilentLargeIcon)
                     .setContentTitle(context.getString(R.string.silent_mode_activated));
         } else if (transitionType == Geofence.GEOFENCE_TRANSITION_EXIT) {
             builder.setSmallIcon(R.drawable.ic_volume_up_white_24dp)
-                    .setLargeIcon(BitmapFactory.decodeResource(context.getResources(),
-                            R.drawable.ic_volume_up_white_24dp))
+                    .setLargeIcon(sNormalLargeIcon)
                     .setContentTitle(context.getString(R.string.back_to_normal));
         }
 
         builder.setContentText(context.getString(R.string.touch_to_relaunch));
-        builder.setContentIntent(notificationPendingIntent);
+        builder.setContentIntent(sNotificationPendingIntent);
         builder.setAutoCancel(true);
 
         NotificationManager mNotificationManager =
@@ -67,7 +465,25 @@ public class GeofenceBroadcastReceiver extends BroadcastReceiver {
         mNotificationManager.notify(0, builder.build());
     }
 
-    private void setRingerMode(Context context, int mode) {
+    private static void loadNotificationResources(Context context) {
+        if (!sLargeIconsDecoded) {
+            sSilentLargeIcon = BitmapFactory.decodeResource(context.getResources(),
+                    R.drawable.ic_volume_off_white_24dp);
+            sNormalLargeIcon = BitmapFactory.decodeResource(context.getResources(),
+                    R.drawable.ic_volume_up_white_24dp);
+            sLargeIconsDecoded = true;
+        }
+        if (sNotificationPendingIntent == null) {
+            Intent notificationIntent = new Intent(context, MainActivity.class);
+            TaskStackBuilder stackBuilder = TaskStackBuilder.create(context);
+            stackBuilder.addParentStack(MainActivity.class);
+            stackBuilder.addNextIntent(notificationIntent);
+            sNotificationPendingIntent =
+                    stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+    }
+
+    private static void setRingerMode(Context context, int mode) {
         NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         if (android.os.Build.VERSION.SDK_INT < 24 ||
                 (android.os.Build.VERSION.SDK_INT >= 24 && !nm.isNotificationPolicyAccessGranted())) {
@@ -0,0 +1,129 @@
+package com.example.android.shushme;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges overlapping or near-adjacent circles into enclosing circles, so that a building or
+ * campus full of places costs a single geofence instead of one per place.
+ * <p>
+ * Circles are merged greedily in the order they are given: each circle joins the touching
+ * cluster whose enclosing circle grows the least, as long as that circle stays within the
+ * maximum merged radius, and otherwise starts a cluster of its own. Circles marked as isolated
+ * always get a cluster of their own that nothing joins. Distances are great-circle distances,
+ * and each merge is computed in a flat projection centered on the cluster it grows, which is
+ * accurate at the scale of a merged radius wherever the circles are.
+ * <p>
+ * Pure Java so it can be unit-tested on a plain JVM.
+ */
+public class GeofenceClusterer {
+
+    // Circles whose edges are at most this far apart count as adjacent
+    private static final double ADJACENCY_GAP = 10; // 10 meters
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    /**
+     * A merged circle and the indices of the circles it encloses
+     */
+    public static class Cluster {
+        public double latitude;
+        public double longitude;
+        public float radius;
+        public final List<Integer> members = new ArrayList<>();
+
+        private boolean mIsolated;
+    }
+
+    private final float mMaxMergedRadius;
+
+    /**
+     * @param maxMergedRadius the largest radius a merged circle may have, in meters
+     */
+    public GeofenceClusterer(float maxMergedRadius) {
+        mMaxMergedRadius = maxMergedRadius;
+    }
+
+    /**
+     * @param lats     latitudes of the circle centers, in degrees
+     * @param lngs     longitudes of the circle centers, in degrees
+     * @param radii    radii of the circles, in meters
+     * @param isolated whether each circle must be kept out of any merge
+     * @param circles  indices of the circles to cluster, in merge priority order
+     * @return the clusters, in the order they were started
+     */
+    public List<Cluster> cluster(double[] lats, double[] lngs, float[] radii, boolean[] isolated,
+                                 int[] circles) {
+        List<Cluster> clusters = new ArrayList<>();
+        double[] merged = new double[3];
+        for (int circle : circles) {
+            double r = radii[circle];
+
+            Cluster best = null;
+            double bestLat = 0, bestLng = 0, bestRadius = Double.MAX_VALUE;
+            for (Cluster cluster : clusters) {
+                if (isolated[circle]) break;
+                if (cluster.mIsolated) continue;
+                double distance = PlaceIndex.distanceMeters(cluster.latitude, cluster.longitude,
+                        lats[circle], lngs[circle]);
+                if (distance > cluster.radius + r + ADJACENCY_GAP) continue;
+                // The circle's offset from the cluster's center, in meters
+                double metersPerLngDegree = METERS_PER_DEGREE *
+                        Math.cos(Math.toRadians((cluster.latitude + lats[circle]) / 2));
+                double x = wrapLongitude(lngs[circle] - cluster.longitude) * metersPerLngDegree;
+                double y = (lats[circle] - cluster.latitude) * METERS_PER_DEGREE;
+                enclose(0, 0, cluster.radius, x, y, r, distance, merged);
+                if (merged[2] <= mMaxMergedRadius && merged[2] < bestRadius) {
+                    best = cluster;
+                    bestLat = cluster.latitude + merged[1] / METERS_PER_DEGREE;
+                    bestLng = wrapLongitude(cluster.longitude + merged[0] / metersPerLngDegree);
+                    bestRadius = merged[2];
+                }
+            }
+            if (best == null) {
+                best = new Cluster();
+                best.mIsolated = isolated[circle];
+                bestLat = lats[circle];
+                bestLng = lngs[circle];
+                bestRadius = r;
+                clusters.add(best);
+            }
+            best.latitude = bestLat;
+            best.longitude = bestLng;
+            best.radius = (float) bestRadius;
+            best.members.add(circle);
+        }
+        return clusters;
+    }
+
+    /**
+     * @return a longitude or longitude difference brought into [-180, 180]
+     */
+    private static double wrapLongitude(double degrees) {
+        if (degrees > 180) return degrees - 360;
+        if (degrees < -180) return degrees + 360;
+        return degrees;
+    }
+
+    /**
+     * Computes the smallest circle enclosing two circles into out as {x, y, radius}
+     */
+    private static void enclose(double x1, double y1, double r1, double x2, double y2, double r2,
+                                double distance, double[] out) {
+        if (distance + r2 <= r1) {
+            out[0] = x1;
+            out[1] = y1;
+            out[2] = r1;
+        } else if (distance + r1 <= r2) {
+            out[0] = x2;
+            out[1] = y2;
+            out[2] = r2;
+        } else {
+            double radius = (distance + r1 + r2) / 2;
+            // Move from the first center towards the second so both far edges touch the circle
+            double t = (radius - r1) / distance;
+            out[0] = x1 + (x2 - x1) * t;
+            out[1] = y1 + (y2 - y1) * t;
+            out[2] = radius;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.android.shushme;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which geofences to register for a set of places.
+ * <p>
+ * Play Services caps every app at {@link #MAX_GEOFENCES} active geofences. When there are more
+ * places than that, only the places nearest to the device are fenced, plus one large re-plan
+ * fence around the device; leaving the re-plan fence means the nearest set is out of date and
+ * the plan should be rebuilt from the new location.
+ * <p>
+ * Places close enough to each other are merged by a {@link GeofenceClusterer} into a single
+ * fence whose request ID maps back to its member places, which keeps dense areas well under
+ * the limit and cuts the number of transitions Play Services has to deliver. Polygon-shaped
+ * places are never merged, so that their fence keeps the place's own request ID to confirm
+ * entries against.
+ * <p>
+ * Pure Java so it can be unit-tested on a plain JVM.
+ */
+public class GeofencePlanner {
+
+    // Request ID of the boundary fence whose EXIT triggers a re-plan
+    public static final String REPLAN_FENCE_ID = "com.example.android.shushme.REPLAN";
+    // Play Services limit of active geofences per app
+    public static final int MAX_GEOFENCES = 100;
+    // Request ID prefix of fences that enclose more than one place, kept short because
+    // request IDs are limited to 100 characters
+    public static final String CLUSTER_FENCE_PREFIX = "cluster:";
+    // How many of the nearest places are considered for clustering into the active fences
+    private static final int MAX_CANDIDATES = 4 * MAX_GEOFENCES;
+    // Smallest re-plan boundary, so walking around a dense area does not re-plan constantly,
+    // unless the fenced places are closer than that
+    private static final float MIN_REPLAN_RADIUS = 500; // 500 meters
+    // Smallest re-plan boundary however close the fenced places are
+    private static final float MIN_FENCE_RADIUS = GeofenceSettings.DEFAULT_RADIUS;
+
+    /**
+     * A circular geofence to register
+     */
+    public static class Fence {
+        public final String requestId;
+        public final double latitude;
+        public final double longitude;
+        public final float radius;
+        // Time the device must stay inside before the fence counts as entered, 0 for none
+        public final int loiteringDelay;
+        public final int responsiveness;
+        // Request IDs of the places this fence covers
+        public final String[] placeIds;
+
+        public Fence(String requestId, double latitude, double longitude, float radius,
+                     int loiteringDelay, int responsiveness, String[] placeIds) {
+            this.requestId = requestId;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+            this.loiteringDelay = loiteringDelay;
+            this.responsiveness = responsiveness;
+            this.placeIds = placeIds;
+        }
+
+        public boolean isReplanFence() {
+            return REPLAN_FENCE_ID.equals(requestId);
+        }
+    }
+
+    private final String[] mRequestIds;
+    private final double[] mLats;
+    private final double[] mLngs;
+    private final float[] mRadii;
+    private final boolean[] mPolygons;
+    private final int[] mLoiteringDelays;
+    private final int[] mResponsiveness;
+    private final PlaceIndex mIndex;
+    private final GeofenceClusterer mClusterer;
+
+    /**
+     * @param requestIds      the geofence request ID of each place
+     * @param lats            latitudes of the places, in degrees
+     * @param lngs            longitudes of the places, in degrees
+     * @param radii           the fence radius of each place, in meters
+     * @param polygons        whether each place is a polygon fenced by its enclosing circle
+     * @param loiteringDelays the loitering delay of each place, in milliseconds
+     * @param responsiveness  the notification responsiveness of each place, in milliseconds
+     * @param maxMergedRadius the largest radius of a fence merging several places, in meters
+     */
+    public GeofencePlanner(String[] requestIds, double[] lats, double[] lngs, float[] radii,
+                           boolean[] polygons, int[] loiteringDelays, int[] responsiveness,
+                           float maxMergedRadius) {
+        mRequestIds = requestIds;
+        mLats = lats;
+        mLngs = lngs;
+        mRadii = radii;
+        mPolygons = polygons;
+        mLoiteringDelays = loiteringDelays;
+        mResponsiveness = responsiveness;
+        mIndex = new PlaceIndex(lats, lngs);
+        mClusterer = new GeofenceClusterer(maxMergedRadius);
+    }
+
+    /**
+     * Plans the fences around the device's location
+     *
+     * @param deviceLat latitude of the device, in degrees
+     * @param deviceLng longitude of the device, in degrees
+     * @return the fences to register, never more than {@link #MAX_GEOFENCES}
+     */
+    public List<Fence> plan(double deviceLat, double deviceLng) {
+        int[] candidates = mIndex.nearest(deviceLat, deviceLng, MAX_CANDIDATES);
+        // Clusters come out nearest first, as they are started in candidate order
+        List<GeofenceClusterer.Cluster> clusters =
+                mClusterer.cluster(mLats, mLngs, mRadii, mPolygons, candidates);
+        if (candidates.length == mIndex.size() && clusters.size() <= MAX_GEOFENCES) {
+            return toFences(clusters, clusters.size());
+        }
+        // Keep one slot for the re-plan boundary
+        List<Fence> fences = toFences(clusters, MAX_GEOFENCES - 1);
+        double farthest = 0;
+        // Distance to the near edge of the farthest fence, by which every fence was reached
+        double extent = 0;
+        for (Fence fence : fences) {
+            double distance = PlaceIndex.distanceMeters(deviceLat, deviceLng,
+                    fence.latitude, fence.longitude);
+            farthest = Math.max(farthest, distance);
+            extent = Math.max(extent, distance - fence.radius);
+        }
+        // Re-plan once the device has covered half the distance to the edge of the fenced set,
+        // and in a dense area before it reaches the last fenced place
+        double replanRadius = Math.min(Math.max(MIN_REPLAN_RADIUS, farthest / 2), extent);
+        fences.add(new Fence(REPLAN_FENCE_ID, deviceLat, deviceLng,
+                (float) Math.max(MIN_FENCE_RADIUS, replanRadius), 0, 0, new String[0]));
+        return fences;
+    }
+
+    /**
+     * Plans the fences when the device's location is unknown
+     *
+     * @return fences for the first places in place order, capped at {@link #MAX_GEOFENCES}
+     */
+    public List<Fence> planAll() {
+        int[] candidates = new int[Math.min(mIndex.size(), MAX_CANDIDATES)];
+        for (int place = 0; place < candidates.length; place++) candidates[place] = place;
+        return toFences(mClusterer.cluster(mLats, mLngs, mRadii, mPolygons, candidates),
+                MAX_GEOFENCES);
+    }
+
+    /**
+     * Finds, for each removed geofence, the registered geofences that cover any of its places
+     * and contain the device, which take over its occupancy
+     *
+     * @param removedPlaceIds the places of each removed geofence, by request ID
+     * @param fences          the planned geofences
+     * @param registeredIds   the request IDs of the registered geofences
+     * @param deviceLat       latitude of the device, in degrees
+     * @param deviceLng       longitude of the device, in degrees
+     * @return the request IDs of the replacements, by removed request ID
+     */
+    static Map<String, List<String>> getReplacements(Map<String, String[]> removedPlaceIds,
+                                                     Collection<Fence> fences,
+                                                     Set<String> registeredIds,
+                                                     double deviceLat, double deviceLng) {
+        Map<String, List<String>> fencesByPlaceId = new HashMap<>();
+        for (Fence fence : fences) {
+            if (!registeredIds.contains(fence.requestId)) continue;
+            if (PlaceIndex.distanceMeters(deviceLat, deviceLng, fence.latitude,
+                    fence.longitude) > fence.radius) {
+                continue;
+            }
+            for (String placeId : fence.placeIds) {
+                List<String> covering = fencesByPlaceId.get(placeId);
+                if (covering == null) {
+                    covering = new ArrayList<>();
+                    fencesByPlaceId.put(placeId, covering);
+                }
+                covering.add(fence.requestId);
+            }
+        }
+        Map<String, List<String>> replacements = new HashMap<>();
+        for (Map.Entry<String, String[]> removed : removedPlaceIds.entrySet()) {
+            List<String> replacing = new ArrayList<>();
+            for (String placeId : removed.getValue()) {
+                List<String> covering = fencesByPlaceId.get(placeId);
+                if (covering == null) continue;
+                for (String requestId : covering) {
+                    if (!replacing.contains(requestId)) replacing.add(requestId);
+                }
+            }
+            if (!replacing.isEmpty()) replacements.put(removed.getKey(), replacing);
+        }
+        return replacements;
+    }
+
+    private List<Fence> toFences(List<GeofenceClusterer.Cluster> clusters, int maxFences) {
+        int count = Math.min(clusters.size(), maxFences);
+        List<Fence> fences = new ArrayList<>(count + 1);
+        for (int i = 0; i < count; i++) {
+            GeofenceClusterer.Cluster cluster = clusters.get(i);
+            String[] placeIds = new String[cluster.members.size()];
+            // A merged fence is as eager as its most eager member
+            int loiteringDelay = Integer.MAX_VALUE;
+            int responsiveness = Integer.MAX_VALUE;
+            for (int m = 0; m < placeIds.length; m++) {
+                int place = cluster.members.get(m);
+                placeIds[m] = mRequestIds[place];
+                loiteringDelay = Math.min(loiteringDelay, mLoiteringDelays[place]);
+                responsiveness = Math.min(responsiveness, mResponsiveness[place]);
+            }
+            // A single place keeps its own ID; a merged fence is named after its first member
+            String requestId = placeIds.length == 1 ? placeIds[0] :
+                    CLUSTER_FENCE_PREFIX + placeIds[0];
+            fences.add(new Fence(requestId, cluster.latitude, cluster.longitude, cluster.radius,
+                    loiteringDelay, responsiveness, placeIds));
+        }
+        return fences;
+    }
+}
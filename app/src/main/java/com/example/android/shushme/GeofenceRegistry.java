@@ -0,0 +1,155 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers which geofences are currently registered with Play Services, so that a refresh
+ * only has to add and remove the fences that actually changed.
+ * <p>
+ * Each entry maps a geofence request ID to the time it expires, the signature of its region
+ * and the places it covers. Entries are kept in SharedPreferences because registered
+ * geofences outlive the app process.
+ */
+public class GeofenceRegistry {
+
+    // Geofences this close to expiring count as unregistered, so that a refresh renews them
+    public static final long RENEWAL_MARGIN = 2 * 60 * 60 * 1000; // 2 hours
+    private static final String PREFS_NAME = "geofence_registry";
+    // Entries are stored as "expiresAt|signature|placeId,placeId,..."
+    private static final String SEPARATOR = "|";
+    private static final String PLACE_ID_SEPARATOR = ",";
+
+    private final SharedPreferences mPrefs;
+
+    public GeofenceRegistry(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param fence the geofence that should be registered
+     * @return true if that exact geofence is registered and is not about to expire
+     */
+    public boolean isRegistered(GeofencePlanner.Fence fence) {
+        String[] entry = getEntry(fence.requestId);
+        if (entry == null || !entry[1].equals(getSignature(fence))) return false;
+        return Long.parseLong(entry[0]) > System.currentTimeMillis() + RENEWAL_MARGIN;
+    }
+
+    /**
+     * @return the time the first registered geofence expires, or Long.MAX_VALUE if none is
+     * registered
+     */
+    public long getEarliestExpiry() {
+        long earliest = Long.MAX_VALUE;
+        for (String requestId : mPrefs.getAll().keySet()) {
+            String[] entry = getEntry(requestId);
+            if (entry != null) earliest = Math.min(earliest, Long.parseLong(entry[0]));
+        }
+        return earliest;
+    }
+
+    /**
+     * @return the request IDs of every geofence registered so far
+     */
+    public Set<String> getRegisteredIds() {
+        return new HashSet<>(mPrefs.getAll().keySet());
+    }
+
+    /**
+     * Maps a geofence request ID back to the places it covers
+     *
+     * @param requestId the request ID of a registered geofence
+     * @return the place IDs covered by the geofence, or the request ID itself if it is unknown
+     */
+    public String[] getPlaceIds(String requestId) {
+        String[] entry = getEntry(requestId);
+        if (entry == null || entry[2].isEmpty()) return new String[]{requestId};
+        return entry[2].split(PLACE_ID_SEPARATOR);
+    }
+
+    /**
+     * Maps geofence request IDs back to the places they cover, for geofences that are about to
+     * be forgotten
+     *
+     * @param requestIds the request IDs of registered geofences
+     * @return the place IDs covered by each geofence, by request ID
+     */
+    public Map<String, String[]> getPlaceIds(Collection<String> requestIds) {
+        Map<String, String[]> placeIds = new HashMap<>();
+        for (String requestId : requestIds) placeIds.put(requestId, getPlaceIds(requestId));
+        return placeIds;
+    }
+
+    /**
+     * @param requestIds the request IDs of registered geofences
+     * @return the longest a newly added one of these geofences may take to report that the
+     * device is inside, its loitering delay plus its notification responsiveness, in
+     * milliseconds; 0 if none is known
+     */
+    public long getLongestTriggerDelay(Collection<String> requestIds) {
+        long longest = 0;
+        for (String requestId : requestIds) {
+            String[] entry = getEntry(requestId);
+            if (entry == null) continue;
+            // The signature starts with latitude, longitude, radius, delay and responsiveness
+            String[] signature = entry[1].split(",");
+            longest = Math.max(longest,
+                    Long.parseLong(signature[3]) + Long.parseLong(signature[4]));
+        }
+        return longest;
+    }
+
+    /**
+     * Records newly registered geofences
+     *
+     * @param fences    the registered geofences
+     * @param expiresAt the time the geofences expire
+     */
+    public void putAll(Collection<GeofencePlanner.Fence> fences, long expiresAt) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (GeofencePlanner.Fence fence : fences) {
+            editor.putString(fence.requestId, expiresAt + SEPARATOR + getSignature(fence) +
+                    SEPARATOR + TextUtils.join(PLACE_ID_SEPARATOR, fence.placeIds));
+        }
+        editor.apply();
+    }
+
+    public void removeAll(Collection<String> requestIds) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String requestId : requestIds) {
+            editor.remove(requestId);
+        }
+        editor.apply();
+    }
+
+    public void clear() {
+        mPrefs.edit().clear().apply();
+    }
+
+    private String[] getEntry(String requestId) {
+        String entry = mPrefs.getString(requestId, null);
+        if (entry == null) return null;
+        String[] fields = entry.split("\\" + SEPARATOR, 3);
+        return fields.length == 3 ? fields : null;
+    }
+
+    /**
+     * The signature covers everything that requires re-adding the geofence when it changes,
+     * including its members so the stored mapping never goes stale
+     */
+    private static String getSignature(GeofencePlanner.Fence fence) {
+        return String.format(Locale.US, "%.6f,%.6f,%.1f,%d,%d,%d", fence.latitude,
+                fence.longitude, fence.radius, fence.loiteringDelay, fence.responsiveness,
+                Arrays.hashCode(fence.placeIds));
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.shushme;
+
+/**
+ * Resolves the geofence settings of a place: its radius, its loitering delay and its
+ * notification responsiveness. Each one can be set per place; places without a setting get an
+ * automatic default derived from the size of the place's viewport, so that a large venue gets
+ * a fence that covers it and settings that don't flap or drain the battery at its edges.
+ * <p>
+ * Pure Java so it can be unit-tested on a plain JVM.
+ */
+public class GeofenceSettings {
+
+    // Value of an integer setting that is not set for a place
+    public static final int UNSET = -1;
+    // Radius of places whose viewport is unknown, and smallest automatic radius
+    public static final float DEFAULT_RADIUS = 50; // 50 meters
+    // Largest automatic radius, so that a city-sized viewport does not silence a whole city
+    private static final float MAX_AUTO_RADIUS = 500; // 500 meters
+    // Fences at least this large only trigger once the device stayed inside for a while
+    private static final float LARGE_VENUE_RADIUS = 150; // 150 meters
+    private static final int LARGE_VENUE_LOITERING_DELAY = 60 * 1000; // 1 minute
+    // Fences larger than the default can be crossed for longer before a late notification
+    // matters; each extra meter of radius buys this much responsiveness, up to the maximum
+    private static final int RESPONSIVENESS_PER_METER = 1000; // 1 second
+    private static final int MAX_AUTO_RESPONSIVENESS = 5 * 60 * 1000; // 5 minutes
+
+    private GeofenceSettings() {
+    }
+
+    /**
+     * Derives an automatic radius from a place's viewport
+     *
+     * @return half the viewport's diagonal, clamped to the automatic radius range, in meters
+     */
+    public static float getViewportRadius(double northeastLat, double northeastLng,
+                                          double southwestLat, double southwestLng) {
+        double diagonal = PlaceIndex.distanceMeters(northeastLat, northeastLng,
+                southwestLat, southwestLng);
+        return (float) Math.max(DEFAULT_RADIUS, Math.min(MAX_AUTO_RADIUS, diagonal / 2));
+    }
+
+    /**
+     * @param radius         the radius set for the place, or NaN
+     * @param viewportRadius the radius derived from the place's viewport, or NaN
+     * @return the radius of the place's fence, in meters
+     */
+    public static float getRadius(double radius, double viewportRadius) {
+        if (!Double.isNaN(radius) && radius > 0) return (float) radius;
+        if (!Double.isNaN(viewportRadius) && viewportRadius > 0) return (float) viewportRadius;
+        return DEFAULT_RADIUS;
+    }
+
+    /**
+     * @param loiteringDelay the loitering delay set for the place, or UNSET
+     * @param radius         the resolved radius of the place's fence, in meters
+     * @return how long the device must stay inside before the place silences the phone, in
+     * milliseconds, or 0 to silence right on entry
+     */
+    public static int getLoiteringDelay(int loiteringDelay, float radius) {
+        if (loiteringDelay != UNSET) return loiteringDelay;
+        return radius >= LARGE_VENUE_RADIUS ? LARGE_VENUE_LOITERING_DELAY : 0;
+    }
+
+    /**
+     * @param responsiveness the notification responsiveness set for the place, or UNSET
+     * @param radius         the resolved radius of the place's fence, in meters
+     * @return the notification responsiveness of the place's fence, in milliseconds, where 0
+     * is the fastest and most power-hungry
+     */
+    public static int getResponsiveness(int responsiveness, float radius) {
+        if (responsiveness != UNSET) return responsiveness;
+        float extraMeters = Math.max(0, radius - DEFAULT_RADIUS);
+        return (int) Math.min(MAX_AUTO_RESPONSIVENESS, extraMeters * RESPONSIVENESS_PER_METER);
+    }
+}
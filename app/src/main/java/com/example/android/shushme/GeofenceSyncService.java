@@ -0,0 +1,205 @@
+package com.example.android.shushme;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebuilds the registered geofences from the local places table without any UI, using a
+ * short-lived GoogleApiClient connection that is closed as soon as the work is done.
+ * <p>
+ * Geofences expire after a day, so a single alarm is kept armed to renew them shortly before
+ * the first one expires. Each run re-arms it for the next expiry. A second, exact alarm
+ * re-plans the geofences when a place's quiet schedule next turns on or off.
+ */
+public class GeofenceSyncService extends IntentService {
+
+    public static final String TAG = GeofenceSyncService.class.getSimpleName();
+    private static final String ACTION_REPLAN = "com.example.android.shushme.action.REPLAN";
+    private static final String ACTION_RENEW = "com.example.android.shushme.action.RENEW";
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    // Long enough for Geofencing to wait out both a remove and an add result
+    private static final long REGISTER_TIMEOUT_SECONDS = 90;
+    // The renewal fires at a random point of the first half of the registry's renewal margin,
+    // so that devices don't all renew at the same moment and the fences are then due
+    private static final long RENEWAL_JITTER = GeofenceRegistry.RENEWAL_MARGIN / 2;
+    // When a renewal could not connect, it is tried again after this delay
+    private static final long RENEWAL_RETRY_DELAY = 15 * 60 * 1000; // 15 minutes
+    private static final Random sRandom = new Random();
+    // Request code of the schedule alarm, apart from the renewal alarm's 0
+    private static final int SCHEDULE_REQUEST_CODE = 1;
+
+    public GeofenceSyncService() {
+        super(TAG);
+    }
+
+    /**
+     * Re-plans the geofences around the device's current location, e.g. after the device
+     * left the re-plan boundary fence
+     *
+     * @param context the context used to start the service
+     */
+    public static void startReplan(Context context) {
+        Intent intent = new Intent(context, GeofenceSyncService.class);
+        intent.setAction(ACTION_REPLAN);
+        context.startService(intent);
+    }
+
+    /**
+     * Re-registers the geofences from the local places table, e.g. after a reboot cleared them
+     *
+     * @param context the context used to start the service
+     */
+    public static void startRenewal(Context context) {
+        context.startService(getRenewalIntent(context));
+    }
+
+    /**
+     * Arms the renewal alarm, replacing any earlier one, so that the geofences are renewed
+     * shortly before the first of them expires
+     *
+     * @param context   the context used to reach the AlarmManager
+     * @param expiresAt the time the first registered geofence expires, or Long.MAX_VALUE if
+     *                  none is registered
+     */
+    public static void scheduleRenewal(Context context, long expiresAt) {
+        if (expiresAt == Long.MAX_VALUE) {
+            cancelRenewal(context);
+            return;
+        }
+        long renewAt = expiresAt - GeofenceRegistry.RENEWAL_MARGIN +
+                (long) (sRandom.nextDouble() * RENEWAL_JITTER);
+        setRenewalAlarm(context, Math.max(0, renewAt - System.currentTimeMillis()));
+    }
+
+    /**
+     * Cancels the renewal alarm, e.g. when the user turned the geofences off
+     *
+     * @param context the context used to reach the AlarmManager
+     */
+    public static void cancelRenewal(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(PendingIntent.getService(context, 0, getRenewalIntent(context),
+                PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+
+    /**
+     * Arms the exact schedule alarm, replacing any earlier one, so that the geofences are
+     * re-planned when the first quiet schedule turns on or off
+     *
+     * @param context    the context used to reach the AlarmManager
+     * @param boundaryAt the wall clock time of the next schedule boundary, or Long.MAX_VALUE
+     *                   if no schedule will change
+     */
+    public static void scheduleBoundary(Context context, long boundaryAt) {
+        if (boundaryAt == Long.MAX_VALUE) {
+            cancelBoundary(context);
+            return;
+        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = getBoundaryPendingIntent(context);
+        // Schedules are in local time, so the wall clock is what the alarm must follow, and
+        // a zone has to turn on or off on time even while the device is dozing
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, boundaryAt,
+                    pendingIntent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.RTC_WAKEUP, boundaryAt, pendingIntent);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, boundaryAt, pendingIntent);
+        }
+    }
+
+    /**
+     * Cancels the schedule alarm, e.g. when the user turned the geofences off
+     *
+     * @param context the context used to reach the AlarmManager
+     */
+    public static void cancelBoundary(Context context) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getBoundaryPendingIntent(context));
+    }
+
+    private static PendingIntent getBoundaryPendingIntent(Context context) {
+        Intent intent = new Intent(context, GeofenceSyncService.class);
+        intent.setAction(ACTION_REPLAN);
+        return PendingIntent.getService(context, SCHEDULE_REQUEST_CODE, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static void setRenewalAlarm(Context context, long delay) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // Elapsed time is immune to wall clock changes; the same PendingIntent replaces the
+        // previous alarm, so at most one renewal is ever pending
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + delay,
+                PendingIntent.getService(context, 0, getRenewalIntent(context),
+                        PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+
+    private static Intent getRenewalIntent(Context context) {
+        Intent intent = new Intent(context, GeofenceSyncService.class);
+        intent.setAction(ACTION_RENEW);
+        return intent;
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null) return;
+        String action = intent.getAction();
+        if (!ACTION_REPLAN.equals(action) && !ACTION_RENEW.equals(action)) return;
+        // MainActivity keeps the on/off switch in its own preferences
+        boolean isEnabled = getSharedPreferences(MainActivity.class.getSimpleName(), MODE_PRIVATE)
+                .getBoolean(getString(R.string.setting_enabled), false);
+        if (!isEnabled) return;
+
+        GoogleApiClient client = new GoogleApiClient.Builder(this)
+                .addApi(LocationServices.API)
+                .build();
+        ConnectionResult result = client.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (!result.isSuccess()) {
+            Log.e(TAG, String.format("API Client Connection Failed : %d", result.getErrorCode()));
+            if (ACTION_RENEW.equals(action)) setRenewalAlarm(this, RENEWAL_RETRY_DELAY);
+            return;
+        }
+        // Only the columns that decide the fences, not the names and addresses
+        Cursor data = getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                FencedPlaces.PROJECTION,
+                null,
+                null,
+                null);
+        PlaceSnapshot places;
+        try {
+            places = PlaceSnapshot.fromCursor(data);
+        } finally {
+            if (data != null) data.close();
+        }
+        try {
+            // Geofencing re-arms the renewal alarm once the fences are registered; the client
+            // is only disconnected once it is done
+            Geofencing geofencing = new Geofencing(this, client);
+            geofencing.updateGeofencesList(places);
+            geofencing.registerAllGeofences();
+            if (!geofencing.awaitIdle(REGISTER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.e(TAG, "Timed out registering geofences");
+            }
+        } finally {
+            client.disconnect();
+        }
+    }
+}
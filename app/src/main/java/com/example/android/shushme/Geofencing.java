@@ -7,27 +7,63 @@ package com.example.android.shushme;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.location.Location;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.Result;
 import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.location.places.Place;
-import com.google.android.gms.location.places.PlaceBuffer;
 
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Keeps the geofences registered with Play Services in line with the places list.
+ * <p>
+ * The public methods only record the requested state and return immediately. A single worker
+ * thread, shared by every instance, then applies the latest requested state, waiting for each
+ * Play Services result in turn: requests that arrive while the worker is busy are merged, and
+ * a later register or unregister request replaces an earlier one that has not run yet.
+ */
 public class Geofencing implements ResultCallback {
     // Constants
     public static final String TAG = Geofencing.class.getSimpleName();
-    private static final float GEOFENCE_RADIUS = 50; // 50 meters
     private static final long GEOFENCE_TIMEOUT = 24 * 60 * 60 * 1000; // 24 hours
-    private List<Geofence> mGeofenceList;
+    // How long the worker waits for a Play Services result
+    private static final long RESULT_TIMEOUT_SECONDS = 30;
+    // Requested geofence state, applied by the worker
+    private static final int COMMAND_NONE = 0;
+    private static final int COMMAND_REGISTER = 1;
+    private static final int COMMAND_UNREGISTER = 2;
+    // The only thread that talks to Play Services and touches the planner and the registry
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    // Latest requested state, guarded by this; mPendingPlaces is null when unchanged
+    private PlaceSnapshot mPendingPlaces;
+    private int mPendingCommand = COMMAND_NONE;
+    private boolean mApplyScheduled;
+    // Chooses which places get a geofence, or null if there are no places to fence
+    private GeofencePlanner mPlanner;
+    // The places the planner was built from, and when a quiet schedule next turns on or off
+    // and the planner has to be rebuilt, or Long.MAX_VALUE
+    private PlaceSnapshot mPlaces;
+    private long mNextScheduleBoundary = Long.MAX_VALUE;
+    private GeofenceRegistry mRegistry;
     private PendingIntent mGeofencePendingIntent;
     private GoogleApiClient mGoogleApiClient;
     private Context mContext;
@@ -36,70 +72,319 @@ public class Geofencing implements ResultCallback {
         mContext = context;
         mGoogleApiClient = client;
         mGeofencePendingIntent = null;
-        mGeofenceList = new ArrayList<>();
+        mPlanner = null;
+        mRegistry = new GeofenceRegistry(context);
+    }
+
+    /**
+     * Requests that the registered geofences be brought in line with the current list
+     */
+    public synchronized void registerAllGeofences() {
+        mPendingCommand = COMMAND_REGISTER;
+        scheduleApply();
+    }
+
+    /**
+     * Requests that every geofence be unregistered
+     */
+    public synchronized void unRegisterAllGeofences() {
+        mPendingCommand = COMMAND_UNREGISTER;
+        scheduleApply();
+    }
+
+    /**
+     * Requests that the geofences be planned from these places from now on. Takes effect on
+     * the next register request, or with the one already pending.
+     *
+     * @param places the places to fence
+     */
+    public synchronized void updateGeofencesList(PlaceSnapshot places) {
+        mPendingPlaces = places == null ? PlaceSnapshot.EMPTY : places;
+        scheduleApply();
+    }
+
+    /**
+     * Waits until every request made so far has been applied. Must not be called on the main
+     * thread.
+     *
+     * @return false if the requests were not applied in time
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) {
+        try {
+            // The worker runs tasks in order, so this runs after every pending apply
+            sExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(timeout, unit);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (TimeoutException e) {
+            return false;
+        }
     }
 
-    public void registerAllGeofences() {
-        // Check that the API client is connected and that the list has Geofences in it
-        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected() ||
-                mGeofenceList == null || mGeofenceList.size() == 0) {
+    private void scheduleApply() {
+        if (mApplyScheduled) return;
+        mApplyScheduled = true;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                applyPendingState();
+            }
+        });
+    }
+
+    /**
+     * Takes the latest requested state and applies it. Runs on the worker only.
+     */
+    private void applyPendingState() {
+        PlaceSnapshot places;
+        int command;
+        synchronized (this) {
+            places = mPendingPlaces;
+            command = mPendingCommand;
+            mPendingPlaces = null;
+            mPendingCommand = COMMAND_NONE;
+            mApplyScheduled = false;
+        }
+        if (places != null) {
+            mPlaces = places;
+            buildPlanner(places);
+        }
+        if (command == COMMAND_REGISTER) {
+            registerPlannedGeofences();
+        } else if (command == COMMAND_UNREGISTER) {
+            unregisterGeofences();
+        }
+    }
+
+    /**
+     * Brings the registered geofences in line with the current list: only fences that are new
+     * or changed are added, and only fences that are no longer in the list are removed.
+     * When there are more places than Play Services allows, only the ones nearest to the
+     * device's last known location are registered. Places outside their quiet schedule are
+     * not registered at all.
+     * <p>
+     * New fences are added before the fences they replace are removed, so that the places
+     * stay covered throughout, and a removed fence the device is inside hands its occupancy to
+     * the fence that now covers its places, so that re-planning never toggles the ringer.
+     */
+    private void registerPlannedGeofences() {
+        // Check that the API client is connected
+        if (mGoogleApiClient == null || !mGoogleApiClient.isConnected()) {
             return;
         }
+        // A schedule turned on or off since the planner was built
+        if (mPlaces != null && System.currentTimeMillis() >= mNextScheduleBoundary) {
+            buildPlanner(mPlaces);
+        }
+        GeofenceSyncService.scheduleBoundary(mContext, mNextScheduleBoundary);
+        // Geofences that should be registered, keyed by request ID
+        final Map<String, GeofencePlanner.Fence> fences = new LinkedHashMap<>();
+        final Location location;
         try {
-            LocationServices.GeofencingApi.addGeofences(
-                    mGoogleApiClient,
-                    getGeofencingRequest(),
-                    getGeofencePendingIntent()
-            ).setResultCallback(this);
+            location = LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClient);
+            for (GeofencePlanner.Fence fence : planFences(location)) {
+                fences.put(fence.requestId, fence);
+            }
+        } catch (SecurityException securityException) {
+            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
+            Log.e(TAG, securityException.getMessage());
+            return;
+        }
+
+        Set<String> registeredIds = mRegistry.getRegisteredIds();
+        List<String> removedIds = new ArrayList<>();
+        for (String requestId : registeredIds) {
+            if (!fences.containsKey(requestId)) removedIds.add(requestId);
+        }
+        List<Geofence> addedGeofences = new ArrayList<>();
+        final List<GeofencePlanner.Fence> addedFences = new ArrayList<>();
+        for (GeofencePlanner.Fence fence : fences.values()) {
+            if (mRegistry.isRegistered(fence)) continue;
+            addedGeofences.add(buildGeofence(fence));
+            addedFences.add(fence);
+            registeredIds.add(fence.requestId);
+        }
+        // Nothing changed, but the renewal alarm may still have to be armed for the current fences
+        if (removedIds.isEmpty() && addedGeofences.isEmpty()) scheduleRenewal();
+        // Adding first briefly needs room for the old and the new fences together
+        boolean removeFirst = registeredIds.size() > GeofencePlanner.MAX_GEOFENCES;
+        try {
+            if (removeFirst) removeGeofences(removedIds, fences, location);
+            if (!addedGeofences.isEmpty()) {
+                // Adding a fence under an existing request ID replaces the old one
+                final long expiresAt = System.currentTimeMillis() + GEOFENCE_TIMEOUT;
+                long start = Metrics.start();
+                dispatch(LocationServices.GeofencingApi.addGeofences(
+                        mGoogleApiClient,
+                        getGeofencingRequest(addedGeofences),
+                        getGeofencePendingIntent()
+                ), Metrics.TIMER_ADD_GEOFENCES, start, new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(@NonNull Status status) {
+                        if (status.isSuccess()) {
+                            mRegistry.putAll(addedFences, expiresAt);
+                            scheduleRenewal();
+                        }
+                        Geofencing.this.onResult(status);
+                    }
+                });
+            }
+            if (!removeFirst) removeGeofences(removedIds, fences, location);
         } catch (SecurityException securityException) {
             // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
             Log.e(TAG, securityException.getMessage());
         }
     }
 
-    public void unRegisterAllGeofences() {
+    /**
+     * Removes geofences that are no longer planned
+     *
+     * @param removedIds the request IDs of the geofences to remove
+     * @param fences     the planned geofences, by request ID
+     * @param location   the location the geofences were planned from, or null
+     */
+    private void removeGeofences(final List<String> removedIds,
+                                 final Map<String, GeofencePlanner.Fence> fences,
+                                 final Location location) {
+        if (removedIds.isEmpty()) return;
+        // The places of each removed fence, read before its registry entry goes
+        final Map<String, String[]> removedPlaceIds = mRegistry.getPlaceIds(removedIds);
+        long start = Metrics.start();
+        dispatch(LocationServices.GeofencingApi.removeGeofences(
+                mGoogleApiClient,
+                removedIds
+        ), Metrics.TIMER_REMOVE_GEOFENCES, start, new ResultCallback<Status>() {
+            @Override
+            public void onResult(@NonNull Status status) {
+                if (status.isSuccess()) {
+                    mRegistry.removeAll(removedIds);
+                    scheduleRenewal();
+                    GeofenceBroadcastReceiver.onGeofencesRemoved(mContext, removedIds,
+                            removedPlaceIds, getReplacements(removedPlaceIds, fences, location));
+                }
+                Geofencing.this.onResult(status);
+            }
+        });
+    }
+
+    /**
+     * Finds the geofences that take over the occupancy of removed ones, see
+     * {@link GeofencePlanner#getReplacements}
+     *
+     * @param removedPlaceIds the places of each removed geofence, by request ID
+     * @param fences          the planned geofences, by request ID
+     * @param location        the location the geofences were planned from, or null
+     * @return the request IDs of the replacements, by removed request ID
+     */
+    private Map<String, List<String>> getReplacements(Map<String, String[]> removedPlaceIds,
+                                                      Map<String, GeofencePlanner.Fence> fences,
+                                                      Location location) {
+        // Without a location there is no telling which fence the device is inside
+        if (location == null) return Collections.emptyMap();
+        return GeofencePlanner.getReplacements(removedPlaceIds, fences.values(),
+                mRegistry.getRegisteredIds(), location.getLatitude(), location.getLongitude());
+    }
+
+    private void unregisterGeofences() {
         if (mGoogleApiClient == null || !mGoogleApiClient.isConnected()) {
             return;
         }
+        final Set<String> removedIds = mRegistry.getRegisteredIds();
+        final Map<String, String[]> removedPlaceIds = mRegistry.getPlaceIds(removedIds);
         try {
-            LocationServices.GeofencingApi.removeGeofences(
+            long start = Metrics.start();
+            dispatch(LocationServices.GeofencingApi.removeGeofences(
                     mGoogleApiClient,
                     // This is the same pending intent that was used in registerGeofences
                     getGeofencePendingIntent()
-            ).setResultCallback(this);
+            ), Metrics.TIMER_REMOVE_GEOFENCES, start, new ResultCallback<Status>() {
+                @Override
+                public void onResult(@NonNull Status status) {
+                    if (status.isSuccess()) {
+                        mRegistry.clear();
+                        GeofenceSyncService.cancelRenewal(mContext);
+                        GeofenceSyncService.cancelBoundary(mContext);
+                        GeofenceBroadcastReceiver.onTransition(mContext,
+                                Geofence.GEOFENCE_TRANSITION_EXIT, removedIds, removedPlaceIds);
+                    }
+                    Geofencing.this.onResult(status);
+                }
+            });
         } catch (SecurityException securityException) {
             // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
             Log.e(TAG, securityException.getMessage());
         }
     }
 
-    public void updateGeofencesList(PlaceBuffer places) {
-        mGeofenceList = new ArrayList<>();
-        if (places == null || places.getCount() == 0) return;
-        for (Place place : places) {
-            // Read the place information from the DB cursor
-            String placeUID = place.getId();
-            double placeLat = place.getLatLng().latitude;
-            double placeLng = place.getLatLng().longitude;
-            // Build a Geofence object
-            Geofence geofence = new Geofence.Builder()
-                    .setRequestId(placeUID) //set its unique ID
-                    .setExpirationDuration(GEOFENCE_TIMEOUT) //set expiration to 24hours
-                    .setCircularRegion(placeLat, placeLng, GEOFENCE_RADIUS)
-                    .setTransitionTypes(Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT)
-                    .build();
-            // Add it to the list
-            mGeofenceList.add(geofence);
+    private void buildPlanner(PlaceSnapshot places) {
+        FencedPlaces fenced = FencedPlaces.resolve(places, Calendar.getInstance());
+        mNextScheduleBoundary = fenced.nextScheduleBoundary;
+        PolygonCache.set(fenced.polygons);
+        mPlanner = fenced.newPlanner();
+    }
+
+    private void scheduleRenewal() {
+        GeofenceSyncService.scheduleRenewal(mContext, mRegistry.getEarliestExpiry());
+    }
+
+    private List<GeofencePlanner.Fence> planFences(Location location) {
+        if (mPlanner == null) return Collections.emptyList();
+        if (location == null) {
+            Log.w(TAG, "Last location unknown, fencing places in list order");
+            return mPlanner.planAll();
         }
+        return mPlanner.plan(location.getLatitude(), location.getLongitude());
     }
 
-    private GeofencingRequest getGeofencingRequest() {
+    private static Geofence buildGeofence(GeofencePlanner.Fence fence) {
+        // The re-plan boundary only matters when the device leaves it; a place with a
+        // loitering delay is entered once the device dwelled in it rather than on entry
+        int transitionTypes;
+        if (fence.isReplanFence()) {
+            transitionTypes = Geofence.GEOFENCE_TRANSITION_EXIT;
+        } else if (fence.loiteringDelay > 0) {
+            transitionTypes = Geofence.GEOFENCE_TRANSITION_DWELL | Geofence.GEOFENCE_TRANSITION_EXIT;
+        } else {
+            transitionTypes = Geofence.GEOFENCE_TRANSITION_ENTER | Geofence.GEOFENCE_TRANSITION_EXIT;
+        }
+        Geofence.Builder builder = new Geofence.Builder()
+                .setRequestId(fence.requestId) //set its unique ID
+                .setExpirationDuration(GEOFENCE_TIMEOUT) //set expiration to 24hours
+                .setCircularRegion(fence.latitude, fence.longitude, fence.radius)
+                .setTransitionTypes(transitionTypes)
+                .setNotificationResponsiveness(fence.responsiveness);
+        if (fence.loiteringDelay > 0) builder.setLoiteringDelay(fence.loiteringDelay);
+        return builder.build();
+    }
+
+    private GeofencingRequest getGeofencingRequest(List<Geofence> geofences) {
         GeofencingRequest.Builder builder = new GeofencingRequest.Builder();
-        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER);
-        builder.addGeofences(mGeofenceList);
+        builder.setInitialTrigger(GeofencingRequest.INITIAL_TRIGGER_ENTER |
+                GeofencingRequest.INITIAL_TRIGGER_DWELL);
+        builder.addGeofences(geofences);
         return builder.build();
     }
 
+    /**
+     * Waits on the worker for a Play Services result and delivers it to a callback, so that
+     * the next call only starts once this one is done
+     *
+     * @param timer      the Metrics timer recording the result latency
+     * @param startNanos the time the call was made, from Metrics.start()
+     */
+    private static void dispatch(PendingResult<Status> pendingResult, int timer, long startNanos,
+                                 ResultCallback<Status> callback) {
+        Status status = pendingResult.await(RESULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        Metrics.record(timer, startNanos);
+        callback.onResult(status);
+    }
 
     private PendingIntent getGeofencePendingIntent() {
         // Reuse the PendingIntent if we already have it.
@@ -114,8 +399,12 @@ public class Geofencing implements ResultCallback {
 
     @Override
     public void onResult(@NonNull Result result) {
-        Log.e(TAG, String.format("Error adding/removing geofence : %s",
-                result.getStatus().toString()));
+        if (result.getStatus().isSuccess()) {
+            Log.i(TAG, "Geofences added/removed");
+        } else {
+            Log.e(TAG, String.format("Error adding/removing geofence : %s",
+                    result.getStatus().toString()));
+        }
     }
 
 }
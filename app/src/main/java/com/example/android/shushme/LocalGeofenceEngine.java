@@ -0,0 +1,205 @@
+package com.example.android.shushme;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates raw location fixes against circular place fences, for when Play Services cannot
+ * do it.
+ * <p>
+ * A place is entered when a fix lies within its radius, but only left once a fix lies beyond
+ * its radius plus a hysteresis band, so that noisy fixes near the edge don't flap. A place
+ * with a loitering delay is only entered once fixes kept it inside for that long, like a
+ * Play Services DWELL transition; leaving it before then emits nothing. Fixes that are less
+ * accurate than {@link #MAX_ACCURACY} are ignored.
+ * <p>
+ * Each fix only looks at the places near it, through a {@link PlaceIndex}, plus the places
+ * currently entered; apart from the reported IDs nothing is allocated per fix.
+ * Not thread-safe. Pure Java so it can be unit-tested on a plain JVM.
+ */
+public class LocalGeofenceEngine {
+
+    // Fixes whose accuracy radius is larger than this are too coarse to decide anything
+    public static final float MAX_ACCURACY = 100; // 100 meters
+    // A place is left beyond its radius plus this fraction of it, and at least MIN_HYSTERESIS
+    private static final float HYSTERESIS_FRACTION = 0.2f;
+    private static final float MIN_HYSTERESIS = 20; // 20 meters
+
+    private static final byte OUTSIDE = 0;
+    // Inside, waiting for the loitering delay to pass
+    private static final byte PENDING = 1;
+    private static final byte INSIDE = 2;
+
+    private final String[] mPlaceIds;
+    private final double[] mLats;
+    private final double[] mLngs;
+    private final float[] mRadii;
+    private final int[] mLoiteringDelays;
+    private final PlaceIndex mIndex;
+    private final Map<String, Integer> mPlacesById;
+    // Distance from a fix within which a place can be affected by it
+    private final double mSearchRadius;
+
+    private final byte[] mStates;
+    private final long[] mEnteredAt;
+    // Places that are not OUTSIDE, and the fix that last visited each place
+    private final int[] mActive;
+    private int mActiveCount;
+    private final int[] mVisitedFix;
+    private int mFix;
+    private int[] mCandidates = new int[64];
+
+    private final List<String> mEntered = new ArrayList<>();
+    private final List<String> mExited = new ArrayList<>();
+
+    /**
+     * @param placeIds        the ID reported for each place
+     * @param lats            latitudes of the places, in degrees
+     * @param lngs            longitudes of the places, in degrees
+     * @param radii           radii of the places, in meters
+     * @param loiteringDelays time a place must be occupied before it counts as entered, in
+     *                        milliseconds, or 0
+     */
+    public LocalGeofenceEngine(String[] placeIds, double[] lats, double[] lngs, float[] radii,
+                               int[] loiteringDelays) {
+        mPlaceIds = placeIds;
+        mLats = lats;
+        mLngs = lngs;
+        mRadii = radii;
+        mLoiteringDelays = loiteringDelays;
+        mIndex = new PlaceIndex(lats, lngs);
+        mPlacesById = new HashMap<>();
+        double maxRadius = 0;
+        for (int place = 0; place < placeIds.length; place++) {
+            mPlacesById.put(placeIds[place], place);
+            maxRadius = Math.max(maxRadius, exitRadius(radii[place]));
+        }
+        mSearchRadius = maxRadius;
+        mStates = new byte[placeIds.length];
+        mEnteredAt = new long[placeIds.length];
+        mActive = new int[placeIds.length];
+        mVisitedFix = new int[placeIds.length];
+    }
+
+    /**
+     * Marks places as already entered, e.g. to resume from persisted state. Unknown IDs are
+     * ignored.
+     *
+     * @param placeIds the IDs of the places the device is inside
+     */
+    public void setInside(Collection<String> placeIds) {
+        for (String placeId : placeIds) {
+            Integer place = mPlacesById.get(placeId);
+            if (place == null || mStates[place] != OUTSIDE) continue;
+            mStates[place] = INSIDE;
+            mActive[mActiveCount++] = place;
+        }
+    }
+
+    /**
+     * Evaluates a location fix
+     *
+     * @param lat        latitude of the fix, in degrees
+     * @param lng        longitude of the fix, in degrees
+     * @param accuracy   accuracy radius of the fix, in meters
+     * @param timeMillis time of the fix, in milliseconds
+     * @return true if the fix entered or left any place, as reported by {@link #getEntered()}
+     * and {@link #getExited()}
+     */
+    public boolean onLocation(double lat, double lng, float accuracy, long timeMillis) {
+        mEntered.clear();
+        mExited.clear();
+        if (accuracy > MAX_ACCURACY) return false;
+        mFix++;
+
+        int found = mIndex.within(lat, lng, mSearchRadius, mCandidates);
+        if (found > mCandidates.length) {
+            mCandidates = new int[Integer.highestOneBit(found) * 2];
+            found = mIndex.within(lat, lng, mSearchRadius, mCandidates);
+        }
+        // Entered places that are no longer near the fix are evaluated as far away
+        int activeCount = mActiveCount;
+        for (int i = 0; i < found; i++) {
+            int place = mCandidates[i];
+            mVisitedFix[place] = mFix;
+            evaluate(place, PlaceIndex.distanceMeters(lat, lng, mLats[place], mLngs[place]),
+                    timeMillis);
+        }
+        for (int i = 0; i < activeCount; i++) {
+            int place = mActive[i];
+            if (mVisitedFix[place] != mFix) evaluate(place, Double.MAX_VALUE, timeMillis);
+        }
+        // Drop the places that were left from the active list
+        int kept = 0;
+        for (int i = 0; i < mActiveCount; i++) {
+            if (mStates[mActive[i]] != OUTSIDE) mActive[kept++] = mActive[i];
+        }
+        mActiveCount = kept;
+        return !mEntered.isEmpty() || !mExited.isEmpty();
+    }
+
+    /**
+     * @return the IDs of the places entered by the last fix, valid until the next one
+     */
+    public List<String> getEntered() {
+        return mEntered;
+    }
+
+    /**
+     * @return the IDs of the places left by the last fix, valid until the next one
+     */
+    public List<String> getExited() {
+        return mExited;
+    }
+
+    /**
+     * @return the IDs of the places currently entered
+     */
+    public List<String> getInside() {
+        List<String> inside = new ArrayList<>();
+        for (int i = 0; i < mActiveCount; i++) {
+            if (mStates[mActive[i]] == INSIDE) inside.add(mPlaceIds[mActive[i]]);
+        }
+        return inside;
+    }
+
+    private void evaluate(int place, double distance, long timeMillis) {
+        boolean inside = distance <= mRadii[place];
+        boolean outside = distance > exitRadius(mRadii[place]);
+        switch (mStates[place]) {
+            case OUTSIDE:
+                if (!inside) return;
+                mActive[mActiveCount++] = place;
+                if (mLoiteringDelays[place] > 0) {
+                    mStates[place] = PENDING;
+                    mEnteredAt[place] = timeMillis;
+                } else {
+                    mStates[place] = INSIDE;
+                    mEntered.add(mPlaceIds[place]);
+                }
+                break;
+            case PENDING:
+                // Leaving before the loitering delay passed never counted as an entry
+                if (outside) {
+                    mStates[place] = OUTSIDE;
+                } else if (inside && timeMillis - mEnteredAt[place] >= mLoiteringDelays[place]) {
+                    mStates[place] = INSIDE;
+                    mEntered.add(mPlaceIds[place]);
+                }
+                break;
+            case INSIDE:
+                if (outside) {
+                    mStates[place] = OUTSIDE;
+                    mExited.add(mPlaceIds[place]);
+                }
+                break;
+        }
+    }
+
+    private static double exitRadius(float radius) {
+        return radius + Math.max(MIN_HYSTERESIS, radius * HYSTERESIS_FRACTION);
+    }
+}
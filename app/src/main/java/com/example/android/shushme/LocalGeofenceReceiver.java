@@ -0,0 +1,207 @@
+package com.example.android.shushme;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.google.android.gms.location.Geofence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fallback for when Play Services is unavailable: receives location fixes from the platform
+ * LocationManager and evaluates them with a {@link LocalGeofenceEngine}, feeding the resulting
+ * transitions to {@link GeofenceBroadcastReceiver} as if Play Services had sent them.
+ */
+public class LocalGeofenceReceiver extends BroadcastReceiver {
+
+    public static final String TAG = LocalGeofenceReceiver.class.getSimpleName();
+    // Coarse, infrequent fixes are enough for fences of tens of meters and keep power low
+    private static final long MIN_TIME_MILLIS = 60 * 1000; // 1 minute
+    private static final float MIN_DISTANCE_METERS = 25;
+    // A single worker evaluates fixes in order; the engine is only touched on it
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    private static LocalGeofenceEngine sEngine;
+    // Set when the places changed, so the engine is rebuilt on the next fix
+    private static volatile boolean sPlacesChanged = true;
+    // When a quiet schedule next turns on or off, which also rebuilds the engine
+    private static long sNextScheduleBoundary = Long.MAX_VALUE;
+    // Set by stop(), so that a fix still in flight cannot take the zones back. Not persisted:
+    // after a restart the process only gets fixes if updates were still requested
+    private static volatile boolean sStopped;
+
+    /**
+     * Starts receiving location fixes from the platform
+     *
+     * @param context the context
+     */
+    public static void start(Context context) {
+        sStopped = false;
+        sPlacesChanged = true;
+        LocationManager locationManager =
+                (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        // Prefer the network provider, which is far cheaper than GPS
+        String provider = locationManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER) ?
+                LocationManager.NETWORK_PROVIDER : LocationManager.GPS_PROVIDER;
+        try {
+            locationManager.requestLocationUpdates(provider, MIN_TIME_MILLIS, MIN_DISTANCE_METERS,
+                    getPendingIntent(context));
+        } catch (SecurityException securityException) {
+            // Catch exception generated if the app does not use ACCESS_FINE_LOCATION permission.
+            Log.e(TAG, securityException.getMessage());
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, String.format("Location provider unavailable : %s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Stops receiving location fixes, e.g. once Play Services is connected again. The zones
+     * entered here are handed over to the registered geofences covering them, or exited.
+     *
+     * @param context the context
+     */
+    public static void stop(Context context) {
+        sStopped = true;
+        LocationManager locationManager =
+                (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
+        try {
+            locationManager.removeUpdates(getPendingIntent(context));
+        } catch (SecurityException securityException) {
+            Log.e(TAG, securityException.getMessage());
+        }
+        final Context appContext = context.getApplicationContext();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // After any fix already queued, whose transitions must be applied first
+                sEngine = null;
+                GeofenceBroadcastReceiver.onLocalTrackingStopped(appContext);
+            }
+        });
+    }
+
+    /**
+     * Makes the next fix rebuild the fences from the places table
+     */
+    public static void onPlacesChanged() {
+        sPlacesChanged = true;
+    }
+
+    private static PendingIntent getPendingIntent(Context context) {
+        Intent intent = new Intent(context, LocalGeofenceReceiver.class);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final Location location = intent.getParcelableExtra(LocationManager.KEY_LOCATION_CHANGED);
+        if (location == null || sStopped) return;
+        final Context appContext = context.getApplicationContext();
+        final PendingResult pendingResult = goAsync();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!sStopped) onLocation(appContext, location);
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        });
+    }
+
+    private static void onLocation(Context context, Location location) {
+        if (sEngine == null || sPlacesChanged ||
+                System.currentTimeMillis() >= sNextScheduleBoundary) {
+            sPlacesChanged = false;
+            List<String> wasInside = sEngine == null ? null : sEngine.getInside();
+            sEngine = buildEngine(context);
+            resumeOccupancy(context);
+            if (wasInside != null) {
+                // Zones that were deleted or turned off by their schedule are left
+                wasInside.removeAll(sEngine.getInside());
+                if (!wasInside.isEmpty()) {
+                    GeofenceBroadcastReceiver.onTransition(context,
+                            Geofence.GEOFENCE_TRANSITION_EXIT, wasInside);
+                }
+            }
+        }
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : LocalGeofenceEngine.MAX_ACCURACY;
+        if (!sEngine.onLocation(location.getLatitude(), location.getLongitude(), accuracy,
+                location.getTime())) {
+            return;
+        }
+        // The lists are reused by the engine, so hand over copies
+        if (!sEngine.getExited().isEmpty()) {
+            GeofenceBroadcastReceiver.onTransition(context, Geofence.GEOFENCE_TRANSITION_EXIT,
+                    new ArrayList<>(sEngine.getExited()));
+        }
+        if (!sEngine.getEntered().isEmpty()) {
+            GeofenceBroadcastReceiver.onLocalEntries(context,
+                    new ArrayList<>(sEngine.getEntered()), location);
+        }
+    }
+
+    /**
+     * Resumes from the zones the ringer state says we are in, so that leaving them still
+     * restores the ringer after the process was restarted or Play Services stopped reporting.
+     * A cluster geofence the device is inside is tracked here as its member places, and hands
+     * its occupancy over to them; one whose places are all gone is exited.
+     */
+    private static void resumeOccupancy(Context context) {
+        Set<String> occupiedIds = RingerStateStore.load(context).getOccupiedIds();
+        Map<String, String[]> placeIds = new GeofenceRegistry(context).getPlaceIds(occupiedIds);
+        for (String[] members : placeIds.values()) sEngine.setInside(Arrays.asList(members));
+
+        Set<String> inside = new HashSet<>(sEngine.getInside());
+        List<String> clusterIds = new ArrayList<>();
+        Map<String, List<String>> replacements = new HashMap<>();
+        for (String requestId : occupiedIds) {
+            if (!requestId.startsWith(GeofencePlanner.CLUSTER_FENCE_PREFIX)) continue;
+            clusterIds.add(requestId);
+            List<String> members = new ArrayList<>();
+            for (String placeId : placeIds.get(requestId)) {
+                if (inside.contains(placeId)) members.add(placeId);
+            }
+            if (!members.isEmpty()) replacements.put(requestId, members);
+        }
+        if (!clusterIds.isEmpty()) {
+            GeofenceBroadcastReceiver.onGeofencesRemoved(context, clusterIds, placeIds,
+                    replacements);
+        }
+    }
+
+    private static LocalGeofenceEngine buildEngine(Context context) {
+        Cursor data = context.getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                FencedPlaces.PROJECTION,
+                null,
+                null,
+                null);
+        PlaceSnapshot places;
+        try {
+            places = PlaceSnapshot.fromCursor(data);
+        } finally {
+            if (data != null) data.close();
+        }
+        // The same places and settings as the Play Services fences, one fence per place
+        FencedPlaces fenced = FencedPlaces.resolve(places, Calendar.getInstance());
+        sNextScheduleBoundary = fenced.nextScheduleBoundary;
+        return fenced.newEngine();
+    }
+}
@@ -1,16 +1,23 @@
 package com.example.android.shushme;
 
 import android.app.NotificationManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
@@ -35,18 +42,26 @@ import com.google.android.gms.location.places.Place;
 import com.google.android.gms.location.places.PlaceBuffer;
 import com.google.android.gms.location.places.Places;
 import com.google.android.gms.location.places.ui.PlacePicker;
+import com.google.android.gms.maps.model.LatLngBounds;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class MainActivity extends AppCompatActivity implements
         ConnectionCallbacks,
-        OnConnectionFailedListener {
+        OnConnectionFailedListener,
+        LoaderManager.LoaderCallbacks<PlaceSnapshot> {
 
     // Constants
     public static final String TAG = MainActivity.class.getSimpleName();
     private static final int PERMISSIONS_REQUEST_FINE_LOCATION = 111;
     private static final int PLACE_PICKER_REQUEST = 1;
+    private static final int PLACES_LOADER_ID = 0;
+    // Cached place details older than this are re-fetched from the Places API
+    private static final long PLACE_DETAILS_TTL = 7 * 24 * 60 * 60 * 1000L; // 7 days
 
     // Member variables
     private PlaceListAdapter mAdapter;
@@ -54,6 +69,13 @@ public class MainActivity extends AppCompatActivity implements
     private boolean mIsEnabled;
     private GoogleApiClient mClient;
     private Geofencing mGeofencing;
+    // The places last delivered by the loader
+    private PlaceSnapshot mPlaces;
+    // Places already sent to the Places API in this session, so that a place the API does not
+    // return is not requested again on every reload
+    private Set<String> mRequestedPlaceIds = new HashSet<>();
+    // Merges the refreshes requested by connections, reloads and the on/off switch
+    private RefreshCoordinator mRefreshCoordinator;
 
     /**
      * Called when the activity is starting
@@ -68,7 +90,7 @@ public class MainActivity extends AppCompatActivity implements
         // Set up the recycler view
         mRecyclerView = (RecyclerView) findViewById(R.id.places_list_recycler_view);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-        mAdapter = new PlaceListAdapter(this, null);
+        mAdapter = new PlaceListAdapter(this);
         mRecyclerView.setAdapter(mAdapter);
 
         Switch onOffSwitch = (Switch) findViewById(R.id.enable_switch);
@@ -81,8 +103,12 @@ public class MainActivity extends AppCompatActivity implements
                 editor.putBoolean(getString(R.string.setting_enabled), isChecked);
                 mIsEnabled = isChecked;
                 editor.commit();
-                if (isChecked) mGeofencing.registerAllGeofences();
-                else mGeofencing.unRegisterAllGeofences();
+                if (isChecked) {
+                    refreshPlacesData();
+                } else {
+                    mGeofencing.unRegisterAllGeofences();
+                    LocalGeofenceReceiver.stop(MainActivity.this);
+                }
             }
 
         });
@@ -96,11 +122,28 @@ public class MainActivity extends AppCompatActivity implements
                 .build();
 
         mGeofencing = new Geofencing(this, mClient);
+        mRefreshCoordinator = new RefreshCoordinator(new RefreshCoordinator.RefreshTask() {
+            @Override
+            public void onRefresh(RefreshCoordinator.Refresh refresh) {
+                refreshPlacesData(refresh);
+            }
+        });
 
+        // Load the cached places off the main thread; the loader reloads them on every change
+        getSupportLoaderManager().initLoader(PLACES_LOADER_ID, null, this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Results arriving after this point have nothing left to update
+        mRefreshCoordinator.cancel();
     }
 
     @Override
     public void onConnected(@Nullable Bundle connectionHint) {
+        // Play Services is back, so its geofences take over from the local fallback
+        LocalGeofenceReceiver.stop(this);
         refreshPlacesData();
         Log.i(TAG, "API Client Connection Successful!");
     }
@@ -113,36 +156,165 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     public void onConnectionFailed(@NonNull ConnectionResult result) {
         Log.e(TAG, "API Client Connection Failed!");
+        // Without Play Services, evaluate the places against platform location fixes instead
+        if (mIsEnabled) LocalGeofenceReceiver.start(this);
     }
 
+    @Override
+    public Loader<PlaceSnapshot> onCreateLoader(int id, Bundle args) {
+        return new PlaceSnapshotLoader(this);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<PlaceSnapshot> loader, PlaceSnapshot data) {
+        mPlaces = data;
+        // The places changed, so the list re-reads the pages it has shown so far
+        mAdapter.refreshPlaces();
+        LocalGeofenceReceiver.onPlacesChanged();
+        refreshPlacesData();
+    }
+
+    @Override
+    public void onLoaderReset(Loader<PlaceSnapshot> loader) {
+        mPlaces = null;
+    }
+
+    /**
+     * Requests a refresh of the geofences and the stale place details. Requests arriving
+     * close together, or while a refresh is running, are merged into a single refresh.
+     */
     public void refreshPlacesData() {
+        mRefreshCoordinator.requestRefresh();
+    }
+
+    /**
+     * Sets the listener called whenever every requested refresh is done, e.g. for an
+     * instrumentation IdlingResource
+     *
+     * @param listener the listener, or null
+     */
+    public void setOnRefreshCompleteListener(RefreshCoordinator.OnRefreshCompleteListener listener) {
+        mRefreshCoordinator.setOnRefreshCompleteListener(listener);
+    }
 
-        Uri uri = PlaceContract.PlaceEntry.CONTENT_URI;
-        Cursor data = getContentResolver().query(
-                uri,
-                null,
-                null,
-                null,
-                null);
-        if (data == null || data.getCount() == 0) return;
-        List<String> guids = new ArrayList<String>();
-        while (data.moveToNext()) {
-            guids.add(data.getString(data.getColumnIndex(PlaceContract.PlaceEntry.COLUMN_PLACE_ID)));
+    /**
+     * Builds the geofences from the loaded places and re-fetches the places whose cached
+     * details have expired
+     *
+     * @param refresh the refresh to finish once the fetched details are stored
+     */
+    private void refreshPlacesData(RefreshCoordinator.Refresh refresh) {
+        if (mPlaces == null) {
+            refresh.finish();
+            return;
         }
+        mGeofencing.updateGeofencesList(mPlaces);
+        if (mIsEnabled) mGeofencing.registerAllGeofences();
+        fetchStalePlaces(mPlaces, refresh);
+    }
 
+    /**
+     * Re-fetches from the Places API only the places whose cached details have expired,
+     * then writes them back to the local DB
+     *
+     * @param places  all places in the local DB
+     * @param refresh the refresh to finish once the fetched details are stored
+     */
+    private void fetchStalePlaces(PlaceSnapshot places, final RefreshCoordinator.Refresh refresh) {
+        if (places.size() == 0 || !mClient.isConnected()) {
+            refresh.finish();
+            return;
+        }
+        final Map<String, Long> staleRowIds = new HashMap<>();
+        long staleBefore = System.currentTimeMillis() - PLACE_DETAILS_TTL;
+        for (int i = 0; i < places.size(); i++) {
+            if (places.getFetchedAt(i) < staleBefore &&
+                    mRequestedPlaceIds.add(places.getPlaceId(i))) {
+                staleRowIds.put(places.getPlaceId(i), places.getRowId(i));
+            }
+        }
+        if (staleRowIds.isEmpty()) {
+            refresh.finish();
+            return;
+        }
+
+        final long fetchStart = Metrics.start();
         PendingResult<PlaceBuffer> placeResult = Places.GeoDataApi.getPlaceById(mClient,
-                guids.toArray(new String[guids.size()]));
+                staleRowIds.keySet().toArray(new String[staleRowIds.size()]));
 
         placeResult.setResultCallback(new ResultCallback<PlaceBuffer>() {
             @Override
             public void onResult(@NonNull PlaceBuffer places) {
-                mAdapter.swapPlaces(places);
-                mGeofencing.updateGeofencesList(places);
-                if (mIsEnabled) mGeofencing.registerAllGeofences();
+                Metrics.record(Metrics.TIMER_PLACE_DETAILS_FETCH, fetchStart);
+                if (!refresh.isCurrent() || !places.getStatus().isSuccess()) {
+                    if (refresh.isCurrent()) {
+                        Metrics.increment(Metrics.COUNTER_PLACE_DETAILS_FAILURES);
+                        Log.e(TAG, String.format("Failed to fetch place details : %s",
+                                places.getStatus().toString()));
+                    }
+                    places.release();
+                    // Let the next reload try again
+                    mRequestedPlaceIds.removeAll(staleRowIds.keySet());
+                    refresh.finish();
+                    return;
+                }
+                // Write all fetched details in one transaction, with one change notification
+                long fetchedAt = System.currentTimeMillis();
+                final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+                for (Place place : places) {
+                    Long rowId = staleRowIds.get(place.getId());
+                    if (rowId == null) continue;
+                    Uri placeUri = ContentUris.withAppendedId(PlaceContract.PlaceEntry.CONTENT_URI, rowId);
+                    operations.add(ContentProviderOperation.newUpdate(placeUri)
+                            .withValues(getPlaceDetails(place, fetchedAt))
+                            .build());
+                }
+                places.release();
+                // The loader picks up the change through the provider's notification
+                final ContentResolver contentResolver = getContentResolver();
+                AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            contentResolver.applyBatch(PlaceContract.AUTHORITY, operations);
+                        } catch (RemoteException e) {
+                            Log.e(TAG, String.format("Failed to store place details : %s", e.getMessage()));
+                        } catch (OperationApplicationException e) {
+                            Log.e(TAG, String.format("Failed to store place details : %s", e.getMessage()));
+                        } finally {
+                            refresh.finish();
+                        }
+                    }
+                });
             }
         });
     }
 
+    /**
+     * Extracts the place details that are cached in the local DB
+     *
+     * @param place     the place returned by the Places API
+     * @param fetchedAt the time the place was fetched
+     * @return the ContentValues to store for this place
+     */
+    private static ContentValues getPlaceDetails(Place place, long fetchedAt) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_NAME, String.valueOf(place.getName()));
+        contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS, String.valueOf(place.getAddress()));
+        contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_LATITUDE, place.getLatLng().latitude);
+        contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_LONGITUDE, place.getLatLng().longitude);
+        contentValues.put(PlaceContract.PlaceEntry.COLUMN_FETCHED_AT, fetchedAt);
+        // The viewport sizes the place's fence unless a radius is set for it
+        LatLngBounds viewport = place.getViewport();
+        if (viewport != null) {
+            contentValues.put(PlaceContract.PlaceEntry.COLUMN_VIEWPORT_RADIUS,
+                    GeofenceSettings.getViewportRadius(viewport.northeast.latitude,
+                            viewport.northeast.longitude, viewport.southwest.latitude,
+                            viewport.southwest.longitude));
+        }
+        return contentValues;
+    }
+
     public void onAddPlaceButtonClicked(View view) {
 
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION)
@@ -173,17 +345,19 @@ public class MainActivity extends AppCompatActivity implements
             }
 
             // Extract the place information from the API
-            String placeName = place.getName().toString();
-            String placeAddress = place.getAddress().toString();
             String placeID = place.getId();
 
-            // Insert a new place into DB
-            ContentValues contentValues = new ContentValues();
+            // Insert a new place into DB, together with its details so no fetch is needed.
+            // The loader reloads the places once the insert notifies the provider's URI.
+            final ContentValues contentValues = getPlaceDetails(place, System.currentTimeMillis());
             contentValues.put(PlaceContract.PlaceEntry.COLUMN_PLACE_ID, placeID);
-            getContentResolver().insert(PlaceContract.PlaceEntry.CONTENT_URI, contentValues);
-
-            // Get live data information
-            refreshPlacesData();
+            final ContentResolver contentResolver = getContentResolver();
+            AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    contentResolver.insert(PlaceContract.PlaceEntry.CONTENT_URI, contentValues);
+                }
+            });
         }
     }
 
@@ -0,0 +1,158 @@
+package com.example.android.shushme;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide latency histograms and counters for the app's critical paths.
+ * <p>
+ * Every timer keeps a fixed histogram of power-of-two microsecond buckets plus its count, sum
+ * and maximum, all in preallocated atomic arrays, so recording never allocates or locks and is
+ * safe from any thread. The numbers are printed by the places provider's dump, e.g.
+ * {@code adb shell dumpsys activity provider com.example.android.shushme}, and exported as a
+ * Bundle through its call method.
+ */
+public class Metrics {
+
+    // Timers
+    // Query and snapshot of the places table for the loader
+    public static final int TIMER_PLACES_QUERY = 0;
+    // Places API round trip for stale place details
+    public static final int TIMER_PLACE_DETAILS_FETCH = 1;
+    // Play Services result latency of adding and removing geofences
+    public static final int TIMER_ADD_GEOFENCES = 2;
+    public static final int TIMER_REMOVE_GEOFENCES = 3;
+    // From receiving a geofence broadcast to changing the ringer mode
+    public static final int TIMER_RINGER_CHANGE = 4;
+    // A whole delta sync of the places table with the sync server
+    public static final int TIMER_PLACE_SYNC = 5;
+    private static final String[] TIMER_NAMES = {
+            "placesQuery", "placeDetailsFetch", "addGeofences", "removeGeofences", "ringerChange",
+            "placeSync"
+    };
+
+    // Counters
+    public static final int COUNTER_GEOFENCE_EVENTS = 0;
+    public static final int COUNTER_GEOFENCE_ERRORS = 1;
+    public static final int COUNTER_PLACE_DETAILS_FAILURES = 2;
+    public static final int COUNTER_SYNC_ROWS_SENT = 3;
+    public static final int COUNTER_SYNC_ROWS_RECEIVED = 4;
+    public static final int COUNTER_SYNC_FAILURES = 5;
+    private static final String[] COUNTER_NAMES = {
+            "geofenceEvents", "geofenceErrors", "placeDetailsFailures", "syncRowsSent",
+            "syncRowsReceived", "syncFailures"
+    };
+
+    // Bucket b holds durations below 2^b microseconds, the last one everything longer
+    // (2^31 us is about 36 minutes)
+    public static final int BUCKET_COUNT = 32;
+    // Per timer: BUCKET_COUNT buckets, then the count, the sum and the maximum in microseconds
+    private static final int COUNT = BUCKET_COUNT;
+    private static final int SUM = BUCKET_COUNT + 1;
+    private static final int MAX = BUCKET_COUNT + 2;
+    private static final int STRIDE = BUCKET_COUNT + 3;
+
+    private static final AtomicLongArray sTimers = new AtomicLongArray(TIMER_NAMES.length * STRIDE);
+    private static final AtomicLongArray sCounters = new AtomicLongArray(COUNTER_NAMES.length);
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the start time to pass to {@link #record(int, long)}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since a start time
+     *
+     * @param timer      one of the TIMER_ constants
+     * @param startNanos the value returned by {@link #start()}
+     */
+    public static void record(int timer, long startNanos) {
+        long micros = Math.max(0, (System.nanoTime() - startNanos) / 1000);
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        int base = timer * STRIDE;
+        sTimers.incrementAndGet(base + bucket);
+        sTimers.incrementAndGet(base + COUNT);
+        sTimers.addAndGet(base + SUM, micros);
+        long max;
+        do {
+            max = sTimers.get(base + MAX);
+        } while (micros > max && !sTimers.compareAndSet(base + MAX, max, micros));
+    }
+
+    /**
+     * @param counter one of the COUNTER_ constants
+     */
+    public static void increment(int counter) {
+        sCounters.incrementAndGet(counter);
+    }
+
+    /**
+     * @param counter one of the COUNTER_ constants
+     * @param delta   the amount to add
+     */
+    public static void add(int counter, long delta) {
+        sCounters.addAndGet(counter, delta);
+    }
+
+    /**
+     * Exports every timer and counter. A timer's histogram is stored as a long array under its
+     * name, with its count, sum and maximum under the name followed by ".count", ".sumMicros"
+     * and ".maxMicros"; a counter is stored as a long under its name.
+     *
+     * @return a snapshot of the metrics
+     */
+    public static Bundle snapshot() {
+        Bundle snapshot = new Bundle();
+        for (int timer = 0; timer < TIMER_NAMES.length; timer++) {
+            int base = timer * STRIDE;
+            long[] buckets = new long[BUCKET_COUNT];
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                buckets[bucket] = sTimers.get(base + bucket);
+            }
+            snapshot.putLongArray(TIMER_NAMES[timer], buckets);
+            snapshot.putLong(TIMER_NAMES[timer] + ".count", sTimers.get(base + COUNT));
+            snapshot.putLong(TIMER_NAMES[timer] + ".sumMicros", sTimers.get(base + SUM));
+            snapshot.putLong(TIMER_NAMES[timer] + ".maxMicros", sTimers.get(base + MAX));
+        }
+        for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+            snapshot.putLong(COUNTER_NAMES[counter], sCounters.get(counter));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Prints every timer with its mean, maximum and non-empty buckets, then every counter
+     *
+     * @param writer where to print
+     */
+    public static void dump(PrintWriter writer) {
+        writer.println("Timers (microseconds):");
+        for (int timer = 0; timer < TIMER_NAMES.length; timer++) {
+            int base = timer * STRIDE;
+            long count = sTimers.get(base + COUNT);
+            writer.print("  " + TIMER_NAMES[timer] + ": count=" + count);
+            if (count > 0) {
+                writer.print(" mean=" + sTimers.get(base + SUM) / count +
+                        " max=" + sTimers.get(base + MAX));
+            }
+            writer.println();
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                long bucketCount = sTimers.get(base + bucket);
+                if (bucketCount == 0) continue;
+                writer.println("    <" + (bucket == BUCKET_COUNT - 1 ? "inf" :
+                        String.valueOf(1L << bucket)) + ": " + bucketCount);
+            }
+        }
+        writer.println("Counters:");
+        for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+            writer.println("  " + COUNTER_NAMES[counter] + ": " + sCounters.get(counter));
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.example.android.shushme;
+
+/**
+ * An immutable KD-tree over a set of places, answering nearest-N and within-radius queries
+ * without scanning every place.
+ * <p>
+ * Places are indexed as unit vectors on the sphere rather than as latitude and longitude, so
+ * there is no seam at the antimeridian and no distortion near the poles: the straight-line
+ * (chord) distance between two unit vectors grows with their great-circle distance, so the
+ * nearest places by chord are the nearest places on the globe. The tree is balanced and stored
+ * implicitly in arrays, each subtree split at its median along its widest axis, so it adapts to
+ * how densely the places are packed and a query costs about log(size) plus the size of its
+ * result, wherever the places are.
+ * <p>
+ * Pure Java so it can be used from any thread and unit-tested on a plain JVM.
+ */
+public class PlaceIndex {
+
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+    // Subtrees this small are scanned rather than split further
+    private static final int LEAF_SIZE = 8;
+
+    private final double[] mLats;
+    private final double[] mLngs;
+    // Unit vectors of the places in tree order, x, y and z for each position; the subtree of
+    // positions [lo, hi) is split at the median position (lo + hi) / 2
+    private final double[] mPoints;
+    // Place index at each tree position
+    private final int[] mItems;
+    // Axis the subtree whose median sits at each position is split along
+    private final byte[] mAxes;
+
+    /**
+     * @param lats latitudes of the places, in degrees
+     * @param lngs longitudes of the places, in degrees; must be the same length as lats
+     */
+    public PlaceIndex(double[] lats, double[] lngs) {
+        if (lats.length != lngs.length) {
+            throw new IllegalArgumentException("lats and lngs must have the same length");
+        }
+        mLats = lats;
+        mLngs = lngs;
+        int count = lats.length;
+        mPoints = new double[3 * count];
+        mItems = new int[count];
+        mAxes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            double lat = Math.toRadians(lats[i]);
+            double lng = Math.toRadians(lngs[i]);
+            mPoints[3 * i] = Math.cos(lat) * Math.cos(lng);
+            mPoints[3 * i + 1] = Math.cos(lat) * Math.sin(lng);
+            mPoints[3 * i + 2] = Math.sin(lat);
+            mItems[i] = i;
+        }
+        build(0, count);
+    }
+
+    public int size() {
+        return mLats.length;
+    }
+
+    /**
+     * Finds the places closest to a point
+     *
+     * @param lat latitude of the query point, in degrees
+     * @param lng longitude of the query point, in degrees
+     * @param n   the maximum number of places to return
+     * @return indices of the min(n, size()) nearest places, closest first
+     */
+    public int[] nearest(double lat, double lng, int n) {
+        n = Math.min(n, size());
+        if (n <= 0) return new int[0];
+        double latRadians = Math.toRadians(lat);
+        double lngRadians = Math.toRadians(lng);
+        double x = Math.cos(latRadians) * Math.cos(lngRadians);
+        double y = Math.cos(latRadians) * Math.sin(lngRadians);
+        double z = Math.sin(latRadians);
+        // Bounded max-heap of the best candidates found so far, keyed by squared chord
+        int[] heapItems = new int[n];
+        double[] heapDistances = new double[n];
+        int heapSize = searchNearest(0, size(), x, y, z, heapItems, heapDistances, 0);
+
+        // Pop the heap from the back to get the results closest first
+        int[] result = new int[heapSize];
+        for (int i = heapSize - 1; i >= 0; i--) {
+            result[i] = heapItems[0];
+            heapItems[0] = heapItems[i];
+            heapDistances[0] = heapDistances[i];
+            siftDown(heapItems, heapDistances, i);
+        }
+        return result;
+    }
+
+    /**
+     * Finds every place within a distance of a point, in no particular order, without
+     * allocating
+     *
+     * @param lat          latitude of the query point, in degrees
+     * @param lng          longitude of the query point, in degrees
+     * @param radiusMeters the distance to search within, in meters
+     * @param result       receives the indices of the first result.length places found
+     * @return the number of places found, which may exceed result.length; the query must then
+     * be repeated with a larger array
+     */
+    public int within(double lat, double lng, double radiusMeters, int[] result) {
+        if (size() == 0 || radiusMeters < 0) return 0;
+        double latRadians = Math.toRadians(lat);
+        double lngRadians = Math.toRadians(lng);
+        double x = Math.cos(latRadians) * Math.cos(lngRadians);
+        double y = Math.cos(latRadians) * Math.sin(lngRadians);
+        double z = Math.sin(latRadians);
+        // The chord spanning the radius; half the globe away or more covers everything
+        double angle = Math.min(Math.PI, radiusMeters / EARTH_RADIUS_METERS);
+        double chord = 2 * Math.sin(angle / 2);
+        return searchWithin(0, size(), x, y, z, chord * chord, result, 0);
+    }
+
+    public double getLatitude(int index) {
+        return mLats[index];
+    }
+
+    public double getLongitude(int index) {
+        return mLngs[index];
+    }
+
+    /**
+     * @return the great-circle distance between two points, in meters
+     */
+    public static double distanceMeters(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double sinLat = Math.sin(dLat / 2);
+        double sinLng = Math.sin(dLng / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * sinLng * sinLng;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Arranges the positions [lo, hi) into a subtree
+     */
+    private void build(int lo, int hi) {
+        if (hi - lo <= LEAF_SIZE) return;
+        // Split along the axis the points spread the most on
+        int axis = 0;
+        double widest = -1;
+        for (int a = 0; a < 3; a++) {
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (int i = lo; i < hi; i++) {
+                min = Math.min(min, mPoints[3 * i + a]);
+                max = Math.max(max, mPoints[3 * i + a]);
+            }
+            if (max - min > widest) {
+                widest = max - min;
+                axis = a;
+            }
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        mAxes[mid] = (byte) axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    /**
+     * Partially sorts the positions [left, right] along an axis so that position k holds the
+     * point that belongs there, with no greater point before it and no smaller point after it
+     */
+    private void select(int left, int right, int k, int axis) {
+        while (left < right) {
+            // Median of three as the pivot, which also keeps sorted input fast
+            int middle = (left + right) >>> 1;
+            if (coord(middle, axis) < coord(left, axis)) swap(middle, left);
+            if (coord(right, axis) < coord(left, axis)) swap(right, left);
+            if (coord(right, axis) < coord(middle, axis)) swap(right, middle);
+            double pivot = coord(middle, axis);
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (coord(i, axis) < pivot) i++;
+                while (coord(j, axis) > pivot) j--;
+                if (i <= j) swap(i++, j--);
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Offers the places of the subtree [lo, hi) to the heap of nearest candidates
+     *
+     * @return the new heap size
+     */
+    private int searchNearest(int lo, int hi, double x, double y, double z, int[] heapItems,
+                              double[] heapDistances, int heapSize) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                heapSize = offer(i, chord2(i, x, y, z), heapItems, heapDistances, heapSize);
+            }
+            return heapSize;
+        }
+        int mid = (lo + hi) >>> 1;
+        int axis = mAxes[mid];
+        double offset = (axis == 0 ? x : axis == 1 ? y : z) - coord(mid, axis);
+        // The side of the split holding the query point first, the other only if it can still
+        // hold something closer than the current worst candidate
+        if (offset < 0) {
+            heapSize = searchNearest(lo, mid, x, y, z, heapItems, heapDistances, heapSize);
+        } else {
+            heapSize = searchNearest(mid + 1, hi, x, y, z, heapItems, heapDistances, heapSize);
+        }
+        heapSize = offer(mid, chord2(mid, x, y, z), heapItems, heapDistances, heapSize);
+        if (heapSize < heapItems.length || offset * offset < heapDistances[0]) {
+            if (offset < 0) {
+                heapSize = searchNearest(mid + 1, hi, x, y, z, heapItems, heapDistances, heapSize);
+            } else {
+                heapSize = searchNearest(lo, mid, x, y, z, heapItems, heapDistances, heapSize);
+            }
+        }
+        return heapSize;
+    }
+
+    /**
+     * Collects the places of the subtree [lo, hi) within a squared chord of the query point
+     *
+     * @return the new number of places found
+     */
+    private int searchWithin(int lo, int hi, double x, double y, double z, double maxChord2,
+                             int[] result, int found) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++) {
+                if (chord2(i, x, y, z) > maxChord2) continue;
+                if (found < result.length) result[found] = mItems[i];
+                found++;
+            }
+            return found;
+        }
+        int mid = (lo + hi) >>> 1;
+        int axis = mAxes[mid];
+        double offset = (axis == 0 ? x : axis == 1 ? y : z) - coord(mid, axis);
+        if (offset < 0 || offset * offset <= maxChord2) {
+            found = searchWithin(lo, mid, x, y, z, maxChord2, result, found);
+        }
+        if (chord2(mid, x, y, z) <= maxChord2) {
+            if (found < result.length) result[found] = mItems[mid];
+            found++;
+        }
+        if (offset >= 0 || offset * offset <= maxChord2) {
+            found = searchWithin(mid + 1, hi, x, y, z, maxChord2, result, found);
+        }
+        return found;
+    }
+
+    /**
+     * Adds a tree position to the bounded heap if it is closer than the worst candidate
+     *
+     * @return the new heap size
+     */
+    private int offer(int position, double distance, int[] heapItems, double[] heapDistances,
+                      int heapSize) {
+        if (heapSize < heapItems.length) {
+            heapItems[heapSize] = mItems[position];
+            heapDistances[heapSize] = distance;
+            siftUp(heapItems, heapDistances, heapSize);
+            return heapSize + 1;
+        }
+        if (distance < heapDistances[0]) {
+            heapItems[0] = mItems[position];
+            heapDistances[0] = distance;
+            siftDown(heapItems, heapDistances, heapSize);
+        }
+        return heapSize;
+    }
+
+    private double coord(int position, int axis) {
+        return mPoints[3 * position + axis];
+    }
+
+    /**
+     * @return the squared chord between the place at a tree position and a unit vector
+     */
+    private double chord2(int position, double x, double y, double z) {
+        double dx = mPoints[3 * position] - x;
+        double dy = mPoints[3 * position + 1] - y;
+        double dz = mPoints[3 * position + 2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private void swap(int a, int b) {
+        for (int axis = 0; axis < 3; axis++) {
+            double coord = mPoints[3 * a + axis];
+            mPoints[3 * a + axis] = mPoints[3 * b + axis];
+            mPoints[3 * b + axis] = coord;
+        }
+        int item = mItems[a];
+        mItems[a] = mItems[b];
+        mItems[b] = item;
+    }
+
+    private static void siftUp(int[] items, double[] distances, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (distances[parent] >= distances[i]) return;
+            swap(items, distances, parent, i);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] items, double[] distances, int size) {
+        int i = 0;
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && distances[left] > distances[largest]) largest = left;
+            if (right < size && distances[right] > distances[largest]) largest = right;
+            if (largest == i) return;
+            swap(items, distances, largest, i);
+            i = largest;
+        }
+    }
+
+    private static void swap(int[] items, double[] distances, int a, int b) {
+        int item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+        double distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+    }
+}
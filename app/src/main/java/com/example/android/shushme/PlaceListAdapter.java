@@ -16,23 +16,48 @@ package com.example.android.shushme;
 * limitations under the License.
 */
 
+import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-import com.google.android.gms.location.places.PlaceBuffer;
+import com.example.android.shushme.provider.PlaceContract;
 
 public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.PlaceViewHolder> {
 
+    // Only the columns the list shows
+    private static final String[] PAGE_PROJECTION = {
+            PlaceContract.PlaceEntry._ID,
+            PlaceContract.PlaceEntry.COLUMN_PLACE_NAME,
+            PlaceContract.PlaceEntry.COLUMN_PLACE_ADDRESS
+    };
+    // Places read per page, and how close to the last loaded place the next page is requested
+    private static final int PAGE_SIZE = 50;
+    private static final int PREFETCH_DISTANCE = 10;
+
     private Context mContext;
-    private PlaceBuffer mPlaces;
-    
-    public PlaceListAdapter(Context context, PlaceBuffer places) {
+    // The places loaded so far, in _id order
+    private PlaceSnapshot mPlaces;
+    private boolean mHasMorePlaces;
+    private boolean mLoadingPlaces;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Incremented on every refresh, so that loads finishing after a newer refresh are dropped
+    private int mGeneration;
+
+    public PlaceListAdapter(Context context) {
         this.mContext = context;
-        this.mPlaces = places;
+        this.mPlaces = PlaceSnapshot.EMPTY;
+        // Rows are identified by their _id, so RecyclerView can keep and animate them
+        setHasStableIds(true);
     }
 
     @Override
@@ -45,24 +70,135 @@ public class PlaceListAdapter extends RecyclerView.Adapter<PlaceListAdapter.Plac
 
     @Override
     public void onBindViewHolder(PlaceViewHolder holder, int position) {
-        String placeName = mPlaces.get(position).getName().toString();
-        String placeAddress = mPlaces.get(position).getAddress().toString();
+        // Name and address stay empty until the place details have been fetched once
+        String placeName = mPlaces.getName(position);
+        String placeAddress = mPlaces.getAddress(position);
         holder.nameTextView.setText(placeName);
         holder.addressTextView.setText(placeAddress);
+        if (mHasMorePlaces && !mLoadingPlaces && position >= mPlaces.size() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
     }
 
-    public void swapPlaces(PlaceBuffer newPlaces){
-        mPlaces = newPlaces;
-        if (mPlaces != null) {
-            // Force the RecyclerView to refresh
-            this.notifyDataSetChanged();
+    /**
+     * Re-reads the places loaded so far (at least one page) after the places table changed.
+     * The difference to the current places is computed on a background thread and only the
+     * changed rows are rebound.
+     */
+    public void refreshPlaces() {
+        final int generation = ++mGeneration;
+        final PlaceSnapshot oldPlaces = mPlaces;
+        final int limit = Math.max(PAGE_SIZE, oldPlaces.size());
+        final ContentResolver contentResolver = mContext.getContentResolver();
+        mLoadingPlaces = true;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PlaceSnapshot newPlaces = queryPage(contentResolver, 0, limit);
+                // Rows come sorted by _id, so there are no moves to detect
+                final DiffUtil.DiffResult diffResult = DiffUtil.calculateDiff(
+                        new PlaceDiffCallback(oldPlaces, newPlaces), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) return;
+                        mPlaces = newPlaces;
+                        mHasMorePlaces = newPlaces.size() == limit;
+                        mLoadingPlaces = false;
+                        diffResult.dispatchUpdatesTo(PlaceListAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Appends the page of places following the last loaded place
+     */
+    private void loadNextPage() {
+        final int generation = mGeneration;
+        final PlaceSnapshot oldPlaces = mPlaces;
+        final long afterId = oldPlaces.size() == 0 ? 0 : oldPlaces.getRowId(oldPlaces.size() - 1);
+        final ContentResolver contentResolver = mContext.getContentResolver();
+        mLoadingPlaces = true;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PlaceSnapshot page = queryPage(contentResolver, afterId, PAGE_SIZE);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A refresh since then already covers or replaces this page
+                        if (generation != mGeneration) return;
+                        mPlaces = PlaceSnapshot.concat(oldPlaces, page);
+                        mHasMorePlaces = page.size() == PAGE_SIZE;
+                        mLoadingPlaces = false;
+                        notifyItemRangeInserted(oldPlaces.size(), page.size());
+                    }
+                });
+            }
+        });
+    }
+
+    private static PlaceSnapshot queryPage(ContentResolver contentResolver, long afterId, int limit) {
+        Cursor data = contentResolver.query(
+                PlaceContract.PlaceEntry.buildPageUri(afterId, limit),
+                PAGE_PROJECTION,
+                null,
+                null,
+                null);
+        try {
+            return PlaceSnapshot.fromCursor(data);
+        } finally {
+            if (data != null) data.close();
         }
     }
 
+    @Override
+    public long getItemId(int position) {
+        return mPlaces.getRowId(position);
+    }
+
     @Override
     public int getItemCount() {
-        if(mPlaces==null) return 0;
-        return mPlaces.getCount();
+        return mPlaces.size();
+    }
+
+    /**
+     * Compares two snapshots row by row: rows are the same place if they share an _id, and
+     * need rebinding only if their displayed name or address changed
+     */
+    private static class PlaceDiffCallback extends DiffUtil.Callback {
+        private final PlaceSnapshot mOldPlaces;
+        private final PlaceSnapshot mNewPlaces;
+
+        PlaceDiffCallback(PlaceSnapshot oldPlaces, PlaceSnapshot newPlaces) {
+            mOldPlaces = oldPlaces;
+            mNewPlaces = newPlaces;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldPlaces.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewPlaces.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldPlaces.getRowId(oldItemPosition) == mNewPlaces.getRowId(newItemPosition);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return TextUtils.equals(mOldPlaces.getName(oldItemPosition),
+                    mNewPlaces.getName(newItemPosition)) &&
+                    TextUtils.equals(mOldPlaces.getAddress(oldItemPosition),
+                            mNewPlaces.getAddress(newItemPosition));
+        }
     }
 
     class PlaceViewHolder extends RecyclerView.ViewHolder {
@@ -0,0 +1,235 @@
+package com.example.android.shushme;
+
+import java.util.Random;
+
+/**
+ * A polygon-shaped quiet zone, for venues that a circle around one point fits badly.
+ * <p>
+ * A polygon is stored as text, "lat,lng;lat,lng;..." with its vertices in order. Parsing
+ * projects the vertices once into a local flat frame in meters, which is accurate at the scale
+ * of a building, and precomputes everything {@link #contains(double, double)} needs: a point
+ * outside the bounding box is rejected right away, and one inside it costs a single pass of
+ * additions and multiplications over the edges, about a microsecond for hundreds of vertices.
+ * <p>
+ * Geofences are circles, so a polygon is registered as its minimal enclosing circle and entries
+ * into that circle are confirmed against the polygon itself, by the fix that triggered them or
+ * by a later one.
+ * <p>
+ * Pure Java so it can be unit-tested on a plain JVM.
+ */
+public class PlacePolygon {
+
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    // Tolerance of the enclosing circle tests, in meters
+    private static final double EPSILON = 1e-6;
+
+    // Projection origin: the mean of the vertices
+    private final double mRefLat;
+    private final double mRefLng;
+    private final double mMetersPerLngDegree;
+    // Vertices in the local frame, in meters; vertex n wraps around to vertex 0
+    private final double[] mXs;
+    private final double[] mYs;
+    // Per edge i from vertex i to i + 1, how much x moves per meter of y
+    private final double[] mSlopes;
+    private final double mMinX;
+    private final double mMaxX;
+    private final double mMinY;
+    private final double mMaxY;
+    // Minimal enclosing circle, center in the local frame
+    private final double mCenterX;
+    private final double mCenterY;
+    private final double mRadius;
+
+    private PlacePolygon(double[] lats, double[] lngs) {
+        int count = lats.length;
+        double sumLat = 0, sumLng = 0;
+        for (int i = 0; i < count; i++) {
+            sumLat += lats[i];
+            sumLng += lngs[i];
+        }
+        mRefLat = sumLat / count;
+        mRefLng = sumLng / count;
+        mMetersPerLngDegree = METERS_PER_DEGREE * Math.cos(Math.toRadians(mRefLat));
+
+        mXs = new double[count + 1];
+        mYs = new double[count + 1];
+        double minX = Double.MAX_VALUE, maxX = -Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            mXs[i] = (lngs[i] - mRefLng) * mMetersPerLngDegree;
+            mYs[i] = (lats[i] - mRefLat) * METERS_PER_DEGREE;
+            minX = Math.min(minX, mXs[i]);
+            maxX = Math.max(maxX, mXs[i]);
+            minY = Math.min(minY, mYs[i]);
+            maxY = Math.max(maxY, mYs[i]);
+        }
+        mXs[count] = mXs[0];
+        mYs[count] = mYs[0];
+        mMinX = minX;
+        mMaxX = maxX;
+        mMinY = minY;
+        mMaxY = maxY;
+        mSlopes = new double[count];
+        for (int i = 0; i < count; i++) {
+            double dy = mYs[i + 1] - mYs[i];
+            // Horizontal edges are never crossed by the horizontal ray
+            mSlopes[i] = dy == 0 ? 0 : (mXs[i + 1] - mXs[i]) / dy;
+        }
+
+        double[] circle = enclosingCircle(mXs, mYs, count);
+        mCenterX = circle[0];
+        mCenterY = circle[1];
+        mRadius = circle[2];
+    }
+
+    /**
+     * @param encoded the polygon as "lat,lng;lat,lng;...", or null
+     * @return the polygon, or null if there is none or it has fewer than three vertices or an
+     * unreadable coordinate
+     */
+    public static PlacePolygon parse(String encoded) {
+        if (encoded == null) return null;
+        String[] vertices = encoded.trim().split("\\s*;\\s*");
+        if (vertices.length < 3) return null;
+        double[] lats = new double[vertices.length];
+        double[] lngs = new double[vertices.length];
+        try {
+            for (int i = 0; i < vertices.length; i++) {
+                String[] coordinates = vertices[i].split("\\s*,\\s*");
+                if (coordinates.length != 2) return null;
+                lats[i] = Double.parseDouble(coordinates[0]);
+                lngs[i] = Double.parseDouble(coordinates[1]);
+                if (Double.isNaN(lats[i]) || Double.isNaN(lngs[i])) return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new PlacePolygon(lats, lngs);
+    }
+
+    /**
+     * @param lats latitudes of the vertices, in order, in degrees
+     * @param lngs longitudes of the vertices, in degrees
+     * @return the polygon as stored in the places table
+     */
+    public static String encode(double[] lats, double[] lngs) {
+        StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < lats.length; i++) {
+            encoded.append(i == 0 ? "" : ";").append(lats[i]).append(',').append(lngs[i]);
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Tests whether a point lies inside the polygon, by the even-odd rule
+     *
+     * @param lat latitude of the point, in degrees
+     * @param lng longitude of the point, in degrees
+     * @return true if the point is inside
+     */
+    public boolean contains(double lat, double lng) {
+        double x = (lng - mRefLng) * mMetersPerLngDegree;
+        double y = (lat - mRefLat) * METERS_PER_DEGREE;
+        if (x < mMinX || x > mMaxX || y < mMinY || y > mMaxY) return false;
+        // Count the edges crossed by a ray going from the point towards +x
+        boolean inside = false;
+        for (int i = 0; i < mSlopes.length; i++) {
+            double y1 = mYs[i];
+            double y2 = mYs[i + 1];
+            if ((y1 > y) != (y2 > y) && x < mXs[i] + (y - y1) * mSlopes[i]) inside = !inside;
+        }
+        return inside;
+    }
+
+    public double getCenterLatitude() {
+        return mRefLat + mCenterY / METERS_PER_DEGREE;
+    }
+
+    public double getCenterLongitude() {
+        return mRefLng + mCenterX / mMetersPerLngDegree;
+    }
+
+    /**
+     * @return the radius of the minimal enclosing circle, in meters
+     */
+    public float getRadius() {
+        // Rounded up so the float radius still encloses every vertex
+        return (float) Math.ceil(mRadius);
+    }
+
+    /**
+     * Computes the minimal enclosing circle of points with Welzl's algorithm, in its iterative
+     * form over a shuffled order, which takes expected linear time
+     *
+     * @return the circle as {x, y, radius}
+     */
+    private static double[] enclosingCircle(double[] xs, double[] ys, int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        // A fixed seed keeps the circle, and so the registered fence, stable between runs
+        Random random = new Random(count);
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        double[] circle = {xs[order[0]], ys[order[0]], 0};
+        for (int i = 1; i < count; i++) {
+            int p = order[i];
+            if (encloses(circle, xs[p], ys[p])) continue;
+            // p lies on the boundary of the circle enclosing the first i points
+            circle[0] = xs[p];
+            circle[1] = ys[p];
+            circle[2] = 0;
+            for (int j = 0; j < i; j++) {
+                int q = order[j];
+                if (encloses(circle, xs[q], ys[q])) continue;
+                // ... and so does q
+                diameter(xs[p], ys[p], xs[q], ys[q], circle);
+                for (int k = 0; k < j; k++) {
+                    int r = order[k];
+                    if (encloses(circle, xs[r], ys[r])) continue;
+                    circumcircle(xs[p], ys[p], xs[q], ys[q], xs[r], ys[r], circle);
+                }
+            }
+        }
+        return circle;
+    }
+
+    private static boolean encloses(double[] circle, double x, double y) {
+        return Math.hypot(x - circle[0], y - circle[1]) <= circle[2] + EPSILON;
+    }
+
+    private static void diameter(double x1, double y1, double x2, double y2, double[] out) {
+        out[0] = (x1 + x2) / 2;
+        out[1] = (y1 + y2) / 2;
+        out[2] = Math.hypot(x1 - x2, y1 - y2) / 2;
+    }
+
+    private static void circumcircle(double x1, double y1, double x2, double y2,
+                                     double x3, double y3, double[] out) {
+        double bx = x2 - x1, by = y2 - y1;
+        double cx = x3 - x1, cy = y3 - y1;
+        double d = 2 * (bx * cy - by * cx);
+        if (Math.abs(d) < EPSILON) {
+            // Collinear: the circle through the two farthest points
+            double d12 = Math.hypot(bx, by);
+            double d13 = Math.hypot(cx, cy);
+            double d23 = Math.hypot(x3 - x2, y3 - y2);
+            if (d12 >= d13 && d12 >= d23) diameter(x1, y1, x2, y2, out);
+            else if (d13 >= d23) diameter(x1, y1, x3, y3, out);
+            else diameter(x2, y2, x3, y3, out);
+            return;
+        }
+        double b2 = bx * bx + by * by;
+        double c2 = cx * cx + cy * cy;
+        double ux = (cy * b2 - by * c2) / d;
+        double uy = (bx * c2 - cx * b2) / d;
+        out[0] = x1 + ux;
+        out[1] = y1 + uy;
+        out[2] = Math.hypot(ux, uy);
+    }
+}
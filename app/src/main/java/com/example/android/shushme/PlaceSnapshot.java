@@ -0,0 +1,289 @@
+package com.example.android.shushme;
+
+import android.database.Cursor;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.lang.reflect.Array;
+
+/**
+ * An immutable, compact copy of the places table, built once per refresh and shared by the
+ * list adapter and the geofence builder.
+ * <p>
+ * Rows are stored column-wise: coordinates and timestamps in primitive arrays, text in
+ * interned strings so that identical values are shared between refreshes. Places whose
+ * details were never fetched have NaN coordinates. Unset radii are NaN and unset integer
+ * geofence settings are {@link GeofenceSettings#UNSET}. Polygons and schedules are kept
+ * encoded, and null for circular places and places that are always active.
+ */
+public class PlaceSnapshot {
+
+    public static final PlaceSnapshot EMPTY = new PlaceSnapshot(0);
+
+    private final long[] mRowIds;
+    private final String[] mPlaceIds;
+    private final String[] mNames;
+    private final String[] mAddresses;
+    private final double[] mLats;
+    private final double[] mLngs;
+    private final long[] mFetchedAt;
+    private final double[] mViewportRadii;
+    private final double[] mRadii;
+    private final int[] mLoiteringDelays;
+    private final int[] mResponsiveness;
+    private final String[] mPolygons;
+    private final String[] mSchedules;
+
+    private PlaceSnapshot(int size) {
+        mRowIds = new long[size];
+        mPlaceIds = new String[size];
+        mNames = new String[size];
+        mAddresses = new String[size];
+        mLats = new double[size];
+        mLngs = new double[size];
+        mFetchedAt = new long[size];
+        mViewportRadii = new double[size];
+        mRadii = new double[size];
+        mLoiteringDelays = new int[size];
+        mResponsiveness = new int[size];
+        mPolygons = new String[size];
+        mSchedules = new String[size];
+    }
+
+    /**
+     * Copies every row of a places Cursor. Columns missing from the Cursor's projection are
+     * left empty. The Cursor is not closed.
+     *
+     * @param places Cursor over the places table
+     * @return the snapshot of the rows
+     */
+    public static PlaceSnapshot fromCursor(Cursor places) {
+        if (places == null || places.getCount() == 0) return EMPTY;
+        PlaceSnapshot snapshot = new PlaceSnapshot(places.getCount());
+        int rowIdIndex = places.getColumnIndex(PlaceEntry._ID);
+        int placeIdIndex = places.getColumnIndex(PlaceEntry.COLUMN_PLACE_ID);
+        int nameIndex = places.getColumnIndex(PlaceEntry.COLUMN_PLACE_NAME);
+        int addressIndex = places.getColumnIndex(PlaceEntry.COLUMN_PLACE_ADDRESS);
+        int latIndex = places.getColumnIndex(PlaceEntry.COLUMN_PLACE_LATITUDE);
+        int lngIndex = places.getColumnIndex(PlaceEntry.COLUMN_PLACE_LONGITUDE);
+        int fetchedAtIndex = places.getColumnIndex(PlaceEntry.COLUMN_FETCHED_AT);
+        int viewportRadiusIndex = places.getColumnIndex(PlaceEntry.COLUMN_VIEWPORT_RADIUS);
+        int radiusIndex = places.getColumnIndex(PlaceEntry.COLUMN_RADIUS);
+        int loiteringDelayIndex = places.getColumnIndex(PlaceEntry.COLUMN_LOITERING_DELAY);
+        int responsivenessIndex = places.getColumnIndex(PlaceEntry.COLUMN_RESPONSIVENESS);
+        int polygonIndex = places.getColumnIndex(PlaceEntry.COLUMN_POLYGON);
+        int scheduleIndex = places.getColumnIndex(PlaceEntry.COLUMN_SCHEDULE);
+        int row = 0;
+        places.moveToPosition(-1);
+        while (places.moveToNext()) {
+            snapshot.mRowIds[row] = rowIdIndex < 0 ? -1 : places.getLong(rowIdIndex);
+            snapshot.mPlaceIds[row] = getInterned(places, placeIdIndex);
+            snapshot.mNames[row] = getInterned(places, nameIndex);
+            snapshot.mAddresses[row] = getInterned(places, addressIndex);
+            snapshot.mLats[row] = getDouble(places, latIndex);
+            snapshot.mLngs[row] = getDouble(places, lngIndex);
+            snapshot.mFetchedAt[row] = fetchedAtIndex < 0 ? 0 : places.getLong(fetchedAtIndex);
+            snapshot.mViewportRadii[row] = getDouble(places, viewportRadiusIndex);
+            snapshot.mRadii[row] = getDouble(places, radiusIndex);
+            snapshot.mLoiteringDelays[row] = getInt(places, loiteringDelayIndex);
+            snapshot.mResponsiveness[row] = getInt(places, responsivenessIndex);
+            // Polygons are too large and too rarely shared to be worth interning
+            snapshot.mPolygons[row] = polygonIndex < 0 || places.isNull(polygonIndex) ? null :
+                    places.getString(polygonIndex);
+            snapshot.mSchedules[row] = getInterned(places, scheduleIndex);
+            row++;
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return a snapshot of the rows of first followed by the rows of second
+     */
+    public static PlaceSnapshot concat(PlaceSnapshot first, PlaceSnapshot second) {
+        if (second.size() == 0) return first;
+        if (first.size() == 0) return second;
+        int firstSize = first.size();
+        PlaceSnapshot snapshot = new PlaceSnapshot(firstSize + second.size());
+        copy(first.mRowIds, second.mRowIds, snapshot.mRowIds, firstSize);
+        copy(first.mPlaceIds, second.mPlaceIds, snapshot.mPlaceIds, firstSize);
+        copy(first.mNames, second.mNames, snapshot.mNames, firstSize);
+        copy(first.mAddresses, second.mAddresses, snapshot.mAddresses, firstSize);
+        copy(first.mLats, second.mLats, snapshot.mLats, firstSize);
+        copy(first.mLngs, second.mLngs, snapshot.mLngs, firstSize);
+        copy(first.mFetchedAt, second.mFetchedAt, snapshot.mFetchedAt, firstSize);
+        copy(first.mViewportRadii, second.mViewportRadii, snapshot.mViewportRadii, firstSize);
+        copy(first.mRadii, second.mRadii, snapshot.mRadii, firstSize);
+        copy(first.mLoiteringDelays, second.mLoiteringDelays, snapshot.mLoiteringDelays, firstSize);
+        copy(first.mResponsiveness, second.mResponsiveness, snapshot.mResponsiveness, firstSize);
+        copy(first.mPolygons, second.mPolygons, snapshot.mPolygons, firstSize);
+        copy(first.mSchedules, second.mSchedules, snapshot.mSchedules, firstSize);
+        return snapshot;
+    }
+
+    /**
+     * @return a snapshot of the first rows of this one
+     */
+    private PlaceSnapshot head(int size) {
+        if (size == size()) return this;
+        PlaceSnapshot snapshot = new PlaceSnapshot(size);
+        System.arraycopy(mRowIds, 0, snapshot.mRowIds, 0, size);
+        System.arraycopy(mPlaceIds, 0, snapshot.mPlaceIds, 0, size);
+        System.arraycopy(mNames, 0, snapshot.mNames, 0, size);
+        System.arraycopy(mAddresses, 0, snapshot.mAddresses, 0, size);
+        System.arraycopy(mLats, 0, snapshot.mLats, 0, size);
+        System.arraycopy(mLngs, 0, snapshot.mLngs, 0, size);
+        System.arraycopy(mFetchedAt, 0, snapshot.mFetchedAt, 0, size);
+        System.arraycopy(mViewportRadii, 0, snapshot.mViewportRadii, 0, size);
+        System.arraycopy(mRadii, 0, snapshot.mRadii, 0, size);
+        System.arraycopy(mLoiteringDelays, 0, snapshot.mLoiteringDelays, 0, size);
+        System.arraycopy(mResponsiveness, 0, snapshot.mResponsiveness, 0, size);
+        System.arraycopy(mPolygons, 0, snapshot.mPolygons, 0, size);
+        System.arraycopy(mSchedules, 0, snapshot.mSchedules, 0, size);
+        return snapshot;
+    }
+
+    public int size() {
+        return mRowIds.length;
+    }
+
+    public long getRowId(int position) {
+        return mRowIds[position];
+    }
+
+    public String getPlaceId(int position) {
+        return mPlaceIds[position];
+    }
+
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    public String getAddress(int position) {
+        return mAddresses[position];
+    }
+
+    /**
+     * @return true if the place's coordinates are known
+     */
+    public boolean hasLocation(int position) {
+        return !Double.isNaN(mLats[position]) && !Double.isNaN(mLngs[position]);
+    }
+
+    public double getLatitude(int position) {
+        return mLats[position];
+    }
+
+    public double getLongitude(int position) {
+        return mLngs[position];
+    }
+
+    public long getFetchedAt(int position) {
+        return mFetchedAt[position];
+    }
+
+    public double getViewportRadius(int position) {
+        return mViewportRadii[position];
+    }
+
+    public double getRadius(int position) {
+        return mRadii[position];
+    }
+
+    public int getLoiteringDelay(int position) {
+        return mLoiteringDelays[position];
+    }
+
+    public int getResponsiveness(int position) {
+        return mResponsiveness[position];
+    }
+
+    /**
+     * @return the place's polygon as stored in the places table, or null for a circular place
+     */
+    public String getPolygon(int position) {
+        return mPolygons[position];
+    }
+
+    /**
+     * @return the place's schedule as stored in the places table, or null if always active
+     */
+    public String getSchedule(int position) {
+        return mSchedules[position];
+    }
+
+    private static void copy(Object first, Object second, Object into, int firstSize) {
+        System.arraycopy(first, 0, into, 0, firstSize);
+        System.arraycopy(second, 0, into, firstSize, Array.getLength(second));
+    }
+
+    private static String getInterned(Cursor places, int index) {
+        if (index < 0 || places.isNull(index)) return null;
+        return places.getString(index).intern();
+    }
+
+    private static double getDouble(Cursor places, int index) {
+        if (index < 0 || places.isNull(index)) return Double.NaN;
+        return places.getDouble(index);
+    }
+
+    private static int getInt(Cursor places, int index) {
+        if (index < 0 || places.isNull(index)) return GeofenceSettings.UNSET;
+        return places.getInt(index);
+    }
+
+    /**
+     * Builds a snapshot place by place, for places that don't come from the places table.
+     * Each setter applies to the place added last.
+     */
+    public static class Builder {
+        private final PlaceSnapshot mSnapshot;
+        private int mSize;
+
+        /**
+         * @param capacity the most places that will be added
+         */
+        public Builder(int capacity) {
+            mSnapshot = new PlaceSnapshot(capacity);
+        }
+
+        /**
+         * Adds a place with no name or address and every geofence setting unset
+         */
+        public Builder addPlace(String placeId, double latitude, double longitude) {
+            int row = mSize++;
+            mSnapshot.mRowIds[row] = -1;
+            mSnapshot.mPlaceIds[row] = placeId;
+            mSnapshot.mLats[row] = latitude;
+            mSnapshot.mLngs[row] = longitude;
+            mSnapshot.mViewportRadii[row] = Double.NaN;
+            mSnapshot.mRadii[row] = Double.NaN;
+            mSnapshot.mLoiteringDelays[row] = GeofenceSettings.UNSET;
+            mSnapshot.mResponsiveness[row] = GeofenceSettings.UNSET;
+            return this;
+        }
+
+        public Builder setRadius(double radius) {
+            mSnapshot.mRadii[mSize - 1] = radius;
+            return this;
+        }
+
+        public Builder setLoiteringDelay(int loiteringDelay) {
+            mSnapshot.mLoiteringDelays[mSize - 1] = loiteringDelay;
+            return this;
+        }
+
+        public Builder setPolygon(String polygon) {
+            mSnapshot.mPolygons[mSize - 1] = polygon;
+            return this;
+        }
+
+        public Builder setSchedule(String schedule) {
+            mSnapshot.mSchedules[mSize - 1] = schedule;
+            return this;
+        }
+
+        public PlaceSnapshot build() {
+            return mSnapshot.head(mSize);
+        }
+    }
+}
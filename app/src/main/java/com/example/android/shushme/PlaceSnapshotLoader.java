@@ -0,0 +1,90 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.AsyncTaskLoader;
+
+import com.example.android.shushme.provider.PlaceContract;
+
+import java.util.Arrays;
+
+/**
+ * Loads a {@link PlaceSnapshot} of the places table on a background thread.
+ * <p>
+ * The Cursor is closed as soon as the snapshot is built, so the loader watches the places URI
+ * itself and reloads whenever the provider notifies a change. Only the columns needed for the
+ * geofences and for refreshing stale details are loaded; the list pages in names and addresses
+ * on its own. Every row is still read, since the geofences are chosen among all places by
+ * their distance to the device, see {@link FencedPlaces#resolve}.
+ */
+public class PlaceSnapshotLoader extends AsyncTaskLoader<PlaceSnapshot> {
+
+    // The columns that decide the fences, plus the ones refreshing stale details needs
+    private static final String[] PROJECTION =
+            Arrays.copyOf(FencedPlaces.PROJECTION, FencedPlaces.PROJECTION.length + 2);
+
+    static {
+        int fenceColumns = FencedPlaces.PROJECTION.length;
+        PROJECTION[fenceColumns] = PlaceContract.PlaceEntry._ID;
+        PROJECTION[fenceColumns + 1] = PlaceContract.PlaceEntry.COLUMN_FETCHED_AT;
+    }
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private PlaceSnapshot mPlaces;
+    private boolean mObserving;
+
+    public PlaceSnapshotLoader(Context context) {
+        super(context);
+    }
+
+    @Override
+    public PlaceSnapshot loadInBackground() {
+        long start = Metrics.start();
+        Cursor data = getContext().getContentResolver().query(
+                PlaceContract.PlaceEntry.CONTENT_URI,
+                PROJECTION,
+                null,
+                null,
+                null);
+        try {
+            return PlaceSnapshot.fromCursor(data);
+        } finally {
+            if (data != null) data.close();
+            Metrics.record(Metrics.TIMER_PLACES_QUERY, start);
+        }
+    }
+
+    @Override
+    public void deliverResult(PlaceSnapshot data) {
+        if (isReset()) return;
+        mPlaces = data;
+        if (isStarted()) super.deliverResult(data);
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            getContext().getContentResolver().registerContentObserver(
+                    PlaceContract.PlaceEntry.CONTENT_URI, true, mObserver);
+            mObserving = true;
+        }
+        if (mPlaces != null) deliverResult(mPlaces);
+        if (takeContentChanged() || mPlaces == null) forceLoad();
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mPlaces = null;
+    }
+}
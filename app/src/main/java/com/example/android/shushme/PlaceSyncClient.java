@@ -0,0 +1,218 @@
+package com.example.android.shushme;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Talks to the places sync server: each exchange sends a batch of local changes and receives
+ * a page of the rows that changed on the server since the last synced version.
+ * <p>
+ * An exchange is a POST of a gzipped JSON object to {@code <server>/places/sync}:
+ * {@code {"since": 42, "limit": 1000, "changes": [row, ...]}}. The server applies the sent
+ * rows, then answers with a gzipped JSON object
+ * {@code {"version": 57, "more": false, "changes": [row, ...]}} holding, in version order, at
+ * most limit rows changed after since; version is the version to send as since next time,
+ * and more tells whether further pages follow. A row is an object keyed by the places
+ * table's column names: the place ID, the sync version, the deleted flag, and the place's
+ * synced columns. Rows are streamed in both directions, so a large page is never held as text.
+ * <p>
+ * Rows are maps from column name to a String, Long, Double or null value. Pure Java, so that
+ * it can be tested on a plain JVM against a local server.
+ */
+public class PlaceSyncClient {
+
+    private static final String SYNC_PATH = "/places/sync";
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 60 * 1000;
+
+    // The columns exchanged with the server and their types; the rest of a row, such as
+    // fetch times and the viewport radius, is specific to the device
+    private static final int TYPE_TEXT = 0;
+    private static final int TYPE_REAL = 1;
+    private static final int TYPE_INTEGER = 2;
+    private static final Map<String, Integer> SYNCED_COLUMNS = new HashMap<>();
+
+    static {
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_PLACE_ID, TYPE_TEXT);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_VERSION, TYPE_INTEGER);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_DELETED, TYPE_INTEGER);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_PLACE_NAME, TYPE_TEXT);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_PLACE_ADDRESS, TYPE_TEXT);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_PLACE_LATITUDE, TYPE_REAL);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, TYPE_REAL);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_RADIUS, TYPE_REAL);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_LOITERING_DELAY, TYPE_INTEGER);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_RESPONSIVENESS, TYPE_INTEGER);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_POLYGON, TYPE_TEXT);
+        SYNCED_COLUMNS.put(PlaceEntry.COLUMN_SCHEDULE, TYPE_TEXT);
+    }
+
+    /**
+     * The server's answer to an exchange
+     */
+    public static class Response {
+        // The version to send as since on the next exchange
+        public long version;
+        // Whether more changed rows are waiting on the server
+        public boolean more;
+        // The changed rows, keyed by column name
+        public final List<Map<String, Object>> changes = new ArrayList<>();
+    }
+
+    private final URL mUrl;
+
+    /**
+     * @param serverUrl the base URL of the sync server, e.g. http://10.0.2.2:8080
+     */
+    public PlaceSyncClient(String serverUrl) throws IOException {
+        mUrl = new URL(serverUrl.replaceAll("/+$", "") + SYNC_PATH);
+    }
+
+    /**
+     * @return the names of the columns exchanged with the server
+     */
+    public static String[] getSyncedColumns() {
+        return SYNCED_COLUMNS.keySet().toArray(new String[SYNCED_COLUMNS.size()]);
+    }
+
+    /**
+     * Sends local changes and receives the next page of server changes. Blocks, so must not
+     * be called on the main thread.
+     *
+     * @param since   the version of the last server change applied locally, 0 for none
+     * @param changes the local rows to send, keyed by column name
+     * @param limit   the most server changes to receive
+     * @return the server's answer
+     * @throws IOException if the server could not be reached or answered with an error
+     */
+    public Response exchange(long since, List<Map<String, Object>> changes, int limit)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            // Asking for gzip explicitly means the response has to be decompressed here
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+
+            JsonWriter writer = new JsonWriter(new BufferedWriter(
+                    new OutputStreamWriter(new GZIPOutputStream(
+                            new BufferedOutputStream(connection.getOutputStream())), "UTF-8")));
+            try {
+                writer.beginObject();
+                writer.name("since").value(since);
+                writer.name("limit").value(limit);
+                writer.name("changes").beginArray();
+                for (Map<String, Object> row : changes) writeRow(writer, row);
+                writer.endArray();
+                writer.endObject();
+            } finally {
+                writer.close();
+            }
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException(String.format("Sync server answered %d", status));
+            }
+            InputStream input = new BufferedInputStream(connection.getInputStream());
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                input = new GZIPInputStream(input);
+            }
+            JsonReader reader = new JsonReader(new InputStreamReader(input, "UTF-8"));
+            try {
+                return readResponse(reader);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static void writeRow(JsonWriter writer, Map<String, Object> row)
+            throws IOException {
+        writer.beginObject();
+        for (Map.Entry<String, Integer> column : SYNCED_COLUMNS.entrySet()) {
+            if (!row.containsKey(column.getKey())) continue;
+            writer.name(column.getKey());
+            Object value = row.get(column.getKey());
+            if (value == null) {
+                writer.nullValue();
+            } else if (column.getValue() == TYPE_TEXT) {
+                writer.value(value.toString());
+            } else {
+                writer.value((Number) value);
+            }
+        }
+        writer.endObject();
+    }
+
+    private static Response readResponse(JsonReader reader) throws IOException {
+        Response response = new Response();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("version".equals(name)) {
+                response.version = reader.nextLong();
+            } else if ("more".equals(name)) {
+                response.more = reader.nextBoolean();
+            } else if ("changes".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) response.changes.add(readRow(reader));
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return response;
+    }
+
+    private static Map<String, Object> readRow(JsonReader reader) throws IOException {
+        Map<String, Object> row = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Integer type = SYNCED_COLUMNS.get(name);
+            // Columns this version of the app doesn't know are ignored
+            if (type == null) {
+                reader.skipValue();
+            } else if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                row.put(name, null);
+            } else if (type == TYPE_TEXT) {
+                row.put(name, reader.nextString());
+            } else if (type == TYPE_REAL) {
+                row.put(name, reader.nextDouble());
+            } else if (reader.peek() == JsonToken.BOOLEAN) {
+                row.put(name, reader.nextBoolean() ? 1L : 0L);
+            } else {
+                row.put(name, reader.nextLong());
+            }
+        }
+        reader.endObject();
+        return row;
+    }
+}
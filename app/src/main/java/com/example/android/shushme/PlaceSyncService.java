@@ -0,0 +1,238 @@
+package com.example.android.shushme;
+
+import android.app.IntentService;
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.shushme.provider.PlaceContract;
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the places table in sync with a sync server, so that the same quiet zones can be
+ * provisioned to many devices.
+ * <p>
+ * Only changed rows are exchanged, through a {@link PlaceSyncClient}: the rows changed
+ * locally since they were last sent, including the tombstones of deleted places, go up in
+ * batches, and the rows changed on the server since the last synced version come down in
+ * pages. Each page is applied with a single applyBatch, so it is committed in one
+ * transaction together with clearing the change flags of the batch that was sent with it.
+ * The last synced version is saved after each page, so an interrupted sync resumes where it
+ * stopped. The server has the last word: a row it sends replaces the local one.
+ */
+public class PlaceSyncService extends IntentService {
+
+    public static final String TAG = PlaceSyncService.class.getSimpleName();
+    private static final String ACTION_SYNC = "com.example.android.shushme.action.SYNC";
+    private static final String EXTRA_SERVER_URL = "com.example.android.shushme.extra.SERVER_URL";
+    // Sync progress, kept per server so that switching servers starts from scratch
+    private static final String PREFERENCES_NAME = "PlaceSync";
+    private static final String KEY_SERVER_URL = "serverUrl";
+    private static final String KEY_SINCE = "since";
+    // Local changes sent per exchange, and server changes received per page
+    private static final int PUSH_BATCH_SIZE = 500;
+    private static final int PULL_PAGE_SIZE = 1000;
+
+    public PlaceSyncService() {
+        super(TAG);
+    }
+
+    /**
+     * Syncs the places table with a sync server in the background
+     *
+     * @param context   the context used to start the service
+     * @param serverUrl the base URL of the sync server
+     */
+    public static void startSync(Context context, String serverUrl) {
+        Intent intent = new Intent(context, PlaceSyncService.class);
+        intent.setAction(ACTION_SYNC);
+        intent.putExtra(EXTRA_SERVER_URL, serverUrl);
+        context.startService(intent);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (intent == null || !ACTION_SYNC.equals(intent.getAction())) return;
+        String serverUrl = intent.getStringExtra(EXTRA_SERVER_URL);
+        if (serverUrl == null) return;
+        SharedPreferences preferences = getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+        long since = serverUrl.equals(preferences.getString(KEY_SERVER_URL, null)) ?
+                preferences.getLong(KEY_SINCE, 0) : 0;
+
+        long start = Metrics.start();
+        long startMillis = SystemClock.elapsedRealtime();
+        int sent = 0;
+        int received = 0;
+        try {
+            PlaceSyncClient client = new PlaceSyncClient(serverUrl);
+            List<Map<String, Object>> localChanges = queryLocalChanges();
+            PlaceSyncClient.Response response;
+            do {
+                List<Map<String, Object>> batch = localChanges.subList(sent,
+                        Math.min(localChanges.size(), sent + PUSH_BATCH_SIZE));
+                response = client.exchange(since, batch, PULL_PAGE_SIZE);
+                applyChanges(batch, response.changes);
+                sent += batch.size();
+                received += response.changes.size();
+                since = response.version;
+                preferences.edit()
+                        .putString(KEY_SERVER_URL, serverUrl)
+                        .putLong(KEY_SINCE, since)
+                        .apply();
+                // An empty page can't advance, even if the server claims there is more
+            } while (sent < localChanges.size() || (response.more && !response.changes.isEmpty()));
+            long elapsedMillis = Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+            Log.i(TAG, String.format("Sent %d and received %d places in %d ms (%d rows/s)",
+                    sent, received, elapsedMillis, (sent + received) * 1000L / elapsedMillis));
+        } catch (IOException e) {
+            Metrics.increment(Metrics.COUNTER_SYNC_FAILURES);
+            Log.e(TAG, String.format("Sync failed : %s", e.getMessage()));
+        } catch (RemoteException e) {
+            Metrics.increment(Metrics.COUNTER_SYNC_FAILURES);
+            Log.e(TAG, String.format("Failed to apply synced places : %s", e.getMessage()));
+        } catch (OperationApplicationException e) {
+            Metrics.increment(Metrics.COUNTER_SYNC_FAILURES);
+            Log.e(TAG, String.format("Failed to apply synced places : %s", e.getMessage()));
+        } finally {
+            Metrics.record(Metrics.TIMER_PLACE_SYNC, start);
+            Metrics.add(Metrics.COUNTER_SYNC_ROWS_SENT, sent);
+            Metrics.add(Metrics.COUNTER_SYNC_ROWS_RECEIVED, received);
+        }
+        // Places from the server need fences, even if only part of the sync was applied
+        if (received > 0) {
+            LocalGeofenceReceiver.onPlacesChanged();
+            GeofenceSyncService.startReplan(this);
+        }
+    }
+
+    /**
+     * @return the rows changed locally since they were last sent, tombstones included, each
+     * with the number of its latest local change
+     */
+    private List<Map<String, Object>> queryLocalChanges() {
+        List<Map<String, Object>> changes = new ArrayList<>();
+        String[] syncedColumns = PlaceSyncClient.getSyncedColumns();
+        String[] projection = Arrays.copyOf(syncedColumns, syncedColumns.length + 1);
+        projection[syncedColumns.length] = PlaceEntry.COLUMN_DIRTY;
+        Cursor data = getContentResolver().query(
+                PlaceContract.asSyncCaller(PlaceEntry.CONTENT_URI),
+                projection,
+                PlaceEntry.COLUMN_DIRTY + " != 0",
+                null,
+                PlaceEntry._ID);
+        if (data == null) return changes;
+        try {
+            while (data.moveToNext()) {
+                Map<String, Object> row = new HashMap<>();
+                for (int i = 0; i < data.getColumnCount(); i++) {
+                    String column = data.getColumnName(i);
+                    switch (data.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            row.put(column, null);
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row.put(column, data.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row.put(column, data.getDouble(i));
+                            break;
+                        default:
+                            row.put(column, data.getString(i));
+                            break;
+                    }
+                }
+                changes.add(row);
+            }
+        } finally {
+            data.close();
+        }
+        return changes;
+    }
+
+    /**
+     * Marks the sent rows as synced and applies the received ones, in one transaction.
+     * <p>
+     * A sent row is only marked as synced if it has not changed locally since it was read,
+     * and is still deleted or not as it was sent, so that a place edited, deleted or re-added
+     * during the exchange stays dirty and goes up with the next sync.
+     */
+    private void applyChanges(List<Map<String, Object>> sent,
+                              List<Map<String, Object>> received)
+            throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (Map<String, Object> row : sent) {
+            Uri placeUri = PlaceContract.asSyncCaller(PlaceEntry.buildPlaceIdUri(
+                    (String) row.get(PlaceEntry.COLUMN_PLACE_ID)));
+            String[] sentChange = {String.valueOf(row.get(PlaceEntry.COLUMN_DIRTY))};
+            if (isDeleted(row)) {
+                // The server has the deletion, so the tombstone can go
+                operations.add(ContentProviderOperation.newDelete(placeUri)
+                        .withSelection(PlaceEntry.COLUMN_DIRTY + " = ? AND " +
+                                PlaceEntry.COLUMN_DELETED + " = 1", sentChange)
+                        .build());
+            } else {
+                operations.add(ContentProviderOperation.newUpdate(placeUri)
+                        .withValue(PlaceEntry.COLUMN_DIRTY, 0)
+                        .withSelection(PlaceEntry.COLUMN_DIRTY + " = ? AND " +
+                                PlaceEntry.COLUMN_DELETED + " = 0", sentChange)
+                        .build());
+            }
+        }
+        for (Map<String, Object> row : received) {
+            Object placeId = row.get(PlaceEntry.COLUMN_PLACE_ID);
+            if (placeId == null) continue;
+            if (isDeleted(row)) {
+                operations.add(ContentProviderOperation.newDelete(PlaceContract.asSyncCaller(
+                        PlaceEntry.buildPlaceIdUri(placeId.toString()))).build());
+            } else {
+                // Inserting a known place ID updates its row
+                ContentValues values = toContentValues(row);
+                values.put(PlaceEntry.COLUMN_DIRTY, 0);
+                values.put(PlaceEntry.COLUMN_DELETED, 0);
+                operations.add(ContentProviderOperation.newInsert(
+                        PlaceContract.asSyncCaller(PlaceEntry.CONTENT_URI))
+                        .withValues(values)
+                        .build());
+            }
+        }
+        if (operations.isEmpty()) return;
+        getContentResolver().applyBatch(PlaceContract.AUTHORITY, operations);
+    }
+
+    private static boolean isDeleted(Map<String, Object> row) {
+        Object deleted = row.get(PlaceEntry.COLUMN_DELETED);
+        return deleted instanceof Number && ((Number) deleted).longValue() != 0;
+    }
+
+    private static ContentValues toContentValues(Map<String, Object> row) {
+        ContentValues values = new ContentValues(row.size());
+        for (Map.Entry<String, Object> column : row.entrySet()) {
+            Object value = column.getValue();
+            if (value == null) {
+                values.putNull(column.getKey());
+            } else if (value instanceof Long) {
+                values.put(column.getKey(), (Long) value);
+            } else if (value instanceof Double) {
+                values.put(column.getKey(), (Double) value);
+            } else {
+                values.put(column.getKey(), value.toString());
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of the parsed polygons of polygon-shaped places, keyed by place ID, so
+ * that confirming a geofence entry costs a map lookup and a containment test.
+ * <p>
+ * The geofence builder replaces the cache every time it reads the places. A process started
+ * by a geofence broadcast instead loads it from the places table on first use.
+ */
+public class PolygonCache {
+
+    private static final String[] PROJECTION = {
+            PlaceEntry.COLUMN_PLACE_ID,
+            PlaceEntry.COLUMN_POLYGON
+    };
+
+    private static Map<String, PlacePolygon> sPolygons;
+
+    private PolygonCache() {
+    }
+
+    /**
+     * Replaces the cached polygons
+     *
+     * @param polygons the polygon of every polygon-shaped place, by place ID
+     */
+    public static synchronized void set(Map<String, PlacePolygon> polygons) {
+        sPolygons = polygons;
+    }
+
+    /**
+     * @param context the context, used to load the polygons if they are not cached
+     * @param placeId the place ID, which is also the request ID of its fence
+     * @return the place's polygon, or null if the place is a circle
+     */
+    public static synchronized PlacePolygon get(Context context, String placeId) {
+        if (sPolygons == null) sPolygons = load(context);
+        return sPolygons.get(placeId);
+    }
+
+    private static Map<String, PlacePolygon> load(Context context) {
+        Cursor data = context.getContentResolver().query(
+                PlaceEntry.CONTENT_URI,
+                PROJECTION,
+                PlaceEntry.COLUMN_POLYGON + " IS NOT NULL",
+                null,
+                null);
+        if (data == null) return Collections.emptyMap();
+        Map<String, PlacePolygon> polygons = new HashMap<>();
+        try {
+            while (data.moveToNext()) {
+                PlacePolygon polygon = PlacePolygon.parse(data.getString(1));
+                if (polygon != null) polygons.put(data.getString(0), polygon);
+            }
+        } finally {
+            data.close();
+        }
+        return polygons;
+    }
+}
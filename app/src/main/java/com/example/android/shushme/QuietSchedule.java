@@ -0,0 +1,208 @@
+package com.example.android.shushme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The weekly schedule during which a place silences the phone.
+ * <p>
+ * A schedule is stored as text: windows separated by ";", each a set of days followed by a
+ * time range in local time, e.g. "MON-FRI 09:00-17:30;SAT,SUN 10:00-12:00". Days are MON to
+ * SUN, alone, in comma-separated lists or in ranges, which may wrap around the week. A range
+ * ending at or before its start ends on the next day, so "FRI 22:00-02:00" runs into Saturday
+ * night; "00:00-24:00" is the whole day.
+ * <p>
+ * Parsing compiles the windows into a single sorted array of the minutes of the week at which
+ * the schedule turns on or off, so whether the schedule is active and when it next changes are
+ * both a binary search.
+ * <p>
+ * Pure Java so it can be unit-tested on a plain JVM.
+ */
+public class QuietSchedule {
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final String[] DAYS = {"MON", "TUE", "WED", "THU", "FRI", "SAT", "SUN"};
+
+    // Minutes of the week since Monday 00:00 at which the schedule toggles, strictly increasing
+    private final int[] mBoundaries;
+    // Whether the schedule is active at Monday 00:00, before the first boundary
+    private final boolean mActiveAtWeekStart;
+
+    private QuietSchedule(int[] boundaries, boolean activeAtWeekStart) {
+        mBoundaries = boundaries;
+        mActiveAtWeekStart = activeAtWeekStart;
+    }
+
+    /**
+     * @param encoded the schedule as stored in the places table, or null
+     * @return the schedule, or null if there is none or it cannot be read, in which case the
+     * place is always active
+     */
+    public static QuietSchedule parse(String encoded) {
+        if (encoded == null || encoded.trim().isEmpty()) return null;
+        List<int[]> intervals = new ArrayList<>();
+        for (String window : encoded.trim().split("\\s*;\\s*")) {
+            String[] parts = window.split("\\s+");
+            if (parts.length != 2) return null;
+            boolean[] days = parseDays(parts[0].toUpperCase(Locale.US));
+            int[] times = parseTimes(parts[1]);
+            if (days == null || times == null) return null;
+            int start = times[0];
+            int end = times[1] <= start ? times[1] + MINUTES_PER_DAY : times[1];
+            for (int day = 0; day < DAYS.length; day++) {
+                if (!days[day]) continue;
+                int from = day * MINUTES_PER_DAY + start;
+                int to = day * MINUTES_PER_DAY + end;
+                // A window running past Sunday midnight continues at the start of the week
+                if (to > MINUTES_PER_WEEK) {
+                    intervals.add(new int[]{0, to - MINUTES_PER_WEEK});
+                    to = MINUTES_PER_WEEK;
+                }
+                intervals.add(new int[]{from, to});
+            }
+        }
+        return compile(intervals);
+    }
+
+    /**
+     * @param now the current local time
+     * @return true if the place silences the phone at this time
+     */
+    public boolean isActive(Calendar now) {
+        return isActive(getMinuteOfWeek(now));
+    }
+
+    /**
+     * @param minuteOfWeek minutes since Monday 00:00
+     * @return true if the place silences the phone at this minute of the week
+     */
+    public boolean isActive(int minuteOfWeek) {
+        // An odd number of boundaries passed since the week started flips the initial state
+        return mActiveAtWeekStart != (countBoundariesUpTo(minuteOfWeek) % 2 == 1);
+    }
+
+    /**
+     * @param now the current local time
+     * @return the time at which the schedule next turns on or off, in milliseconds, or
+     * Long.MAX_VALUE if it never changes
+     */
+    public long getNextBoundary(Calendar now) {
+        if (mBoundaries.length == 0) return Long.MAX_VALUE;
+        int minuteOfWeek = getMinuteOfWeek(now);
+        int passed = countBoundariesUpTo(minuteOfWeek);
+        int next = passed < mBoundaries.length ? mBoundaries[passed] :
+                mBoundaries[0] + MINUTES_PER_WEEK;
+        // Set the wall clock time rather than adding minutes, so DST changes are respected
+        Calendar boundary = (Calendar) now.clone();
+        boundary.add(Calendar.DATE, next / MINUTES_PER_DAY - minuteOfWeek / MINUTES_PER_DAY);
+        boundary.set(Calendar.HOUR_OF_DAY, next % MINUTES_PER_DAY / 60);
+        boundary.set(Calendar.MINUTE, next % 60);
+        boundary.set(Calendar.SECOND, 0);
+        boundary.set(Calendar.MILLISECOND, 0);
+        // A boundary inside a skipped or repeated DST hour may land in the past
+        return Math.max(boundary.getTimeInMillis(), now.getTimeInMillis() + MINUTE_MILLIS);
+    }
+
+    /**
+     * @return minutes since Monday 00:00 of the local time
+     */
+    public static int getMinuteOfWeek(Calendar time) {
+        // Calendar numbers days from SUNDAY = 1, the schedule from Monday = 0
+        int day = (time.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        return day * MINUTES_PER_DAY + time.get(Calendar.HOUR_OF_DAY) * 60 +
+                time.get(Calendar.MINUTE);
+    }
+
+    private int countBoundariesUpTo(int minuteOfWeek) {
+        int index = Arrays.binarySearch(mBoundaries, minuteOfWeek);
+        // An exact match is itself passed; otherwise the insertion point counts the passed ones
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Merges intervals of the week into boundaries
+     */
+    private static QuietSchedule compile(List<int[]> intervals) {
+        Collections.sort(intervals, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] a, int[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        // Overlapping and touching intervals become one, so every boundary is a real change
+        List<int[]> merged = new ArrayList<>();
+        for (int[] interval : intervals) {
+            int[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && interval[0] <= last[1]) {
+                last[1] = Math.max(last[1], interval[1]);
+            } else {
+                merged.add(new int[]{interval[0], interval[1]});
+            }
+        }
+        int[] boundaries = new int[merged.size() * 2];
+        for (int i = 0; i < merged.size(); i++) {
+            boundaries[2 * i] = merged.get(i)[0];
+            boundaries[2 * i + 1] = merged.get(i)[1];
+        }
+        // Sunday night running into Monday morning is not a change at midnight
+        boolean activeAtWeekStart = false;
+        if (boundaries.length > 0 && boundaries[0] == 0 &&
+                boundaries[boundaries.length - 1] == MINUTES_PER_WEEK) {
+            activeAtWeekStart = true;
+            boundaries = Arrays.copyOfRange(boundaries, 1, boundaries.length - 1);
+        }
+        return new QuietSchedule(boundaries, activeAtWeekStart);
+    }
+
+    /**
+     * @return the selected days, Monday first, or null if unreadable
+     */
+    private static boolean[] parseDays(String spec) {
+        boolean[] days = new boolean[DAYS.length];
+        for (String item : spec.split(",")) {
+            String[] range = item.split("-");
+            if (range.length > 2) return null;
+            int first = Arrays.asList(DAYS).indexOf(range[0]);
+            int last = range.length == 2 ? Arrays.asList(DAYS).indexOf(range[1]) : first;
+            if (first < 0 || last < 0) return null;
+            for (int day = first; ; day = (day + 1) % DAYS.length) {
+                days[day] = true;
+                if (day == last) break;
+            }
+        }
+        return days;
+    }
+
+    /**
+     * @return {start, end} in minutes of the day, or null if unreadable
+     */
+    private static int[] parseTimes(String spec) {
+        String[] range = spec.split("-");
+        if (range.length != 2) return null;
+        int start = parseTime(range[0]);
+        int end = parseTime(range[1]);
+        if (start < 0 || end < 0 || start == MINUTES_PER_DAY) return null;
+        return new int[]{start, end};
+    }
+
+    private static int parseTime(String time) {
+        String[] fields = time.split(":");
+        if (fields.length != 2) return -1;
+        try {
+            int hours = Integer.parseInt(fields[0]);
+            int minutes = Integer.parseInt(fields[1]);
+            if (hours < 0 || minutes < 0 || minutes > 59) return -1;
+            int minuteOfDay = hours * 60 + minutes;
+            return minuteOfDay > MINUTES_PER_DAY ? -1 : minuteOfDay;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.android.shushme;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Coalesces refresh requests into as few refresh operations as possible.
+ * <p>
+ * Requests are debounced, so a burst of them starts a single refresh. A request made while a
+ * refresh is in flight is merged into exactly one follow-up refresh, started once the current
+ * one finishes. Each refresh carries a generation, and {@link #cancel()} supersedes every
+ * refresh in flight so that late results can be dropped. Once no refresh is in flight or
+ * pending, the completion listener is called.
+ * <p>
+ * All methods must be called on the main thread, except {@link Refresh#finish()}.
+ */
+public class RefreshCoordinator {
+
+    // How long requests are collected before a refresh starts
+    private static final long DEBOUNCE_MILLIS = 300;
+
+    /**
+     * The refresh operation being coordinated
+     */
+    public interface RefreshTask {
+        /**
+         * Starts a refresh, which may complete asynchronously
+         *
+         * @param refresh the handle to call {@link Refresh#finish()} on once the refresh is done
+         */
+        void onRefresh(Refresh refresh);
+    }
+
+    /**
+     * Called once all requested refreshes are done
+     */
+    public interface OnRefreshCompleteListener {
+        void onRefreshComplete();
+    }
+
+    /**
+     * A single refresh in flight
+     */
+    public class Refresh {
+        private final int mGeneration;
+        private boolean mFinished;
+
+        private Refresh(int generation) {
+            mGeneration = generation;
+        }
+
+        /**
+         * @return false once the refresh was superseded and its results should be dropped
+         */
+        public boolean isCurrent() {
+            return mGeneration == mCurrentGeneration;
+        }
+
+        /**
+         * Marks the refresh as done; may be called from any thread, and more than once
+         */
+        public void finish() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onRefreshFinished(Refresh.this);
+                }
+            });
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final RefreshTask mTask;
+    private OnRefreshCompleteListener mListener;
+    private Refresh mInFlight;
+    private boolean mPending;
+    // Read from any thread through Refresh#isCurrent
+    private volatile int mCurrentGeneration;
+
+    private final Runnable mStartRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (mInFlight != null) {
+                // Merged into one refresh after the one in flight
+                mPending = true;
+                return;
+            }
+            mPending = false;
+            mInFlight = new Refresh(++mCurrentGeneration);
+            mTask.onRefresh(mInFlight);
+        }
+    };
+
+    public RefreshCoordinator(RefreshTask task) {
+        mTask = task;
+    }
+
+    public void setOnRefreshCompleteListener(OnRefreshCompleteListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Requests a refresh, which starts once requests stop arriving for a short while
+     */
+    public void requestRefresh() {
+        mHandler.removeCallbacks(mStartRefresh);
+        mHandler.postDelayed(mStartRefresh, DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Drops every requested refresh and supersedes the one in flight
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mStartRefresh);
+        mPending = false;
+        mInFlight = null;
+        mCurrentGeneration++;
+    }
+
+    private void onRefreshFinished(Refresh refresh) {
+        if (refresh.mFinished || refresh != mInFlight) return;
+        refresh.mFinished = true;
+        mInFlight = null;
+        if (mPending) {
+            mStartRefresh.run();
+        } else if (mListener != null) {
+            mListener.onRefreshComplete();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.android.shushme;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks which geofences the device is currently inside, so that overlapping zones silence the
+ * phone only on the first entry and restore it only on the last exit.
+ * <p>
+ * The ringer mode the user had before the first entry is remembered and restored afterwards.
+ * Each call handles every geofence of a (possibly batched) event in one pass and tells the
+ * caller whether the ringer has to change at all.
+ * <p>
+ * Entries that still need confirming, e.g. into the enclosing circle of a polygon-shaped place
+ * but not the polygon itself, are kept pending until a later fix confirms them or the geofence
+ * is exited.
+ * <p>
+ * After a reboot, which clears every geofence, the zones the device was in are kept but marked
+ * unconfirmed until a re-registered geofence reports them again; the ones still unconfirmed
+ * once that had time to happen are exited.
+ * <p>
+ * Pure Java so it can be unit-tested on a plain JVM.
+ */
+public class RingerStateMachine {
+
+    // Actions returned to the caller
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_SILENCE = 1;
+    public static final int ACTION_RESTORE = 2;
+
+    // Value of the saved ringer mode while no zone is occupied
+    public static final int NO_SAVED_MODE = -1;
+
+    private final Set<String> mOccupiedIds;
+    private final Set<String> mPendingIds;
+    // Zones kept across a reboot that no geofence reported again yet
+    private final Set<String> mUnconfirmedIds;
+    private int mModeBeforeEntry;
+
+    /**
+     * @param occupiedIds     request IDs of the geofences the device is inside
+     * @param modeBeforeEntry the ringer mode before the first entry, or {@link #NO_SAVED_MODE}
+     */
+    public RingerStateMachine(Set<String> occupiedIds, int modeBeforeEntry) {
+        this(occupiedIds, Collections.<String>emptySet(), modeBeforeEntry);
+    }
+
+    /**
+     * @param occupiedIds     request IDs of the geofences the device is inside
+     * @param pendingIds      request IDs of the geofences whose entry is not confirmed yet
+     * @param modeBeforeEntry the ringer mode before the first entry, or {@link #NO_SAVED_MODE}
+     */
+    public RingerStateMachine(Set<String> occupiedIds, Set<String> pendingIds,
+                              int modeBeforeEntry) {
+        this(occupiedIds, pendingIds, Collections.<String>emptySet(), modeBeforeEntry);
+    }
+
+    /**
+     * @param occupiedIds     request IDs of the geofences the device is inside
+     * @param pendingIds      request IDs of the geofences whose entry is not confirmed yet
+     * @param unconfirmedIds  request IDs of the occupied or pending geofences not reported
+     *                        again since a reboot
+     * @param modeBeforeEntry the ringer mode before the first entry, or {@link #NO_SAVED_MODE}
+     */
+    public RingerStateMachine(Set<String> occupiedIds, Set<String> pendingIds,
+                              Set<String> unconfirmedIds, int modeBeforeEntry) {
+        mOccupiedIds = new HashSet<>(occupiedIds);
+        mPendingIds = new HashSet<>(pendingIds);
+        mPendingIds.removeAll(occupiedIds);
+        mUnconfirmedIds = new HashSet<>(unconfirmedIds);
+        mUnconfirmedIds.retainAll(getTrackedIds());
+        mModeBeforeEntry = occupiedIds.isEmpty() ? NO_SAVED_MODE : modeBeforeEntry;
+    }
+
+    /**
+     * @param requestIds  the geofences the device entered
+     * @param currentMode the ringer mode right now, saved if this is the first entry
+     * @return {@link #ACTION_SILENCE} on the first entry, {@link #ACTION_NONE} otherwise
+     */
+    public int onEnter(Collection<String> requestIds, int currentMode) {
+        mPendingIds.removeAll(requestIds);
+        mUnconfirmedIds.removeAll(requestIds);
+        boolean wasEmpty = mOccupiedIds.isEmpty();
+        mOccupiedIds.addAll(requestIds);
+        if (!wasEmpty || mOccupiedIds.isEmpty()) return ACTION_NONE;
+        mModeBeforeEntry = currentMode;
+        return ACTION_SILENCE;
+    }
+
+    /**
+     * Records entries that are not confirmed yet. Never changes the ringer.
+     *
+     * @param requestIds the geofences the device entered but is not known to be inside
+     */
+    public void onPending(Collection<String> requestIds) {
+        mUnconfirmedIds.removeAll(requestIds);
+        for (String requestId : requestIds) {
+            if (!mOccupiedIds.contains(requestId)) mPendingIds.add(requestId);
+        }
+    }
+
+    /**
+     * Handles exits, and geofences that were unregistered while the device was inside them.
+     * Pending entries into the geofences are dropped.
+     *
+     * @param requestIds the geofences the device left
+     * @return {@link #ACTION_RESTORE} on the last exit, {@link #ACTION_NONE} otherwise
+     */
+    public int onExit(Collection<String> requestIds) {
+        mPendingIds.removeAll(requestIds);
+        mUnconfirmedIds.removeAll(requestIds);
+        if (mOccupiedIds.isEmpty() || !mOccupiedIds.removeAll(requestIds)) return ACTION_NONE;
+        return mOccupiedIds.isEmpty() ? ACTION_RESTORE : ACTION_NONE;
+    }
+
+    /**
+     * Hands the occupancy of geofences over to the geofences that replaced them, e.g. when a
+     * re-plan merged or renamed a fence the device is inside. A pending entry is handed over
+     * the same way. Never changes the ringer.
+     *
+     * @param replacements the request IDs of the geofences taking over, by the request ID of
+     *                     the geofence they replace
+     */
+    public void onReplace(Map<String, ? extends Collection<String>> replacements) {
+        for (String replacedId : replacements.keySet()) {
+            Collection<String> replacingIds = replacements.get(replacedId);
+            if (replacingIds.isEmpty()) continue;
+            if (mUnconfirmedIds.remove(replacedId)) mUnconfirmedIds.addAll(replacingIds);
+            if (mOccupiedIds.remove(replacedId)) {
+                mOccupiedIds.addAll(replacingIds);
+            } else if (mPendingIds.remove(replacedId)) {
+                onPending(replacingIds);
+            }
+        }
+    }
+
+    /**
+     * Marks every occupied and pending zone unconfirmed, after a reboot cleared the geofences
+     * that track them. Never changes the ringer: the re-registered geofences report an ENTER
+     * for each one the device is still in, which confirms it without a second notification.
+     */
+    public void onRestart() {
+        mUnconfirmedIds.clear();
+        mUnconfirmedIds.addAll(getTrackedIds());
+    }
+
+    public Set<String> getOccupiedIds() {
+        return new HashSet<>(mOccupiedIds);
+    }
+
+    public Set<String> getPendingIds() {
+        return new HashSet<>(mPendingIds);
+    }
+
+    public Set<String> getUnconfirmedIds() {
+        return new HashSet<>(mUnconfirmedIds);
+    }
+
+    /**
+     * @return the ringer mode to restore on the last exit, or {@link #NO_SAVED_MODE}
+     */
+    public int getModeBeforeEntry() {
+        return mModeBeforeEntry;
+    }
+
+    private Set<String> getTrackedIds() {
+        Set<String> trackedIds = new HashSet<>(mOccupiedIds);
+        trackedIds.addAll(mPendingIds);
+        return trackedIds;
+    }
+}
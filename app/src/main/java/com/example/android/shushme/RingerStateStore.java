@@ -0,0 +1,44 @@
+package com.example.android.shushme;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Persists the {@link RingerStateMachine} across broadcasts, since the process can be killed
+ * between entering and leaving a zone.
+ */
+public class RingerStateStore {
+
+    private static final String PREFS_NAME = "ringer_state";
+    private static final String KEY_OCCUPIED_IDS = "occupied_ids";
+    private static final String KEY_PENDING_IDS = "pending_ids";
+    private static final String KEY_UNCONFIRMED_IDS = "unconfirmed_ids";
+    private static final String KEY_MODE_BEFORE_ENTRY = "mode_before_entry";
+
+    public static RingerStateMachine load(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        Set<String> occupiedIds = prefs.getStringSet(KEY_OCCUPIED_IDS, Collections.<String>emptySet());
+        Set<String> pendingIds = prefs.getStringSet(KEY_PENDING_IDS, Collections.<String>emptySet());
+        Set<String> unconfirmedIds = prefs.getStringSet(KEY_UNCONFIRMED_IDS,
+                Collections.<String>emptySet());
+        int modeBeforeEntry = prefs.getInt(KEY_MODE_BEFORE_ENTRY, RingerStateMachine.NO_SAVED_MODE);
+        return new RingerStateMachine(occupiedIds, pendingIds, unconfirmedIds, modeBeforeEntry);
+    }
+
+    public static void save(Context context, RingerStateMachine state) {
+        // commit() rather than apply(), the receiver's process may die right after onReceive
+        getPrefs(context).edit()
+                .putStringSet(KEY_OCCUPIED_IDS, state.getOccupiedIds())
+                .putStringSet(KEY_PENDING_IDS, state.getPendingIds())
+                .putStringSet(KEY_UNCONFIRMED_IDS, state.getUnconfirmedIds())
+                .putInt(KEY_MODE_BEFORE_ENTRY, state.getModeBeforeEntry())
+                .commit();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -17,15 +17,32 @@ package com.example.android.shushme.provider;
 */
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 
+import com.example.android.shushme.Metrics;
+import com.example.android.shushme.provider.PlaceContract.TransitionEntry;
+import com.google.android.gms.location.Geofence;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
 import static com.example.android.shushme.provider.PlaceContract.PlaceEntry;
 
 
@@ -36,6 +53,9 @@ public class PlaceContentProvider extends ContentProvider {
     // and related ints (101, 102, ..) for items in that directory.
     public static final int PLACES = 100;
     public static final int PLACE_WITH_ID = 101;
+    public static final int PLACE_WITH_PLACE_ID = 102;
+    public static final int TRANSITIONS = 200;
+    public static final int TRANSITION_STATS = 201;
 
     // Declare a static variable for the Uri matcher that you construct
     private static final UriMatcher sUriMatcher = buildUriMatcher();
@@ -48,11 +68,35 @@ public class PlaceContentProvider extends ContentProvider {
         // Add URI matches
         uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_PLACES, PLACES);
         uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_PLACES + "/#", PLACE_WITH_ID);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_PLACES + "/" + PlaceContract.PATH_PLACE_ID + "/*", PLACE_WITH_PLACE_ID);
+        uriMatcher.addURI(PlaceContract.AUTHORITY, PlaceContract.PATH_TRANSITIONS, TRANSITIONS);
+        uriMatcher.addURI(PlaceContract.AUTHORITY,
+                PlaceContract.PATH_TRANSITIONS + "/" + PlaceContract.PATH_STATS, TRANSITION_STATS);
         return uriMatcher;
     }
 
+    // Columns defining a quiet zone rather than caching its Places API details; a local change
+    // to any of them has to be sent to the sync server
+    private static final String[] SYNCED_SETTINGS = {
+            PlaceEntry.COLUMN_RADIUS,
+            PlaceEntry.COLUMN_LOITERING_DELAY,
+            PlaceEntry.COLUMN_RESPONSIVENESS,
+            PlaceEntry.COLUMN_POLYGON,
+            PlaceEntry.COLUMN_SCHEDULE
+    };
+
     // Member variable for a PlaceDbHelper that's initialized in the onCreate() method
     private PlaceDbHelper mPlaceDbHelper;
+    // Recently read rows and pages, invalidated by every write that goes through this provider
+    private final PlaceQueryCache mQueryCache = new PlaceQueryCache();
+    // Number of the latest local change, read from the table on first use, guarded by this
+    private long mLastLocalChange = -1;
+
+    // Set while the calling thread is inside applyBatch, so that the single operations defer
+    // their change notifications to one notification at the end of the batch
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> mBatchChanged = new ThreadLocal<>();
 
     @Override
     public boolean onCreate() {
@@ -70,15 +114,15 @@ public class PlaceContentProvider extends ContentProvider {
      */
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
-
         // Write URI matching code to identify the match for the places directory
         int match = sUriMatcher.match(uri);
         Uri returnUri; // URI to be returned
         switch (match) {
             case PLACES:
                 // Insert new values into the database
-                long id = db.insert(PlaceEntry.TABLE_NAME, null, values);
+                // Re-adding a known place updates its row, keeping its _id
+                if (!isSyncCaller(uri)) values = asLocalChange(values);
+                long id = mPlaceDbHelper.upsertPlace(values);
                 if (id > 0) {
                     returnUri = ContentUris.withAppendedId(PlaceContract.PlaceEntry.CONTENT_URI, id);
                 } else {
@@ -91,12 +135,105 @@ public class PlaceContentProvider extends ContentProvider {
         }
 
         // Notify the resolver if the uri has been changed, and return the newly inserted URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        mQueryCache.invalidatePlaceId(values.getAsString(PlaceEntry.COLUMN_PLACE_ID));
+        notifyChange(uri);
 
         // Return constructed uri (this points to the newly inserted row of data)
         return returnUri;
     }
 
+    /***
+     * Handles requests to insert many rows at once, in a single transaction and with a single
+     * change notification
+     *
+     * @param uri
+     * @param values
+     * @return number of rows inserted
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+
+        int match = sUriMatcher.match(uri);
+        int placesInserted = 0;
+        switch (match) {
+            case PLACES:
+                db.beginTransaction();
+                try {
+                    boolean syncCaller = isSyncCaller(uri);
+                    for (ContentValues value : values) {
+                        if (!syncCaller) value = asLocalChange(value);
+                        if (mPlaceDbHelper.upsertPlace(value) != -1) {
+                            placesInserted++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (placesInserted != 0) mQueryCache.invalidateAll();
+                break;
+            // Appends a batch of transitions and drops the oldest rows past the log's size
+            case TRANSITIONS:
+                db.beginTransaction();
+                try {
+                    for (ContentValues value : values) {
+                        if (db.insert(TransitionEntry.TABLE_NAME, null, value) != -1) {
+                            placesInserted++;
+                        }
+                    }
+                    db.delete(TransitionEntry.TABLE_NAME, TransitionEntry._ID + " <= (SELECT MAX(" +
+                            TransitionEntry._ID + ") FROM " + TransitionEntry.TABLE_NAME + ") - ?",
+                            new String[]{String.valueOf(TransitionEntry.MAX_ROWS)});
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                break;
+            // Default case throws an UnsupportedOperationException
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        if (placesInserted != 0) {
+            notifyChange(uri);
+        }
+        return placesInserted;
+    }
+
+    /***
+     * Applies a batch of operations in a single transaction: either all of them are applied
+     * or none is, and observers get one change notification once the batch is committed
+     *
+     * @param operations
+     * @return the result of each operation
+     * @throws OperationApplicationException if any operation fails
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mPlaceDbHelper.getWritableDatabase();
+        mApplyingBatch.set(true);
+        mBatchChanged.set(false);
+        boolean committed = false;
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            committed = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.set(false);
+            // Readers on other threads may have cached rows from before the commit
+            if (mBatchChanged.get()) mQueryCache.invalidateAll();
+            if (committed && mBatchChanged.get()) {
+                getContext().getContentResolver().notifyChange(PlaceEntry.CONTENT_URI, null);
+            }
+        }
+    }
+
     /***
      * Handles requests for data by URI
      *
@@ -117,17 +254,105 @@ public class PlaceContentProvider extends ContentProvider {
         // Write URI match code and set a variable to return a Cursor
         int match = sUriMatcher.match(uri);
         Cursor retCursor;
+        // Taken before reading, so a result is only cached if no write happened meanwhile
+        long generation = mQueryCache.getGeneration();
 
         switch (match) {
             // Query for the places directory
             case PLACES:
-                retCursor = db.query(PlaceEntry.TABLE_NAME,
+                // Tombstones are only there for the sync service
+                if (!isSyncCaller(uri)) {
+                    selection = appendSelection(selection, PlaceEntry.COLUMN_DELETED + " = 0");
+                }
+                String after = uri.getQueryParameter(PlaceContract.PARAM_AFTER);
+                String limit = uri.getQueryParameter(PlaceContract.PARAM_LIMIT);
+                // The limit goes into the SQL as is, so only accept a number
+                if (limit != null) limit = String.valueOf(Integer.parseInt(limit));
+                if (after != null) {
+                    // Keyset pagination: seek past the previous page through the _id index
+                    // instead of skipping rows with an OFFSET
+                    selection = appendSelection(selection, PlaceEntry._ID + " > ?");
+                    selectionArgs = appendSelectionArg(selectionArgs, after);
+                    sortOrder = PlaceEntry._ID;
+                }
+                retCursor = mQueryCache.getQuery(projection, selection, selectionArgs, sortOrder, limit);
+                if (retCursor == null) {
+                    retCursor = mQueryCache.putQuery(projection, selection, selectionArgs, sortOrder, limit,
+                            db.query(PlaceEntry.TABLE_NAME,
+                                    projection,
+                                    selection,
+                                    selectionArgs,
+                                    null,
+                                    null,
+                                    sortOrder,
+                                    limit),
+                            generation);
+                }
+                break;
+            // Query for a single place, by _id or by place ID through its unique index. The
+            // whole row is read and cached, and the projection applied to the cached copy;
+            // projections with computed or aliased columns are left to SQLite
+            case PLACE_WITH_ID:
+                long id = ContentUris.parseId(uri);
+                if (!PlaceQueryCache.isColumnProjection(projection)) {
+                    retCursor = db.query(PlaceEntry.TABLE_NAME,
+                            projection,
+                            "_id=? AND " + PlaceEntry.COLUMN_DELETED + " = 0",
+                            new String[]{String.valueOf(id)},
+                            null,
+                            null,
+                            null);
+                    break;
+                }
+                retCursor = mQueryCache.getRow(id, projection);
+                if (retCursor == null) {
+                    retCursor = mQueryCache.putRow(db.query(PlaceEntry.TABLE_NAME,
+                            null,
+                            "_id=? AND " + PlaceEntry.COLUMN_DELETED + " = 0",
+                            new String[]{String.valueOf(id)},
+                            null,
+                            null,
+                            null), projection, generation);
+                }
+                break;
+            case PLACE_WITH_PLACE_ID:
+                String placeId = uri.getLastPathSegment();
+                if (!PlaceQueryCache.isColumnProjection(projection)) {
+                    retCursor = db.query(PlaceEntry.TABLE_NAME,
+                            projection,
+                            PlaceEntry.COLUMN_PLACE_ID + "=? AND " +
+                                    PlaceEntry.COLUMN_DELETED + " = 0",
+                            new String[]{placeId},
+                            null,
+                            null,
+                            null);
+                    break;
+                }
+                retCursor = mQueryCache.getRowByPlaceId(placeId, projection);
+                if (retCursor == null) {
+                    retCursor = mQueryCache.putRow(db.query(PlaceEntry.TABLE_NAME,
+                            null,
+                            PlaceEntry.COLUMN_PLACE_ID + "=? AND " +
+                                    PlaceEntry.COLUMN_DELETED + " = 0",
+                            new String[]{placeId},
+                            null,
+                            null,
+                            null), projection, generation);
+                }
+                break;
+            // Query for the transition log, oldest first unless sorted otherwise
+            case TRANSITIONS:
+                retCursor = db.query(TransitionEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
                         null,
                         null,
-                        sortOrder);
+                        sortOrder == null ? TransitionEntry._ID : sortOrder);
+                break;
+            // Per-place statistics, aggregated from the whole log with every stats column
+            case TRANSITION_STATS:
+                retCursor = queryTransitionStats(db);
                 break;
             // Default exception
             default:
@@ -161,8 +386,19 @@ public class PlaceContentProvider extends ContentProvider {
             case PLACE_WITH_ID:
                 // Get the place ID from the URI path
                 String id = uri.getPathSegments().get(1);
-                // Use selections/selectionArgs to filter for this ID
-                placesDeleted = db.delete(PlaceEntry.TABLE_NAME, "_id=?", new String[]{id});
+                // Use selections/selectionArgs to filter for this ID, on top of any condition
+                // the caller set
+                placesDeleted = deletePlaces(db, appendSelection(selection, "_id=?"),
+                        appendSelectionArg(selectionArgs, id), isSyncCaller(uri));
+                mQueryCache.invalidateRow(Long.parseLong(id));
+                break;
+            // Handle the single item case, recognized by the place ID included in the URI path
+            case PLACE_WITH_PLACE_ID:
+                placesDeleted = deletePlaces(db,
+                        appendSelection(selection, PlaceEntry.COLUMN_PLACE_ID + "=?"),
+                        appendSelectionArg(selectionArgs, uri.getLastPathSegment()),
+                        isSyncCaller(uri));
+                mQueryCache.invalidatePlaceId(uri.getLastPathSegment());
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -170,7 +406,7 @@ public class PlaceContentProvider extends ContentProvider {
         // Notify the resolver of a change and return the number of items deleted
         if (placesDeleted != 0) {
             // A place (or more) was deleted, set notification
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         // Return the number of places deleted
         return placesDeleted;
@@ -192,13 +428,28 @@ public class PlaceContentProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         // Keep track of the number of updated places
         int placesUpdated;
+        if (!isSyncCaller(uri) && changesSyncedSettings(values)) values = asLocalChange(values);
 
         switch (match) {
             case PLACE_WITH_ID:
                 // Get the place ID from the URI path
                 String id = uri.getPathSegments().get(1);
                 // Use selections/selectionArgs to filter for this ID
-                placesUpdated = db.update(PlaceEntry.TABLE_NAME, values, "_id=?", new String[]{id});
+                placesUpdated = db.update(PlaceEntry.TABLE_NAME, values,
+                        appendSelection(selection, "_id=?"),
+                        appendSelectionArg(selectionArgs, id));
+                mQueryCache.invalidateRow(Long.parseLong(id));
+                break;
+            case PLACE_WITH_PLACE_ID:
+                // Conditional updates, like the sync service's, can't share a compiled statement
+                if (selection == null || selection.isEmpty()) {
+                    placesUpdated = mPlaceDbHelper.updatePlace(uri.getLastPathSegment(), values);
+                } else {
+                    placesUpdated = db.update(PlaceEntry.TABLE_NAME, values,
+                            appendSelection(selection, PlaceEntry.COLUMN_PLACE_ID + "=?"),
+                            appendSelectionArg(selectionArgs, uri.getLastPathSegment()));
+                }
+                mQueryCache.invalidatePlaceId(uri.getLastPathSegment());
                 break;
             // Default exception
             default:
@@ -208,15 +459,184 @@ public class PlaceContentProvider extends ContentProvider {
         // Notify the resolver of a change and return the number of items updated
         if (placesUpdated != 0) {
             // A place (or more) was updated, set notification
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         // Return the number of places deleted
         return placesUpdated;
     }
 
 
+    /**
+     * Aggregates the transition log per place. The log is bounded, so a single pass over it
+     * in order pairs every entry with the exit that follows it.
+     */
+    private static Cursor queryTransitionStats(SQLiteDatabase db) {
+        // Per place: entries, exits, total dwell, last transition time, open entry time
+        Map<String, long[]> stats = new TreeMap<>();
+        Cursor transitions = db.query(TransitionEntry.TABLE_NAME,
+                new String[]{TransitionEntry.COLUMN_PLACE_ID, TransitionEntry.COLUMN_TIMESTAMP,
+                        TransitionEntry.COLUMN_TRANSITION},
+                null,
+                null,
+                null,
+                null,
+                TransitionEntry._ID);
+        try {
+            while (transitions.moveToNext()) {
+                long[] placeStats = stats.get(transitions.getString(0));
+                if (placeStats == null) {
+                    placeStats = new long[]{0, 0, 0, 0, -1};
+                    stats.put(transitions.getString(0), placeStats);
+                }
+                long timestamp = transitions.getLong(1);
+                if (transitions.getInt(2) == Geofence.GEOFENCE_TRANSITION_ENTER) {
+                    placeStats[0]++;
+                    // A repeated entry keeps the first one, as the zone was never left
+                    if (placeStats[4] < 0) placeStats[4] = timestamp;
+                } else {
+                    placeStats[1]++;
+                    if (placeStats[4] >= 0) placeStats[2] += timestamp - placeStats[4];
+                    placeStats[4] = -1;
+                }
+                placeStats[3] = timestamp;
+            }
+        } finally {
+            transitions.close();
+        }
+        MatrixCursor cursor = new MatrixCursor(new String[]{TransitionEntry.COLUMN_PLACE_ID,
+                TransitionEntry.COLUMN_ENTER_COUNT, TransitionEntry.COLUMN_EXIT_COUNT,
+                TransitionEntry.COLUMN_TOTAL_DWELL, TransitionEntry.COLUMN_LAST_TRANSITION_AT},
+                stats.size());
+        for (Map.Entry<String, long[]> entry : stats.entrySet()) {
+            long[] placeStats = entry.getValue();
+            cursor.addRow(new Object[]{entry.getKey(), placeStats[0], placeStats[1], placeStats[2],
+                    placeStats[3]});
+        }
+        return cursor;
+    }
+
+    /**
+     * Answers {@link PlaceContract#METHOD_GET_CACHE_STATS} with the query cache counters and
+     * {@link PlaceContract#METHOD_GET_METRICS} with the snapshot of the app's metrics
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        if (PlaceContract.METHOD_GET_CACHE_STATS.equals(method)) {
+            return mQueryCache.getStats();
+        }
+        if (PlaceContract.METHOD_GET_METRICS.equals(method)) {
+            return Metrics.snapshot();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Prints the app's metrics and the query cache counters for dumpsys
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.dump(writer);
+        Bundle cacheStats = mQueryCache.getStats();
+        writer.println("Query cache:");
+        for (String key : cacheStats.keySet()) {
+            writer.println("  " + key + ": " + cacheStats.get(key));
+        }
+    }
+
+    private static boolean isSyncCaller(Uri uri) {
+        return uri.getBooleanQueryParameter(PlaceContract.PARAM_CALLER_IS_SYNC, false);
+    }
+
+    private static boolean changesSyncedSettings(ContentValues values) {
+        for (String column : SYNCED_SETTINGS) {
+            if (values.containsKey(column)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a number greater than that of every earlier local change, so that the sync
+     * service can tell whether a row changed again after it read it
+     */
+    private synchronized long nextLocalChange() {
+        if (mLastLocalChange < 0) {
+            mLastLocalChange = DatabaseUtils.longForQuery(mPlaceDbHelper.getReadableDatabase(),
+                    "SELECT IFNULL(MAX(" + PlaceEntry.COLUMN_DIRTY + "), 0) FROM " +
+                            PlaceEntry.TABLE_NAME, null);
+        }
+        return ++mLastLocalChange;
+    }
+
+    /**
+     * @return a copy of the values marking the row as changed locally, and as not deleted so
+     * that adding a place again revives its tombstone
+     */
+    private ContentValues asLocalChange(ContentValues values) {
+        ContentValues change = new ContentValues(values);
+        change.put(PlaceEntry.COLUMN_DIRTY, nextLocalChange());
+        if (change.containsKey(PlaceEntry.COLUMN_PLACE_ID)) {
+            change.put(PlaceEntry.COLUMN_DELETED, 0);
+        }
+        return change;
+    }
+
+    /**
+     * Deletes places. The sync service removes rows; a local delete only removes the rows the
+     * server never saw, and turns the others into tombstones until the deletion is synced.
+     *
+     * @return the number of places deleted
+     */
+    private int deletePlaces(SQLiteDatabase db, String whereClause, String[] whereArgs,
+                             boolean syncCaller) {
+        if (syncCaller) return db.delete(PlaceEntry.TABLE_NAME, whereClause, whereArgs);
+        int deleted = db.delete(PlaceEntry.TABLE_NAME,
+                appendSelection(whereClause, PlaceEntry.COLUMN_VERSION + " = 0"), whereArgs);
+        ContentValues tombstone = new ContentValues();
+        tombstone.put(PlaceEntry.COLUMN_DELETED, 1);
+        tombstone.put(PlaceEntry.COLUMN_DIRTY, nextLocalChange());
+        deleted += db.update(PlaceEntry.TABLE_NAME, tombstone,
+                appendSelection(whereClause, PlaceEntry.COLUMN_DELETED + " = 0"), whereArgs);
+        return deleted;
+    }
+
+    private static String appendSelection(String selection, String clause) {
+        if (selection == null || selection.isEmpty()) return clause;
+        return "(" + selection + ") AND " + clause;
+    }
+
+    private static String[] appendSelectionArg(String[] selectionArgs, String arg) {
+        if (selectionArgs == null) return new String[]{arg};
+        String[] args = Arrays.copyOf(selectionArgs, selectionArgs.length + 1);
+        args[selectionArgs.length] = arg;
+        return args;
+    }
+
+    /**
+     * Notifies observers of a change, or defers the notification until the end of the batch
+     * when called from within applyBatch
+     */
+    private void notifyChange(Uri uri) {
+        if (Boolean.TRUE.equals(mApplyingBatch.get())) {
+            mBatchChanged.set(true);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
-        throw new UnsupportedOperationException("Not yet implemented");
+        switch (sUriMatcher.match(uri)) {
+            case PLACES:
+                return PlaceEntry.CONTENT_TYPE;
+            case PLACE_WITH_ID:
+            case PLACE_WITH_PLACE_ID:
+                return PlaceEntry.CONTENT_ITEM_TYPE;
+            case TRANSITIONS:
+                return TransitionEntry.CONTENT_TYPE;
+            case TRANSITION_STATS:
+                return TransitionEntry.STATS_CONTENT_TYPE;
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
     }
 }
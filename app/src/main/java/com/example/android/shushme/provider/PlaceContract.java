@@ -16,6 +16,7 @@ package com.example.android.shushme.provider;
 * limitations under the License.
 */
 
+import android.content.ContentResolver;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -30,6 +31,40 @@ public class PlaceContract {
     // Define the possible paths for accessing data in this contract
     // This is the path for the "places" directory
     public static final String PATH_PLACES = "places";
+    // This is the path for looking up a single place by its Google place ID
+    public static final String PATH_PLACE_ID = "placeid";
+    // This is the path for the geofence transition log, and for the per-place statistics
+    // aggregated from it
+    public static final String PATH_TRANSITIONS = "transitions";
+    public static final String PATH_STATS = "stats";
+
+    // Query parameters for reading the places directory one page at a time, ordered by _id:
+    // only rows with an _id greater than "after" are returned, at most "limit" of them
+    public static final String PARAM_AFTER = "after";
+    public static final String PARAM_LIMIT = "limit";
+    // Query parameter marking a request from the sync service: its writes are taken as is
+    // instead of being marked as local changes, its deletes remove rows instead of leaving
+    // tombstones, and its directory queries also return the tombstones
+    public static final String PARAM_CALLER_IS_SYNC = "callerIsSync";
+
+    // ContentProvider#call method returning the query cache counters, and the keys of the
+    // returned Bundle
+    public static final String METHOD_GET_CACHE_STATS = "getCacheStats";
+    public static final String KEY_CACHE_HITS = "hits";
+    public static final String KEY_CACHE_MISSES = "misses";
+    public static final String KEY_CACHE_EVICTIONS = "evictions";
+    public static final String KEY_CACHE_SIZE = "size";
+    public static final String KEY_CACHE_MAX_SIZE = "maxSize";
+    // ContentProvider#call method returning the snapshot of the app's latency metrics
+    public static final String METHOD_GET_METRICS = "getMetrics";
+
+    /**
+     * @param uri a URI of this provider
+     * @return the URI marked as coming from the sync service
+     */
+    public static Uri asSyncCaller(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(PARAM_CALLER_IS_SYNC, "true").build();
+    }
 
     public static final class PlaceEntry implements BaseColumns {
 
@@ -37,7 +72,104 @@ public class PlaceContract {
         public static final Uri CONTENT_URI =
                 BASE_CONTENT_URI.buildUpon().appendPath(PATH_PLACES).build();
 
+        // MIME types of the places directory and of a single place
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + AUTHORITY + "/" + PATH_PLACES;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + AUTHORITY + "/" + PATH_PLACES;
+
+        /**
+         * Builds the URI of one page of places
+         *
+         * @param afterId the _id of the last place of the previous page, or 0 for the first page
+         * @param limit   the maximum number of places in the page
+         * @return the page URI
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(PARAM_AFTER, String.valueOf(afterId))
+                    .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Builds the URI of a single place from its Google place ID
+         *
+         * @param placeId the place ID returned by the Places API
+         * @return the place URI
+         */
+        public static Uri buildPlaceIdUri(String placeId) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PLACE_ID).appendPath(placeId).build();
+        }
+
         public static final String TABLE_NAME = "places";
+        // Unique index backing lookups by place ID
+        public static final String INDEX_PLACE_ID = "index_places_placeID";
+        public static final String COLUMN_PLACE_ID = "placeID";
+        // Place details cached from the Places API, so the list and geofences can be built
+        // without a network round trip
+        public static final String COLUMN_PLACE_NAME = "placeName";
+        public static final String COLUMN_PLACE_ADDRESS = "placeAddress";
+        public static final String COLUMN_PLACE_LATITUDE = "placeLatitude";
+        public static final String COLUMN_PLACE_LONGITUDE = "placeLongitude";
+        // Time in milliseconds (System.currentTimeMillis) when the details were last fetched
+        public static final String COLUMN_FETCHED_AT = "fetchedAt";
+        // Radius in meters derived from the place's viewport when its details are fetched
+        public static final String COLUMN_VIEWPORT_RADIUS = "viewportRadius";
+        // Geofence settings of the place; NULL means the automatic default is used.
+        // Radius in meters, loitering delay and notification responsiveness in milliseconds
+        public static final String COLUMN_RADIUS = "radius";
+        public static final String COLUMN_LOITERING_DELAY = "loiteringDelay";
+        public static final String COLUMN_RESPONSIVENESS = "responsiveness";
+        // Outline of a polygon-shaped zone as "lat,lng;lat,lng;...", or NULL for a circle
+        // around the place's coordinates
+        public static final String COLUMN_POLYGON = "polygon";
+        // Weekly local times during which the place silences the phone, e.g.
+        // "MON-FRI 09:00-17:30;SAT 10:00-12:00", or NULL to silence at any time
+        public static final String COLUMN_SCHEDULE = "schedule";
+        // Sync state: the server version of the row, 0 if it was never synced; 0 if the row
+        // is in sync, otherwise the number of its latest local change, which grows with every
+        // change; 1 if the row was deleted locally and only remains as a tombstone until the
+        // server has the deletion
+        public static final String COLUMN_VERSION = "version";
+        public static final String COLUMN_DIRTY = "dirty";
+        public static final String COLUMN_DELETED = "deleted";
+    }
+
+    public static final class TransitionEntry implements BaseColumns {
+
+        // Content URI of the transition log, and of the per-place statistics
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_TRANSITIONS).build();
+        public static final Uri STATS_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_STATS).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + AUTHORITY + "/" + PATH_TRANSITIONS;
+        public static final String STATS_CONTENT_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE +
+                "/" + AUTHORITY + "/" + PATH_TRANSITIONS + "." + PATH_STATS;
+
+        // The log keeps at most this many rows, dropping the oldest ones first
+        public static final int MAX_ROWS = 2000;
+
+        public static final String TABLE_NAME = "transitions";
+        // Time in milliseconds (System.currentTimeMillis) of the transition
+        public static final String COLUMN_TIMESTAMP = "timestamp";
+        // Request ID of the geofence that triggered, and the place it covers; a merged
+        // geofence logs one row per place
+        public static final String COLUMN_GEOFENCE_ID = "geofenceID";
         public static final String COLUMN_PLACE_ID = "placeID";
+        // Geofence.GEOFENCE_TRANSITION_ENTER or GEOFENCE_TRANSITION_EXIT
+        public static final String COLUMN_TRANSITION = "transition";
+        // The RingerStateMachine action the transition led to
+        public static final String COLUMN_RINGER_ACTION = "ringerAction";
+
+        // Columns of the per-place statistics: entries and exits logged for the place, the
+        // total time spent between an entry and the following exit in milliseconds, and the
+        // time of the last transition
+        public static final String COLUMN_ENTER_COUNT = "enterCount";
+        public static final String COLUMN_EXIT_COUNT = "exitCount";
+        public static final String COLUMN_TOTAL_DWELL = "totalDwell";
+        public static final String COLUMN_LAST_TRANSITION_AT = "lastTransitionAt";
     }
 }
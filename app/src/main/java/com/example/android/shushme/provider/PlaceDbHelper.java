@@ -16,42 +16,271 @@ package com.example.android.shushme.provider;
 * limitations under the License.
 */
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.example.android.shushme.provider.PlaceContract.TransitionEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 public class PlaceDbHelper extends SQLiteOpenHelper {
 
     // The database name
-    private static final String DATABASE_NAME = "shushme.db";
+    static final String DATABASE_NAME = "shushme.db";
 
     // If you change the database schema, you must increment the database version
-    private static final int DATABASE_VERSION = 1;
+    // Version 2 adds the cached place details (name, address, lat/lng and fetch time)
+    // Version 3 replaces the inline UNIQUE constraint on placeID by an explicit unique index
+    // Version 4 adds the viewport radius and the per-place geofence settings
+    // Version 5 adds the geofence transition log
+    // Version 6 adds polygon-shaped zones
+    // Version 7 adds the weekly quiet schedules
+    // Version 8 adds the sync state: row versions, local change flags and tombstones
+    private static final int DATABASE_VERSION = 8;
+
+    // Compiled statements, keyed by their SQL, reused for as long as the database is open
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
 
     // Constructor
     public PlaceDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Write-ahead logging lets the geofence receiver and the list read while the UI writes
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Inserts a place, or updates the existing row with the same place ID in place so that it
+     * keeps its _id. Runs in its own transaction unless one is already open.
+     *
+     * @param values the place's columns, which must include its place ID
+     * @return the _id of the inserted or updated row, or -1 on failure
+     */
+    public long upsertPlace(ContentValues values) {
+        String placeId = values.getAsString(PlaceEntry.COLUMN_PLACE_ID);
+        if (placeId == null) return -1;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id;
+            if (updatePlace(placeId, values) > 0) {
+                SQLiteStatement select = getStatement(db, "SELECT " + PlaceEntry._ID +
+                        " FROM " + PlaceEntry.TABLE_NAME +
+                        " WHERE " + PlaceEntry.COLUMN_PLACE_ID + "=?");
+                synchronized (select) {
+                    select.bindString(1, placeId);
+                    id = select.simpleQueryForLong();
+                }
+            } else {
+                String[] columns = getSortedColumns(values);
+                StringBuilder sql = new StringBuilder("INSERT INTO " + PlaceEntry.TABLE_NAME + " (");
+                StringBuilder params = new StringBuilder();
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(i == 0 ? "" : ", ").append(columns[i]);
+                    params.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(") VALUES (").append(params).append(")");
+                SQLiteStatement insert = getStatement(db, sql.toString());
+                synchronized (insert) {
+                    bindColumns(insert, columns, values);
+                    id = insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+            return id;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the row with this place ID with a compiled statement. Runs in its own transaction
+     * unless one is already open.
+     *
+     * @param placeId the place ID of the row to update
+     * @param values  the columns to set
+     * @return the number of rows updated
+     */
+    public int updatePlace(String placeId, ContentValues values) {
+        String[] columns = getSortedColumns(values);
+        if (columns.length == 0) return 0;
+        StringBuilder sql = new StringBuilder("UPDATE " + PlaceEntry.TABLE_NAME + " SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]).append("=?");
+        }
+        sql.append(" WHERE ").append(PlaceEntry.COLUMN_PLACE_ID).append("=?");
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            int updated;
+            SQLiteStatement update = getStatement(db, sql.toString());
+            synchronized (update) {
+                bindColumns(update, columns, values);
+                update.bindString(columns.length + 1, placeId);
+                updated = update.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+            return updated;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        synchronized (mStatements) {
+            for (SQLiteStatement statement : mStatements.values()) statement.close();
+            mStatements.clear();
+        }
+        super.close();
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        createPlacesTable(sqLiteDatabase, PlaceEntry.TABLE_NAME);
+        createPlaceIdIndex(sqLiteDatabase);
+        createTransitionsTable(sqLiteDatabase);
+    }
 
+    private static void createPlacesTable(SQLiteDatabase sqLiteDatabase, String tableName) {
         // Create a table to hold the places data
-        final String SQL_CREATE_PLACES_TABLE = "CREATE TABLE " + PlaceEntry.TABLE_NAME + " (" +
+        final String SQL_CREATE_PLACES_TABLE = "CREATE TABLE " + tableName + " (" +
                 PlaceEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
                 PlaceEntry.COLUMN_PLACE_ID + " TEXT NOT NULL, " +
-                "UNIQUE (" + PlaceEntry.COLUMN_PLACE_ID + ") ON CONFLICT REPLACE" +
+                PlaceEntry.COLUMN_PLACE_NAME + " TEXT, " +
+                PlaceEntry.COLUMN_PLACE_ADDRESS + " TEXT, " +
+                PlaceEntry.COLUMN_PLACE_LATITUDE + " REAL, " +
+                PlaceEntry.COLUMN_PLACE_LONGITUDE + " REAL, " +
+                PlaceEntry.COLUMN_FETCHED_AT + " INTEGER NOT NULL DEFAULT 0, " +
+                PlaceEntry.COLUMN_VIEWPORT_RADIUS + " REAL, " +
+                PlaceEntry.COLUMN_RADIUS + " REAL, " +
+                PlaceEntry.COLUMN_LOITERING_DELAY + " INTEGER, " +
+                PlaceEntry.COLUMN_RESPONSIVENESS + " INTEGER, " +
+                PlaceEntry.COLUMN_POLYGON + " TEXT, " +
+                PlaceEntry.COLUMN_SCHEDULE + " TEXT, " +
+                PlaceEntry.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                PlaceEntry.COLUMN_DIRTY + " INTEGER NOT NULL DEFAULT 0, " +
+                PlaceEntry.COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0" +
                 "); ";
 
         sqLiteDatabase.execSQL(SQL_CREATE_PLACES_TABLE);
     }
 
+    private static void createPlaceIdIndex(SQLiteDatabase sqLiteDatabase) {
+        // Lookups, updates and deletes by place ID are point reads through this index
+        sqLiteDatabase.execSQL("CREATE UNIQUE INDEX " + PlaceEntry.INDEX_PLACE_ID +
+                " ON " + PlaceEntry.TABLE_NAME + " (" + PlaceEntry.COLUMN_PLACE_ID + ")");
+    }
+
+    private static void createTransitionsTable(SQLiteDatabase sqLiteDatabase) {
+        // Append-only; AUTOINCREMENT keeps _id increasing, so the oldest rows are the lowest
+        sqLiteDatabase.execSQL("CREATE TABLE " + TransitionEntry.TABLE_NAME + " (" +
+                TransitionEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                TransitionEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, " +
+                TransitionEntry.COLUMN_GEOFENCE_ID + " TEXT NOT NULL, " +
+                TransitionEntry.COLUMN_PLACE_ID + " TEXT NOT NULL, " +
+                TransitionEntry.COLUMN_TRANSITION + " INTEGER NOT NULL, " +
+                TransitionEntry.COLUMN_RINGER_ACTION + " INTEGER NOT NULL" +
+                "); ");
+    }
+
     @Override
-    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i1) {
-        // For now simply drop the table and create a new one.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PlaceEntry.TABLE_NAME);
-        onCreate(sqLiteDatabase);
+    public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        // Migrate step by step so that the user's saved places survive every upgrade
+        if (oldVersion < 2) {
+            // Existing rows get a fetch time of 0, so their details are fetched on next refresh
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_PLACE_NAME, "TEXT");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_PLACE_ADDRESS, "TEXT");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_PLACE_LATITUDE, "REAL");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_PLACE_LONGITUDE, "REAL");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_FETCHED_AT, "INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 3) {
+            // SQLite cannot drop a table constraint, so copy the rows into a rebuilt table
+            final String columns = PlaceEntry._ID + ", " +
+                    PlaceEntry.COLUMN_PLACE_ID + ", " +
+                    PlaceEntry.COLUMN_PLACE_NAME + ", " +
+                    PlaceEntry.COLUMN_PLACE_ADDRESS + ", " +
+                    PlaceEntry.COLUMN_PLACE_LATITUDE + ", " +
+                    PlaceEntry.COLUMN_PLACE_LONGITUDE + ", " +
+                    PlaceEntry.COLUMN_FETCHED_AT;
+            final String newTable = PlaceEntry.TABLE_NAME + "_new";
+            createPlacesTable(sqLiteDatabase, newTable);
+            sqLiteDatabase.execSQL("INSERT INTO " + newTable + " (" + columns + ") SELECT " +
+                    columns + " FROM " + PlaceEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("DROP TABLE " + PlaceEntry.TABLE_NAME);
+            sqLiteDatabase.execSQL("ALTER TABLE " + newTable + " RENAME TO " + PlaceEntry.TABLE_NAME);
+            createPlaceIdIndex(sqLiteDatabase);
+        }
+        // Rebuilding the table for version 3 already created the current columns
+        if (oldVersion == 3) {
+            // Existing places keep the automatic settings; the viewport radius is filled in
+            // the next time their details are fetched
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_VIEWPORT_RADIUS, "REAL");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_RADIUS, "REAL");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_LOITERING_DELAY, "INTEGER");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_RESPONSIVENESS, "INTEGER");
+        }
+        if (oldVersion < 5) {
+            createTransitionsTable(sqLiteDatabase);
+        }
+        if (oldVersion >= 3 && oldVersion < 6) {
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_POLYGON, "TEXT");
+        }
+        if (oldVersion >= 3 && oldVersion < 7) {
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_SCHEDULE, "TEXT");
+        }
+        if (oldVersion >= 3 && oldVersion < 8) {
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_VERSION, "INTEGER NOT NULL DEFAULT 0");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_DIRTY, "INTEGER NOT NULL DEFAULT 0");
+            addColumn(sqLiteDatabase, PlaceEntry.COLUMN_DELETED, "INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 8) {
+            // Existing places are local changes the server has never seen
+            sqLiteDatabase.execSQL("UPDATE " + PlaceEntry.TABLE_NAME +
+                    " SET " + PlaceEntry.COLUMN_DIRTY + " = 1");
+        }
+    }
+
+    /**
+     * Returns the compiled statement for some SQL, compiling it on first use. Must only be
+     * called, and the statement only used, inside a transaction: the database connection is
+     * then always taken before the statement locks, never after, so that a writer holding a
+     * statement can never wait on a writer holding the connection while that one waits on it.
+     */
+    private SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        synchronized (mStatements) {
+            SQLiteStatement statement = mStatements.get(sql);
+            if (statement == null) {
+                statement = db.compileStatement(sql);
+                mStatements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    private static String[] getSortedColumns(ContentValues values) {
+        // Sorted so that the same set of columns always maps to the same compiled statement
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        return columns;
+    }
+
+    private static void bindColumns(SQLiteStatement statement, String[] columns, ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns[i]));
+        }
+    }
+
+    private static void addColumn(SQLiteDatabase sqLiteDatabase, String column, String definition) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + PlaceEntry.TABLE_NAME +
+                " ADD COLUMN " + column + " " + definition);
     }
 }
@@ -0,0 +1,304 @@
+package com.example.android.shushme.provider;
+
+/*
+* Copyright (C) 2017 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*  	http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Bundle;
+import android.util.LruCache;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded, size-aware LRU cache of materialized query results, kept in front of the places
+ * table by {@link PlaceContentProvider}.
+ * <p>
+ * Two kinds of entries are cached: whole rows, looked up by _id or by place ID, and the results
+ * of directory queries. A write to a single row evicts that row and every directory result;
+ * nothing else is touched. Every invalidation bumps a generation counter, and a result read
+ * from the database is only cached if no invalidation happened while it was being read, so a
+ * result can never outlive the write that made it stale.
+ */
+class PlaceQueryCache {
+
+    // Upper bound of the estimated memory held by cached results
+    private static final int MAX_SIZE_BYTES = 1024 * 1024; // 1 MB
+    // Larger directory results are passed through rather than copied
+    private static final int MAX_QUERY_ROWS = 200;
+    private static final String ROW_KEY_PREFIX = "row:";
+    private static final String QUERY_KEY_PREFIX = "query:";
+    // A projection entry naming a column as is, rather than an expression or an alias
+    private static final Pattern COLUMN_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    /**
+     * The materialized rows of a query
+     */
+    private static class Rows {
+        final String[] columns;
+        final Object[][] values;
+        final int sizeBytes;
+
+        Rows(String[] columns, Object[][] values, int sizeBytes) {
+            this.columns = columns;
+            this.values = values;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+
+    private final LruCache<String, Rows> mCache = new LruCache<String, Rows>(MAX_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Rows value) {
+            return value.sizeBytes;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Rows oldValue, Rows newValue) {
+            if (key.startsWith(ROW_KEY_PREFIX)) forgetPlaceId(key);
+        }
+    };
+    // Place ID of each cached row and back, so rows can be found and evicted by either key
+    private final Map<String, Long> mRowIdsByPlaceId = new HashMap<>();
+    private final Map<Long, String> mPlaceIdsByRowId = new HashMap<>();
+    private long mGeneration;
+    // Lookups served from memory and lookups that had to go to the database
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    /**
+     * @return the current generation, to be passed to the put methods after reading
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return a Cursor over the cached result of a directory query, or null on a miss
+     */
+    Cursor getQuery(String[] projection, String selection, String[] selectionArgs,
+                    String sortOrder, String limit) {
+        Rows rows = count(mCache.get(queryKey(projection, selection, selectionArgs, sortOrder, limit)));
+        return rows == null ? null : toCursor(rows, rows.columns);
+    }
+
+    /**
+     * Caches the result of a directory query and returns a Cursor over it, closing the given
+     * Cursor. A result of more than MAX_QUERY_ROWS rows is not cached and the given Cursor is
+     * returned as is.
+     */
+    Cursor putQuery(String[] projection, String selection, String[] selectionArgs,
+                    String sortOrder, String limit, Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_QUERY_ROWS) return cursor;
+        Rows rows = materialize(cursor);
+        put(queryKey(projection, selection, selectionArgs, sortOrder, limit), rows, generation);
+        return toCursor(rows, rows.columns);
+    }
+
+    /**
+     * @return true if every entry of a projection is a plain column name, so it can be applied
+     * to a cached row; computed or aliased columns such as COUNT(*) have to go to the database
+     */
+    static boolean isColumnProjection(String[] projection) {
+        if (projection == null) return true;
+        for (String column : projection) {
+            if (column == null || !COLUMN_NAME.matcher(column).matches()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return a Cursor over the projected cached row with this _id, or null on a miss
+     */
+    Cursor getRow(long rowId, String[] projection) {
+        Rows rows = count(mCache.get(ROW_KEY_PREFIX + rowId));
+        return rows == null ? null : toCursor(rows, projection);
+    }
+
+    /**
+     * @return a Cursor over the projected cached row with this place ID, or null on a miss
+     */
+    Cursor getRowByPlaceId(String placeId, String[] projection) {
+        Long rowId;
+        synchronized (this) {
+            rowId = mRowIdsByPlaceId.get(placeId);
+        }
+        Rows rows = rowId == null ? null : mCache.get(ROW_KEY_PREFIX + rowId);
+        count(rows);
+        return rows == null ? null : toCursor(rows, projection);
+    }
+
+    /**
+     * Caches a full row (or the absence of one) and returns a Cursor over its projection.
+     * The given Cursor, which must contain every column of the places table, is closed.
+     */
+    Cursor putRow(Cursor cursor, String[] projection, long generation) {
+        Rows rows = materialize(cursor);
+        if (rows.values.length == 1) {
+            int rowIdIndex = Arrays.asList(rows.columns).indexOf(PlaceEntry._ID);
+            int placeIdIndex = Arrays.asList(rows.columns).indexOf(PlaceEntry.COLUMN_PLACE_ID);
+            long rowId = ((Number) rows.values[0][rowIdIndex]).longValue();
+            String placeId = (String) rows.values[0][placeIdIndex];
+            synchronized (this) {
+                if (generation == mGeneration) {
+                    mCache.put(ROW_KEY_PREFIX + rowId, rows);
+                    mRowIdsByPlaceId.put(placeId, rowId);
+                    mPlaceIdsByRowId.put(rowId, placeId);
+                }
+            }
+        }
+        return toCursor(rows, projection);
+    }
+
+    /**
+     * Evicts the row with this _id and every directory result
+     */
+    synchronized void invalidateRow(long rowId) {
+        mGeneration++;
+        mCache.remove(ROW_KEY_PREFIX + rowId);
+        invalidateQueries();
+    }
+
+    /**
+     * Evicts the row with this place ID and every directory result
+     */
+    synchronized void invalidatePlaceId(String placeId) {
+        mGeneration++;
+        Long rowId = mRowIdsByPlaceId.get(placeId);
+        if (rowId != null) mCache.remove(ROW_KEY_PREFIX + rowId);
+        invalidateQueries();
+    }
+
+    /**
+     * Evicts everything, for writes whose affected rows are not known
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    /**
+     * @return the hit, miss and eviction counters and the current and maximum size in bytes
+     */
+    Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putInt(PlaceContract.KEY_CACHE_HITS, mHits.get());
+        stats.putInt(PlaceContract.KEY_CACHE_MISSES, mMisses.get());
+        stats.putInt(PlaceContract.KEY_CACHE_EVICTIONS, mCache.evictionCount());
+        stats.putInt(PlaceContract.KEY_CACHE_SIZE, mCache.size());
+        stats.putInt(PlaceContract.KEY_CACHE_MAX_SIZE, mCache.maxSize());
+        return stats;
+    }
+
+    private Rows count(Rows rows) {
+        if (rows == null) mMisses.incrementAndGet();
+        else mHits.incrementAndGet();
+        return rows;
+    }
+
+    private void invalidateQueries() {
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(QUERY_KEY_PREFIX)) mCache.remove(key);
+        }
+    }
+
+    private synchronized void put(String key, Rows rows, long generation) {
+        // A result bigger than half the cache would only push everything else out
+        if (generation == mGeneration && rows.sizeBytes <= MAX_SIZE_BYTES / 2) {
+            mCache.put(key, rows);
+        }
+    }
+
+    private synchronized void forgetPlaceId(String rowKey) {
+        Long rowId = Long.valueOf(rowKey.substring(ROW_KEY_PREFIX.length()));
+        String placeId = mPlaceIdsByRowId.remove(rowId);
+        if (placeId != null) mRowIdsByPlaceId.remove(placeId);
+    }
+
+    private static String queryKey(String[] projection, String selection, String[] selectionArgs,
+                                   String sortOrder, String limit) {
+        return QUERY_KEY_PREFIX + Arrays.toString(projection) + '\u0000' + selection + '\u0000' +
+                Arrays.toString(selectionArgs) + '\u0000' + sortOrder + '\u0000' + limit;
+    }
+
+    /**
+     * Copies every row of a Cursor and closes it, estimating the memory the copy takes
+     */
+    private static Rows materialize(Cursor cursor) {
+        try {
+            String[] columns = cursor.getColumnNames();
+            Object[][] values = new Object[cursor.getCount()][];
+            int sizeBytes = 64;
+            int row = 0;
+            while (cursor.moveToNext()) {
+                Object[] rowValues = new Object[columns.length];
+                for (int column = 0; column < columns.length; column++) {
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            rowValues[column] = cursor.getLong(column);
+                            sizeBytes += 24;
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            rowValues[column] = cursor.getDouble(column);
+                            sizeBytes += 24;
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String text = cursor.getString(column);
+                            rowValues[column] = text;
+                            sizeBytes += 40 + 2 * text.length();
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(column);
+                            rowValues[column] = blob;
+                            sizeBytes += 16 + blob.length;
+                            break;
+                        default:
+                            sizeBytes += 4;
+                            break;
+                    }
+                }
+                values[row++] = rowValues;
+                sizeBytes += 16 + 4 * columns.length;
+            }
+            return new Rows(columns, values, sizeBytes);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Cursor toCursor(Rows rows, String[] projection) {
+        if (projection == null) projection = rows.columns;
+        int[] columnIndices = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columnIndices[i] = Arrays.asList(rows.columns).indexOf(projection[i]);
+            if (columnIndices[i] < 0) {
+                throw new IllegalArgumentException("Unknown column: " + projection[i]);
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, rows.values.length);
+        Object[] rowValues = new Object[projection.length];
+        for (Object[] values : rows.values) {
+            for (int i = 0; i < columnIndices.length; i++) rowValues[i] = values[columnIndices[i]];
+            cursor.addRow(rowValues);
+        }
+        return cursor;
+    }
+}
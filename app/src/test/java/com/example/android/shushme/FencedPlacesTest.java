@@ -0,0 +1,76 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FencedPlacesTest {
+
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+
+    @Test
+    public void onlyActivePlacesWithAKnownShapeAreFenced() {
+        PlaceSnapshot places = new PlaceSnapshot.Builder(4)
+                .addPlace("always", 40.75, -73.99)
+                .addPlace("office", 40.76, -73.98).setSchedule("MON-FRI 09:00-17:00")
+                .addPlace("unfetched", Double.NaN, Double.NaN)
+                .addPlace("night", 40.77, -73.97).setSchedule("SAT 22:00-02:00")
+                .build();
+        // Saturday 17 October 2026 at noon
+        FencedPlaces fenced = FencedPlaces.resolve(places, at(2026, Calendar.OCTOBER, 17, 12));
+        assertArrayEquals(new String[]{"always"}, fenced.placeIds);
+        assertEquals(at(2026, Calendar.OCTOBER, 17, 22).getTimeInMillis(),
+                fenced.nextScheduleBoundary);
+    }
+
+    @Test
+    public void unsetSettingsFollowThePlaceSize() {
+        PlaceSnapshot places = new PlaceSnapshot.Builder(2)
+                .addPlace("default", 40.75, -73.99)
+                .addPlace("custom", 40.76, -73.98).setRadius(120).setLoiteringDelay(5000)
+                .build();
+        FencedPlaces fenced = FencedPlaces.resolve(places, at(2026, Calendar.OCTOBER, 17, 12));
+        assertEquals(GeofenceSettings.DEFAULT_RADIUS, fenced.radii[0], 0);
+        assertEquals(120, fenced.radii[1], 0);
+        assertEquals(GeofenceSettings.getLoiteringDelay(GeofenceSettings.UNSET,
+                GeofenceSettings.DEFAULT_RADIUS), fenced.loiteringDelays[0]);
+        assertEquals(5000, fenced.loiteringDelays[1]);
+        assertEquals(GeofenceSettings.getResponsiveness(GeofenceSettings.UNSET, 120),
+                fenced.responsiveness[1]);
+        assertEquals(Long.MAX_VALUE, fenced.nextScheduleBoundary);
+    }
+
+    @Test
+    public void polygonIsFencedByItsEnclosingCircle() {
+        String outline = PlacePolygon.encode(new double[]{40.750, 40.750, 40.752},
+                new double[]{-73.990, -73.988, -73.989});
+        PlacePolygon polygon = PlacePolygon.parse(outline);
+        // The polygon alone is enough, even before the place details are fetched
+        PlaceSnapshot places = new PlaceSnapshot.Builder(2)
+                .addPlace("circle", 40.75, -73.99)
+                .addPlace("block", Double.NaN, Double.NaN).setPolygon(outline)
+                .build();
+        FencedPlaces fenced = FencedPlaces.resolve(places, at(2026, Calendar.OCTOBER, 17, 12));
+        assertEquals(2, fenced.size());
+        assertFalse(fenced.isPolygon[0]);
+        assertTrue(fenced.isPolygon[1]);
+        assertEquals(polygon.getCenterLatitude(), fenced.lats[1], 0);
+        assertEquals(polygon.getCenterLongitude(), fenced.lngs[1], 0);
+        assertEquals(polygon.getRadius(), fenced.radii[1], 0);
+        assertEquals(1, fenced.polygons.size());
+        assertTrue(fenced.polygons.containsKey("block"));
+    }
+
+    private static Calendar at(int year, int month, int day, int hour) {
+        Calendar time = Calendar.getInstance(NEW_YORK);
+        time.clear();
+        time.set(year, month, day, hour, 0);
+        return time;
+    }
+}
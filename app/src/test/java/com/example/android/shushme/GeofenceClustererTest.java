@@ -0,0 +1,85 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GeofenceClustererTest {
+
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    @Test
+    public void overlappingCirclesMergeIntoOneThatEnclosesThem() {
+        double[] lats = {40.75, 40.75};
+        double[] lngs = {-73.99, -73.99 + east(80, 40.75)};
+        List<GeofenceClusterer.Cluster> clusters = cluster(lats, lngs, new float[]{50, 50},
+                new boolean[2]);
+        assertEquals(1, clusters.size());
+        assertEquals(90, clusters.get(0).radius, 0.5);
+        assertEnclosed(clusters, lats, lngs, new float[]{50, 50});
+    }
+
+    @Test
+    public void isolatedCircleIsNeverMerged() {
+        double[] lats = {40.75, 40.75};
+        double[] lngs = {-73.99, -73.99 + east(20, 40.75)};
+        List<GeofenceClusterer.Cluster> clusters = cluster(lats, lngs, new float[]{50, 50},
+                new boolean[]{false, true});
+        assertEquals(2, clusters.size());
+    }
+
+    /**
+     * Candidates can be spread over any distance; the circles far from the first one must still
+     * be merged by their true distances
+     */
+    @Test
+    public void circlesFarFromTheFirstAreMergedAtTheirOwnLatitude() {
+        // One place in Oslo, then two at the equator 105 m apart east to west, and two in
+        // Oslo 80 m apart
+        double[] lats = {59.91, 0.0, 0.0, 59.95, 59.95};
+        double[] lngs = {10.75, 30.0, 30.0 + east(105, 0.0), 10.75, 10.75 + east(80, 59.95)};
+        float[] radii = {50, 50, 50, 50, 50};
+        List<GeofenceClusterer.Cluster> clusters = cluster(lats, lngs, radii, new boolean[5]);
+        assertEnclosed(clusters, lats, lngs, radii);
+        // The equator pair's edges are 5 m apart, so it merges into a 102.5 m circle; the Oslo
+        // pair overlaps and merges too
+        assertEquals(3, clusters.size());
+        assertEquals(Arrays.asList(1, 2), clusters.get(1).members);
+        assertEquals(102.5, clusters.get(1).radius, 0.5);
+        assertEquals(Arrays.asList(3, 4), clusters.get(2).members);
+        assertEquals(90, clusters.get(2).radius, 0.5);
+    }
+
+    private static List<GeofenceClusterer.Cluster> cluster(double[] lats, double[] lngs,
+                                                           float[] radii, boolean[] isolated) {
+        int[] circles = new int[lats.length];
+        for (int i = 0; i < circles.length; i++) circles[i] = i;
+        return new GeofenceClusterer(250).cluster(lats, lngs, radii, isolated, circles);
+    }
+
+    /**
+     * Asserts that every cluster encloses each of its members' circles
+     */
+    private static void assertEnclosed(List<GeofenceClusterer.Cluster> clusters, double[] lats,
+                                       double[] lngs, float[] radii) {
+        for (GeofenceClusterer.Cluster cluster : clusters) {
+            for (int member : cluster.members) {
+                double farEdge = PlaceIndex.distanceMeters(cluster.latitude, cluster.longitude,
+                        lats[member], lngs[member]) + radii[member];
+                assertTrue(String.format("circle %d reaches %.1f m out of %.1f m", member,
+                        farEdge, cluster.radius), farEdge <= cluster.radius + 0.5);
+            }
+        }
+    }
+
+    /**
+     * @return the longitude difference of a distance due east at a latitude
+     */
+    private static double east(double meters, double latitude) {
+        return meters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+    }
+}
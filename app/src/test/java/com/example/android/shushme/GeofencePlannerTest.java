@@ -0,0 +1,89 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GeofencePlannerTest {
+
+    private static final double LAT = 40.75;
+    private static final double LNG = -73.99;
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    @Test
+    public void fewPlacesAreAllFencedWithoutReplanFence() {
+        GeofencePlanner planner = planner(new Random(1), 50, 5000, 50);
+        List<GeofencePlanner.Fence> fences = planner.plan(LAT, LNG);
+        assertEquals(50, fences.size());
+        assertNull(findReplanFence(fences));
+    }
+
+    @Test
+    public void manyPlacesAreCappedWithReplanFence() {
+        GeofencePlanner planner = planner(new Random(2), 5000, 50000, 50);
+        List<GeofencePlanner.Fence> fences = planner.plan(LAT, LNG);
+        assertEquals(GeofencePlanner.MAX_GEOFENCES, fences.size());
+        assertTrue(findReplanFence(fences) != null);
+    }
+
+    @Test
+    public void replanFenceFiresBeforeTheFarthestFenceInDenseAreas() {
+        // 1000 places within 300 m, far denser than the smallest re-plan boundary
+        GeofencePlanner planner = planner(new Random(3), 1000, 300, 10);
+        List<GeofencePlanner.Fence> fences = planner.plan(LAT, LNG);
+        GeofencePlanner.Fence replan = findReplanFence(fences);
+        assertTrue(replan != null);
+        double farthestEdge = 0;
+        for (GeofencePlanner.Fence fence : fences) {
+            if (fence.isReplanFence()) continue;
+            farthestEdge = Math.max(farthestEdge, PlaceIndex.distanceMeters(LAT, LNG,
+                    fence.latitude, fence.longitude) - fence.radius);
+        }
+        // Less than the 500 m minimum, and within float rounding of the farthest near edge
+        assertTrue(replan.radius < 500);
+        assertTrue(replan.radius <= Math.max(GeofenceSettings.DEFAULT_RADIUS, farthestEdge) + 0.01);
+    }
+
+    @Test
+    public void sparsePlacesKeepTheSmallestReplanBoundary() {
+        GeofencePlanner planner = planner(new Random(4), 5000, 50000, 50);
+        GeofencePlanner.Fence replan = findReplanFence(planner.plan(LAT, LNG));
+        assertTrue(replan.radius >= 500);
+    }
+
+    private static GeofencePlanner.Fence findReplanFence(List<GeofencePlanner.Fence> fences) {
+        for (GeofencePlanner.Fence fence : fences) {
+            if (fence.isReplanFence()) return fence;
+        }
+        return null;
+    }
+
+    /**
+     * @return a planner over places scattered uniformly within a distance of the device
+     */
+    private static GeofencePlanner planner(Random random, int count, double spreadMeters,
+                                           float radius) {
+        String[] ids = new String[count];
+        double[] lats = new double[count];
+        double[] lngs = new double[count];
+        float[] radii = new float[count];
+        int[] zeros = new int[count];
+        for (int place = 0; place < count; place++) {
+            double distance = spreadMeters * Math.sqrt(random.nextDouble());
+            double bearing = random.nextDouble() * 2 * Math.PI;
+            ids[place] = "place" + place;
+            lats[place] = LAT + distance * Math.cos(bearing) / METERS_PER_DEGREE;
+            lngs[place] = LNG + distance * Math.sin(bearing) /
+                    (METERS_PER_DEGREE * Math.cos(Math.toRadians(LAT)));
+            radii[place] = radius;
+        }
+        return new GeofencePlanner(ids, lats, lngs, radii, new boolean[count], zeros,
+                Arrays.copyOf(zeros, count), 0);
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalGeofenceEngineTest {
+
+    private static final double LAT = 40.75;
+    private static final double LNG = -73.99;
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final float ACCURACY = 10;
+
+    @Test
+    public void fixInsideEntersAndFixBeyondTheHysteresisExits() {
+        LocalGeofenceEngine engine = engine(100, 0);
+        assertTrue(engine.onLocation(LAT, LNG, ACCURACY, 0));
+        assertEquals(Collections.singletonList("a"), engine.getEntered());
+        assertEquals(Collections.singletonList("a"), engine.getInside());
+
+        // Just past the radius but within the 20 m hysteresis band: still inside
+        assertFalse(engine.onLocation(north(110), LNG, ACCURACY, 1000));
+        assertTrue(engine.onLocation(north(130), LNG, ACCURACY, 2000));
+        assertEquals(Collections.singletonList("a"), engine.getExited());
+        assertTrue(engine.getInside().isEmpty());
+    }
+
+    @Test
+    public void inaccurateFixesAreIgnored() {
+        LocalGeofenceEngine engine = engine(100, 0);
+        assertFalse(engine.onLocation(LAT, LNG, LocalGeofenceEngine.MAX_ACCURACY + 1, 0));
+        assertTrue(engine.getInside().isEmpty());
+        engine.onLocation(LAT, LNG, ACCURACY, 0);
+        assertFalse(engine.onLocation(north(5000), LNG, LocalGeofenceEngine.MAX_ACCURACY + 1,
+                1000));
+        assertEquals(Collections.singletonList("a"), engine.getInside());
+    }
+
+    @Test
+    public void loiteringDelayDefersTheEntry() {
+        LocalGeofenceEngine engine = engine(100, 60000);
+        assertFalse(engine.onLocation(LAT, LNG, ACCURACY, 0));
+        assertFalse(engine.onLocation(LAT, LNG, ACCURACY, 30000));
+        assertTrue(engine.getInside().isEmpty());
+        assertTrue(engine.onLocation(LAT, LNG, ACCURACY, 60000));
+        assertEquals(Collections.singletonList("a"), engine.getEntered());
+    }
+
+    @Test
+    public void leavingBeforeTheLoiteringDelayEmitsNothing() {
+        LocalGeofenceEngine engine = engine(100, 60000);
+        engine.onLocation(LAT, LNG, ACCURACY, 0);
+        assertFalse(engine.onLocation(north(500), LNG, ACCURACY, 30000));
+        assertFalse(engine.onLocation(LAT, LNG, ACCURACY, 70000));
+        assertTrue(engine.getInside().isEmpty());
+    }
+
+    @Test
+    public void resumedPlaceIsExitedByAFarFix() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(new String[]{"a", "b"},
+                new double[]{LAT, north(10000)}, new double[]{LNG, LNG}, new float[]{100, 100},
+                new int[2]);
+        engine.setInside(Arrays.asList("a", "unknown"));
+        assertEquals(Collections.singletonList("a"), engine.getInside());
+        // Far from "a" and outside the search radius of every place but "b"
+        assertTrue(engine.onLocation(north(10000), LNG, ACCURACY, 0));
+        assertEquals(Collections.singletonList("a"), engine.getExited());
+        assertEquals(Collections.singletonList("b"), engine.getEntered());
+    }
+
+    @Test
+    public void overlappingPlacesAreEnteredTogether() {
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(new String[]{"a", "b", "c"},
+                new double[]{LAT, north(50), north(1000)}, new double[]{LNG, LNG, LNG},
+                new float[]{100, 100, 100}, new int[3]);
+        assertTrue(engine.onLocation(north(25), LNG, ACCURACY, 0));
+        assertEquals(Arrays.asList("a", "b"), sorted(engine.getEntered().toArray(new String[0])));
+    }
+
+    @Test
+    public void manyPlacesMatchBruteForce() {
+        Random random = new Random(1);
+        int count = 10000;
+        String[] ids = new String[count];
+        double[] lats = new double[count];
+        double[] lngs = new double[count];
+        float[] radii = new float[count];
+        for (int place = 0; place < count; place++) {
+            ids[place] = "place" + place;
+            lats[place] = LAT + random.nextGaussian() * 0.02;
+            lngs[place] = LNG + random.nextGaussian() * 0.02;
+            radii[place] = 50 + random.nextInt(200);
+        }
+        LocalGeofenceEngine engine = new LocalGeofenceEngine(ids, lats, lngs, radii,
+                new int[count]);
+        for (int fix = 0; fix < 2000; fix++) {
+            double lat = LAT + random.nextGaussian() * 0.02;
+            double lng = LNG + random.nextGaussian() * 0.02;
+            engine.onLocation(lat, lng, ACCURACY, fix * 1000L);
+            for (String placeId : engine.getEntered()) {
+                int place = Integer.parseInt(placeId.substring("place".length()));
+                assertTrue(PlaceIndex.distanceMeters(lat, lng, lats[place], lngs[place])
+                        <= radii[place]);
+            }
+            // Every place within its radius of the fix is inside after it
+            boolean[] inside = new boolean[count];
+            for (String placeId : engine.getInside()) {
+                inside[Integer.parseInt(placeId.substring("place".length()))] = true;
+            }
+            for (int place = 0; place < count; place++) {
+                if (PlaceIndex.distanceMeters(lat, lng, lats[place], lngs[place]) < radii[place]) {
+                    assertTrue(inside[place]);
+                }
+            }
+        }
+    }
+
+    private static LocalGeofenceEngine engine(float radius, int loiteringDelay) {
+        return new LocalGeofenceEngine(new String[]{"a"}, new double[]{LAT},
+                new double[]{LNG}, new float[]{radius}, new int[]{loiteringDelay});
+    }
+
+    private static double north(double meters) {
+        return LAT + meters / METERS_PER_DEGREE;
+    }
+
+    private static List<String> sorted(String[] ids) {
+        Arrays.sort(ids);
+        return Arrays.asList(ids);
+    }
+}
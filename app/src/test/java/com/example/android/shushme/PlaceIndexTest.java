@@ -0,0 +1,183 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlaceIndexTest {
+
+    private static final int PLACES = 10000;
+
+    @Test
+    public void nearestMatchesBruteForce() {
+        Random random = new Random(1);
+        double[][] places = worldwide(random, PLACES);
+        PlaceIndex index = new PlaceIndex(places[0], places[1]);
+        for (int query = 0; query < 200; query++) {
+            double lat = random.nextDouble() * 180 - 90;
+            double lng = random.nextDouble() * 360 - 180;
+            for (int n : new int[]{1, 99, 400}) {
+                assertNearest(places, lat, lng, n, index.nearest(lat, lng, n));
+            }
+        }
+    }
+
+    @Test
+    public void nearestMatchesBruteForceInDenseClusters() {
+        Random random = new Random(2);
+        double[][] places = clustered(random, PLACES);
+        PlaceIndex index = new PlaceIndex(places[0], places[1]);
+        for (int query = 0; query < 200; query++) {
+            // Half the queries inside a cluster, half between them
+            int near = random.nextInt(PLACES);
+            double lat = query % 2 == 0 ? places[0][near] : random.nextDouble() * 100 - 50;
+            double lng = query % 2 == 0 ? places[1][near] : random.nextDouble() * 360 - 180;
+            assertNearest(places, lat, lng, 400, index.nearest(lat, lng, 400));
+        }
+    }
+
+    @Test
+    public void nearestWrapsAroundTheAntimeridian() {
+        double[] lats = {0, 0, 0};
+        double[] lngs = {179.999, -179.999, 179.0};
+        PlaceIndex index = new PlaceIndex(lats, lngs);
+        int[] nearest = index.nearest(0, -179.9995, 2);
+        assertEquals(1, nearest[0]);
+        assertEquals(0, nearest[1]);
+    }
+
+    @Test
+    public void nearestReturnsEveryPlaceWhenAskedForMore() {
+        PlaceIndex index = new PlaceIndex(new double[]{1, 2}, new double[]{1, 2});
+        assertArrayEquals(new int[]{0, 1}, index.nearest(0, 0, 5));
+        assertEquals(0, new PlaceIndex(new double[0], new double[0]).nearest(0, 0, 5).length);
+    }
+
+    @Test
+    public void withinMatchesBruteForce() {
+        Random random = new Random(3);
+        double[][] places = clustered(random, PLACES);
+        PlaceIndex index = new PlaceIndex(places[0], places[1]);
+        int[] result = new int[PLACES];
+        for (int query = 0; query < 200; query++) {
+            int near = random.nextInt(PLACES);
+            double lat = places[0][near] + random.nextGaussian() * 0.01;
+            double lng = places[1][near] + random.nextGaussian() * 0.01;
+            double radius = 10 + random.nextDouble() * 5000;
+            int found = index.within(lat, lng, radius, result);
+            boolean[] reported = new boolean[PLACES];
+            for (int i = 0; i < found; i++) reported[result[i]] = true;
+            for (int place = 0; place < PLACES; place++) {
+                double distance = PlaceIndex.distanceMeters(lat, lng, places[0][place],
+                        places[1][place]);
+                // Ignore rounding right at the edge
+                if (Math.abs(distance - radius) < 1e-3) continue;
+                assertEquals(distance <= radius, reported[place]);
+            }
+        }
+    }
+
+    @Test
+    public void withinReportsTheCountWhenTheResultIsTooSmall() {
+        PlaceIndex index = new PlaceIndex(new double[]{0, 0, 0}, new double[]{0, 0.0001, 0.0002});
+        int[] result = new int[1];
+        assertEquals(3, index.within(0, 0, 100, result));
+        assertEquals(0, index.within(10, 10, 100, result));
+    }
+
+    /**
+     * The planner asks for the 400 nearest of every place on each re-plan; each lookup has to
+     * stay well under a millisecond at 10k places, wherever the places are
+     */
+    @Test
+    public void nearestBenchmark() {
+        Random random = new Random(4);
+        double[][] worldwide = worldwide(random, PLACES);
+        double[][] clustered = clustered(random, PLACES);
+        // Two dense cities far apart, the worst case for a fixed grid
+        double[][] twoCities = new double[2][PLACES];
+        for (int place = 0; place < PLACES; place++) {
+            boolean newYork = place % 2 == 0;
+            twoCities[0][place] = (newYork ? 40.71 : 51.51) + random.nextGaussian() * 0.05;
+            twoCities[1][place] = (newYork ? -74.01 : -0.13) + random.nextGaussian() * 0.05;
+        }
+        double[][][] layouts = {worldwide, clustered, twoCities};
+        String[] names = {"worldwide", "clustered", "two cities"};
+        for (int layout = 0; layout < layouts.length; layout++) {
+            PlaceIndex index = new PlaceIndex(layouts[layout][0], layouts[layout][1]);
+            for (int n : new int[]{99, 400}) {
+                // Warm up, then time queries from random points, in and between the places
+                runQueries(index, random, n, 2000);
+                long start = System.nanoTime();
+                int queries = 2000;
+                runQueries(index, random, n, queries);
+                double microsPerQuery = (System.nanoTime() - start) / 1000.0 / queries;
+                System.out.println(String.format("nearest %d of %d places, %s: %.1f us/query",
+                        n, PLACES, names[layout], microsPerQuery));
+                assertTrue(microsPerQuery < 1000);
+            }
+        }
+    }
+
+    private static long runQueries(PlaceIndex index, Random random, int n, int queries) {
+        long checksum = 0;
+        for (int query = 0; query < queries; query++) {
+            int near = random.nextInt(index.size());
+            boolean inside = query % 2 == 0;
+            double lat = inside ? index.getLatitude(near) : random.nextDouble() * 140 - 70;
+            double lng = inside ? index.getLongitude(near) : random.nextDouble() * 360 - 180;
+            checksum += index.nearest(lat, lng, n)[0];
+        }
+        return checksum;
+    }
+
+    private static void assertNearest(double[][] places, double lat, double lng, int n,
+                                      int[] nearest) {
+        Integer[] expected = new Integer[places[0].length];
+        final double[] distances = new double[places[0].length];
+        for (int place = 0; place < expected.length; place++) {
+            expected[place] = place;
+            distances[place] = PlaceIndex.distanceMeters(lat, lng, places[0][place],
+                    places[1][place]);
+        }
+        Arrays.sort(expected, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(distances[a], distances[b]);
+            }
+        });
+        assertEquals(Math.min(n, expected.length), nearest.length);
+        for (int i = 0; i < nearest.length; i++) {
+            // Compare distances rather than indices, which may swap on ties
+            assertEquals(distances[expected[i]], distances[nearest[i]], 1e-3);
+        }
+    }
+
+    private static double[][] worldwide(Random random, int count) {
+        double[][] places = new double[2][count];
+        for (int place = 0; place < count; place++) {
+            // Uniform over the sphere
+            places[0][place] = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+            places[1][place] = random.nextDouble() * 360 - 180;
+        }
+        return places;
+    }
+
+    private static double[][] clustered(Random random, int count) {
+        double[][] places = new double[2][count];
+        double[][] centers = worldwide(random, 20);
+        for (int place = 0; place < count; place++) {
+            int center = random.nextInt(20);
+            places[0][place] = Math.max(-90, Math.min(90,
+                    centers[0][center] + random.nextGaussian() * 0.02));
+            places[1][place] = centers[1][center] + random.nextGaussian() * 0.02;
+        }
+        return places;
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlacePolygonTest {
+
+    private static final double LAT = 40.75;
+    private static final double LNG = -73.99;
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+
+    @Test
+    public void squareContainsItsInsideOnly() {
+        PlacePolygon square = polygon(new double[][]{{0, 0}, {0, 100}, {100, 100}, {100, 0}});
+        assertTrue(square.contains(lat(50), lng(50)));
+        assertTrue(square.contains(lat(1), lng(99)));
+        assertFalse(square.contains(lat(-1), lng(50)));
+        assertFalse(square.contains(lat(50), lng(101)));
+        assertFalse(square.contains(lat(500), lng(500)));
+    }
+
+    @Test
+    public void concaveNotchIsOutside() {
+        // A U open to the east: the notch between the arms is inside the enclosing circle but
+        // not the U
+        PlacePolygon u = polygon(new double[][]{{0, 0}, {100, 0}, {100, 100}, {70, 100},
+                {70, 30}, {30, 30}, {30, 100}, {0, 100}});
+        assertTrue(u.contains(lat(50), lng(15)));
+        assertTrue(u.contains(lat(85), lng(85)));
+        assertTrue(u.contains(lat(15), lng(50)));
+        assertFalse(u.contains(lat(50), lng(60)));
+        double distance = PlaceIndex.distanceMeters(lat(50), lng(60), u.getCenterLatitude(),
+                u.getCenterLongitude());
+        assertTrue(distance < u.getRadius());
+    }
+
+    @Test
+    public void enclosingCircleIsMinimalAndEnclosesEveryVertex() {
+        // A long thin rectangle: the circle is the one on its diagonal
+        double[][] vertices = {{0, 0}, {0, 400}, {30, 400}, {30, 0}};
+        PlacePolygon rectangle = polygon(vertices);
+        double diagonal = Math.hypot(400, 30);
+        assertEquals(diagonal / 2, rectangle.getRadius(), 1.0);
+        for (double[] vertex : vertices) {
+            assertTrue(PlaceIndex.distanceMeters(lat(vertex[0]), lng(vertex[1]),
+                    rectangle.getCenterLatitude(), rectangle.getCenterLongitude())
+                    <= rectangle.getRadius());
+        }
+    }
+
+    @Test
+    public void randomPolygonsAreEnclosedByTheirCircle() {
+        Random random = new Random(1);
+        for (int polygon = 0; polygon < 100; polygon++) {
+            double[][] vertices = star(random, 3 + random.nextInt(300), 50 + random.nextInt(500));
+            PlacePolygon parsed = polygon(vertices);
+            double farthest = 0;
+            for (double[] vertex : vertices) {
+                farthest = Math.max(farthest, PlaceIndex.distanceMeters(lat(vertex[0]),
+                        lng(vertex[1]), parsed.getCenterLatitude(), parsed.getCenterLongitude()));
+            }
+            assertTrue(farthest <= parsed.getRadius());
+            // Minimal: no larger than the circle around the centroid of the vertices
+            double centroidRadius = 0;
+            double sumNorth = 0, sumEast = 0;
+            for (double[] vertex : vertices) {
+                sumNorth += vertex[0];
+                sumEast += vertex[1];
+            }
+            for (double[] vertex : vertices) {
+                centroidRadius = Math.max(centroidRadius, Math.hypot(
+                        vertex[0] - sumNorth / vertices.length,
+                        vertex[1] - sumEast / vertices.length));
+            }
+            assertTrue(parsed.getRadius() <= centroidRadius + 1);
+        }
+    }
+
+    @Test
+    public void unreadablePolygonsAreRejected() {
+        assertNull(PlacePolygon.parse(null));
+        assertNull(PlacePolygon.parse("1,2;3,4"));
+        assertNull(PlacePolygon.parse("1,2;3,4;5"));
+        assertNull(PlacePolygon.parse("1,2;3,x;5,6"));
+        assertTrue(PlacePolygon.parse(" 1 , 2 ; 3,4 ;5,6 ") != null);
+    }
+
+    @Test
+    public void encodeRoundTrips() {
+        double[] lats = {40.1, 40.2, 40.3};
+        double[] lngs = {-73.1, -73.3, -73.2};
+        PlacePolygon polygon = PlacePolygon.parse(PlacePolygon.encode(lats, lngs));
+        assertTrue(polygon.contains(40.2, -73.2));
+    }
+
+    /**
+     * A point-in-polygon test runs on every entry and re-check; it must stay around a
+     * microsecond even for hundreds of vertices
+     */
+    @Test
+    public void containsBenchmark() {
+        Random random = new Random(2);
+        PlacePolygon polygon = polygon(star(random, 500, 300));
+        double[] lats = new double[10000];
+        double[] lngs = new double[10000];
+        for (int i = 0; i < lats.length; i++) {
+            lats[i] = lat(random.nextGaussian() * 300);
+            lngs[i] = lng(random.nextGaussian() * 300);
+        }
+        int inside = 0;
+        for (int i = 0; i < lats.length; i++) if (polygon.contains(lats[i], lngs[i])) inside++;
+        long start = System.nanoTime();
+        int rounds = 50;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < lats.length; i++) if (polygon.contains(lats[i], lngs[i])) inside++;
+        }
+        double nanosPerTest = (System.nanoTime() - start) / (double) (rounds * lats.length);
+        System.out.println(String.format("contains, 500 vertices: %.0f ns/test (%d inside)",
+                nanosPerTest, inside));
+        assertTrue(nanosPerTest < 5000);
+    }
+
+    /**
+     * @param vertices the vertices as {meters north, meters east} of the reference point
+     */
+    private static PlacePolygon polygon(double[][] vertices) {
+        double[] lats = new double[vertices.length];
+        double[] lngs = new double[vertices.length];
+        for (int i = 0; i < vertices.length; i++) {
+            lats[i] = lat(vertices[i][0]);
+            lngs[i] = lng(vertices[i][1]);
+        }
+        return PlacePolygon.parse(PlacePolygon.encode(lats, lngs));
+    }
+
+    /**
+     * @return a simple star-shaped polygon, its vertices at random distances around the origin
+     */
+    private static double[][] star(Random random, int count, double size) {
+        double[][] vertices = new double[count][];
+        for (int i = 0; i < count; i++) {
+            double angle = 2 * Math.PI * i / count;
+            double distance = size * (0.3 + 0.7 * random.nextDouble());
+            vertices[i] = new double[]{distance * Math.cos(angle), distance * Math.sin(angle)};
+        }
+        return vertices;
+    }
+
+    private static double lat(double metersNorth) {
+        return LAT + metersNorth / METERS_PER_DEGREE;
+    }
+
+    private static double lng(double metersEast) {
+        return LNG + metersEast / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LAT)));
+    }
+}
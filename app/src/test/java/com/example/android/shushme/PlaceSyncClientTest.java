@@ -0,0 +1,312 @@
+package com.example.android.shushme;
+
+import com.example.android.shushme.provider.PlaceContract.PlaceEntry;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the sync client against a local server that implements the sync protocol over an
+ * in-memory table
+ */
+public class PlaceSyncClientTest {
+
+    private HttpServer mHttpServer;
+    private SyncServer mServer;
+    private PlaceSyncClient mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new SyncServer();
+        mHttpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mHttpServer.createContext("/places/sync", mServer);
+        mHttpServer.start();
+        mClient = new PlaceSyncClient("http://127.0.0.1:" + mHttpServer.getAddress().getPort() +
+                "/");
+    }
+
+    @After
+    public void tearDown() {
+        mHttpServer.stop(0);
+    }
+
+    @Test
+    public void sentRowsComeBackWithTheirTypes() throws IOException {
+        Map<String, Object> row = place("a");
+        row.put(PlaceEntry.COLUMN_PLACE_NAME, "Caf\u00e9 \"Quiet\" \\ \n\u0001");
+        row.put(PlaceEntry.COLUMN_RADIUS, null);
+        row.put(PlaceEntry.COLUMN_LOITERING_DELAY, 60000L);
+        // Device-specific columns stay on the device
+        row.put("fetchedAt", 123L);
+
+        PlaceSyncClient.Response response = mClient.exchange(0,
+                Collections.singletonList(row), 100);
+        assertEquals(1, response.version);
+        assertFalse(response.more);
+        assertEquals(1, response.changes.size());
+        Map<String, Object> received = response.changes.get(0);
+        assertEquals("a", received.get(PlaceEntry.COLUMN_PLACE_ID));
+        assertEquals(1L, received.get(PlaceEntry.COLUMN_VERSION));
+        assertEquals(row.get(PlaceEntry.COLUMN_PLACE_NAME),
+                received.get(PlaceEntry.COLUMN_PLACE_NAME));
+        assertEquals(40.75, received.get(PlaceEntry.COLUMN_PLACE_LATITUDE));
+        assertEquals(60000L, received.get(PlaceEntry.COLUMN_LOITERING_DELAY));
+        assertTrue(received.containsKey(PlaceEntry.COLUMN_RADIUS));
+        assertNull(received.get(PlaceEntry.COLUMN_RADIUS));
+        assertFalse(mServer.lastRequestRows.get(0).containsKey("fetchedAt"));
+        // The server sent a column this app doesn't know, with nested values
+        assertFalse(received.containsKey("owner"));
+    }
+
+    @Test
+    public void booleanDeletedFlagReadsAsInteger() throws IOException {
+        mServer.deletedAsBoolean = true;
+        Map<String, Object> row = place("a");
+        row.put(PlaceEntry.COLUMN_DELETED, 1L);
+        PlaceSyncClient.Response response = mClient.exchange(0,
+                Collections.singletonList(row), 100);
+        assertEquals(1L, response.changes.get(0).get(PlaceEntry.COLUMN_DELETED));
+    }
+
+    @Test
+    public void changesArePagedInVersionOrder() throws IOException {
+        mServer.addPlaces(2500);
+        long since = 0;
+        List<Integer> pageSizes = new ArrayList<>();
+        PlaceSyncClient.Response response;
+        do {
+            response = mClient.exchange(since,
+                    Collections.<Map<String, Object>>emptyList(), 1000);
+            pageSizes.add(response.changes.size());
+            for (Map<String, Object> row : response.changes) {
+                long version = (Long) row.get(PlaceEntry.COLUMN_VERSION);
+                assertTrue(version > since);
+                since = version;
+            }
+            assertEquals(since, response.version);
+        } while (response.more);
+        assertEquals(java.util.Arrays.asList(1000, 1000, 500), pageSizes);
+        assertEquals(2500, since);
+    }
+
+    @Test
+    public void plainResponseIsReadToo() throws IOException {
+        mServer.gzipResponses = false;
+        mServer.addPlaces(3);
+        assertEquals(3, mClient.exchange(0, Collections.<Map<String, Object>>emptyList(),
+                100).changes.size());
+    }
+
+    @Test
+    public void errorStatusFailsTheExchange() {
+        mServer.status = 503;
+        try {
+            mClient.exchange(0, Collections.<Map<String, Object>>emptyList(), 100);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("503"));
+        }
+    }
+
+    /**
+     * An initial sync pulls every place in pages of 1000, as PlaceSyncService does
+     */
+    @Test
+    public void initialSyncOf10kPlacesBenchmark() throws IOException {
+        mServer.addPlaces(10000);
+        // Warm up the connection and the code paths
+        mClient.exchange(9000, Collections.<Map<String, Object>>emptyList(), 1000);
+
+        long start = System.nanoTime();
+        long since = 0;
+        int received = 0;
+        PlaceSyncClient.Response response;
+        do {
+            response = mClient.exchange(since, Collections.<Map<String, Object>>emptyList(),
+                    1000);
+            received += response.changes.size();
+            since = response.version;
+        } while (response.more);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Initial sync of %d places: %.0f ms, %.0f rows/s",
+                received, seconds * 1000, received / seconds));
+        assertEquals(10000, received);
+        assertTrue(received / seconds > 5000);
+    }
+
+    private static Map<String, Object> place(String placeId) {
+        Map<String, Object> row = new HashMap<>();
+        row.put(PlaceEntry.COLUMN_PLACE_ID, placeId);
+        row.put(PlaceEntry.COLUMN_VERSION, 0L);
+        row.put(PlaceEntry.COLUMN_DELETED, 0L);
+        row.put(PlaceEntry.COLUMN_PLACE_NAME, "Place " + placeId);
+        row.put(PlaceEntry.COLUMN_PLACE_ADDRESS, placeId + " Main Street");
+        row.put(PlaceEntry.COLUMN_PLACE_LATITUDE, 40.75);
+        row.put(PlaceEntry.COLUMN_PLACE_LONGITUDE, -73.99);
+        row.put(PlaceEntry.COLUMN_SCHEDULE, "MON-FRI 09:00-17:00");
+        return row;
+    }
+
+    /**
+     * The server side of the protocol: stores the rows it is sent under new versions, and
+     * answers with the rows changed since the client's version
+     */
+    private static class SyncServer implements HttpHandler {
+        // The rows by version, each row holding its latest version only
+        final TreeMap<Long, Map<String, Object>> rowsByVersion = new TreeMap<>();
+        final Map<String, Long> versions = new HashMap<>();
+        long version;
+        int status = 200;
+        boolean gzipResponses = true;
+        boolean deletedAsBoolean;
+        List<Map<String, Object>> lastRequestRows;
+
+        synchronized void put(Map<String, Object> row) {
+            String placeId = (String) row.get(PlaceEntry.COLUMN_PLACE_ID);
+            Long previous = versions.get(placeId);
+            if (previous != null) rowsByVersion.remove(previous);
+            Map<String, Object> stored = new HashMap<>(row);
+            stored.put(PlaceEntry.COLUMN_VERSION, ++version);
+            rowsByVersion.put(version, stored);
+            versions.put(placeId, version);
+        }
+
+        void addPlaces(int count) {
+            for (int i = 0; i < count; i++) put(place("place" + i));
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (status != 200) {
+                    exchange.sendResponseHeaders(status, -1);
+                    return;
+                }
+                InputStream body = exchange.getRequestBody();
+                if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    body = new GZIPInputStream(body);
+                }
+                long since = 0;
+                int limit = 0;
+                List<Map<String, Object>> rows = new ArrayList<>();
+                JsonReader reader = new JsonReader(new InputStreamReader(body,
+                        "UTF-8"));
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("since".equals(name)) {
+                        since = reader.nextLong();
+                    } else if ("limit".equals(name)) {
+                        limit = reader.nextInt();
+                    } else {
+                        reader.beginArray();
+                        while (reader.hasNext()) rows.add(readRow(reader));
+                        reader.endArray();
+                    }
+                }
+                reader.endObject();
+                lastRequestRows = rows;
+                for (Map<String, Object> row : rows) put(row);
+                respond(exchange, since, limit);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private synchronized void respond(HttpExchange exchange, long since, int limit)
+                throws IOException {
+            boolean gzip = gzipResponses &&
+                    "gzip".equals(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            if (gzip) body = new GZIPOutputStream(body);
+            JsonWriter writer = new JsonWriter(new BufferedWriter(
+                    new OutputStreamWriter(body, "UTF-8")));
+            List<Map<String, Object>> page = new ArrayList<>(
+                    rowsByVersion.tailMap(since, false).values());
+            boolean more = page.size() > limit;
+            if (more) page = page.subList(0, limit);
+            writer.beginObject();
+            writer.name("version").value(page.isEmpty() ? since :
+                    (Long) page.get(page.size() - 1).get(PlaceEntry.COLUMN_VERSION));
+            writer.name("more").value(more);
+            writer.name("changes").beginArray();
+            for (Map<String, Object> row : page) {
+                writer.beginObject();
+                for (Map.Entry<String, Object> column : row.entrySet()) {
+                    writer.name(column.getKey());
+                    Object value = column.getValue();
+                    if (value instanceof String) {
+                        writer.value((String) value);
+                    } else if (deletedAsBoolean &&
+                            PlaceEntry.COLUMN_DELETED.equals(column.getKey())) {
+                        writer.value(((Number) value).longValue() != 0);
+                    } else {
+                        writer.value((Number) value);
+                    }
+                }
+                writer.name("owner").beginObject()
+                        .name("ids").beginArray().value(1).value("two").nullValue().endArray()
+                        .name("admin").value(false)
+                        .endObject();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.close();
+        }
+
+        private static Map<String, Object> readRow(JsonReader reader) throws IOException {
+            Map<String, Object> row = new HashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (reader.peek()) {
+                    case NULL:
+                        reader.nextNull();
+                        row.put(name, null);
+                        break;
+                    case NUMBER:
+                        String number = reader.nextString();
+                        row.put(name, number.matches("-?\\d+") ? (Object) Long.valueOf(number) :
+                                Double.valueOf(number));
+                        break;
+                    default:
+                        row.put(name, reader.nextString());
+                        break;
+                }
+            }
+            reader.endObject();
+            return row;
+        }
+    }
+}
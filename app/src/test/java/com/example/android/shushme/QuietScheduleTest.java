@@ -0,0 +1,163 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuietScheduleTest {
+
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+    @Test
+    public void weekdayWindowIsActiveInsideOnly() {
+        QuietSchedule schedule = QuietSchedule.parse("MON-FRI 09:00-17:30");
+        // Monday 12 October 2026
+        assertFalse(schedule.isActive(at(2026, Calendar.OCTOBER, 12, 8, 59)));
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 12, 9, 0)));
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 16, 17, 29)));
+        assertFalse(schedule.isActive(at(2026, Calendar.OCTOBER, 16, 17, 30)));
+        assertFalse(schedule.isActive(at(2026, Calendar.OCTOBER, 17, 12, 0)));
+    }
+
+    @Test
+    public void windowEndingBeforeItsStartRunsPastMidnight() {
+        QuietSchedule schedule = QuietSchedule.parse("FRI 22:00-02:00");
+        assertFalse(schedule.isActive(at(2026, Calendar.OCTOBER, 16, 21, 59)));
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 16, 23, 0)));
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 17, 1, 59)));
+        assertFalse(schedule.isActive(at(2026, Calendar.OCTOBER, 17, 2, 0)));
+        // Only Friday nights, not the early hours of Friday itself
+        assertFalse(schedule.isActive(at(2026, Calendar.OCTOBER, 16, 1, 0)));
+    }
+
+    @Test
+    public void sundayNightRunsIntoMonday() {
+        QuietSchedule schedule = QuietSchedule.parse("SUN 22:00-06:00");
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 18, 23, 59)));
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 19, 0, 0)));
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 19, 5, 59)));
+        assertFalse(schedule.isActive(at(2026, Calendar.OCTOBER, 19, 6, 0)));
+        // Week start is not a boundary: Sunday 23:00 next changes on Monday at 06:00
+        assertEquals(millis(2026, Calendar.OCTOBER, 19, 6, 0),
+                schedule.getNextBoundary(at(2026, Calendar.OCTOBER, 18, 23, 0)));
+    }
+
+    @Test
+    public void dayRangesWrapAroundTheWeek() {
+        QuietSchedule schedule = QuietSchedule.parse("SAT-MON 10:00-12:00");
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 17, 11, 0)));
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 18, 11, 0)));
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 19, 11, 0)));
+        assertFalse(schedule.isActive(at(2026, Calendar.OCTOBER, 20, 11, 0)));
+    }
+
+    @Test
+    public void wholeWeekIsAlwaysActiveAndNeverChanges() {
+        for (String encoded : new String[]{"MON-SUN 00:00-24:00", "MON-SUN 00:00-00:00",
+                "MON-FRI 00:00-24:00;SAT,SUN 00:00-24:00"}) {
+            QuietSchedule schedule = QuietSchedule.parse(encoded);
+            for (int minute = 0; minute < 7 * 24 * 60; minute += 17) {
+                assertTrue(encoded, schedule.isActive(minute));
+            }
+            assertEquals(encoded, Long.MAX_VALUE,
+                    schedule.getNextBoundary(at(2026, Calendar.OCTOBER, 18, 23, 59)));
+        }
+    }
+
+    @Test
+    public void overlappingWindowsMerge() {
+        QuietSchedule schedule = QuietSchedule.parse("MON 09:00-12:00;MON 11:00-14:00");
+        assertTrue(schedule.isActive(at(2026, Calendar.OCTOBER, 12, 11, 30)));
+        assertEquals(millis(2026, Calendar.OCTOBER, 12, 14, 0),
+                schedule.getNextBoundary(at(2026, Calendar.OCTOBER, 12, 10, 0)));
+    }
+
+    @Test
+    public void nextBoundaryWrapsToNextWeek() {
+        QuietSchedule schedule = QuietSchedule.parse("MON-FRI 09:00-17:00");
+        assertEquals(millis(2026, Calendar.OCTOBER, 12, 17, 0),
+                schedule.getNextBoundary(at(2026, Calendar.OCTOBER, 12, 10, 0)));
+        // Exactly at a boundary, the next one is the following change
+        assertEquals(millis(2026, Calendar.OCTOBER, 13, 9, 0),
+                schedule.getNextBoundary(at(2026, Calendar.OCTOBER, 12, 17, 0)));
+        assertEquals(millis(2026, Calendar.OCTOBER, 19, 9, 0),
+                schedule.getNextBoundary(at(2026, Calendar.OCTOBER, 16, 18, 0)));
+    }
+
+    @Test
+    public void nextBoundaryKeepsWallClockTimeAcrossDstChanges() {
+        QuietSchedule schedule = QuietSchedule.parse("MON-SUN 09:00-17:00");
+        // Clocks go forward on Sunday 8 March 2026, so the night is an hour shorter
+        Calendar beforeSpring = at(2026, Calendar.MARCH, 7, 17, 30);
+        long boundary = schedule.getNextBoundary(beforeSpring);
+        assertEquals(millis(2026, Calendar.MARCH, 8, 9, 0), boundary);
+        assertEquals(15 * HOUR_MILLIS + 30 * MINUTE_MILLIS - HOUR_MILLIS,
+                boundary - beforeSpring.getTimeInMillis());
+        // And back on Sunday 1 November 2026, an hour longer
+        Calendar beforeFall = at(2026, Calendar.OCTOBER, 31, 17, 30);
+        boundary = schedule.getNextBoundary(beforeFall);
+        assertEquals(millis(2026, Calendar.NOVEMBER, 1, 9, 0), boundary);
+        assertEquals(15 * HOUR_MILLIS + 30 * MINUTE_MILLIS + HOUR_MILLIS,
+                boundary - beforeFall.getTimeInMillis());
+    }
+
+    @Test
+    public void boundaryInASkippedOrRepeatedHourIsStillAhead() {
+        // 02:30 does not exist on 8 March 2026
+        QuietSchedule skipped = QuietSchedule.parse("SUN 02:30-05:00");
+        Calendar now = at(2026, Calendar.MARCH, 8, 1, 45);
+        long boundary = skipped.getNextBoundary(now);
+        assertTrue(boundary > now.getTimeInMillis());
+        assertTrue(boundary < millis(2026, Calendar.MARCH, 8, 5, 0));
+
+        // 01:30 happens twice on 1 November 2026; from the second 01:15, the first 01:30 is
+        // already past
+        QuietSchedule repeated = QuietSchedule.parse("SUN 01:30-05:00");
+        now = at(2026, Calendar.NOVEMBER, 1, 0, 15);
+        now.setTimeInMillis(now.getTimeInMillis() + 2 * HOUR_MILLIS);
+        assertEquals(1, now.get(Calendar.HOUR_OF_DAY));
+        boundary = repeated.getNextBoundary(now);
+        assertTrue(boundary > now.getTimeInMillis());
+        assertTrue(boundary <= now.getTimeInMillis() + 15 * MINUTE_MILLIS);
+    }
+
+    @Test
+    public void minuteOfWeekStartsOnMonday() {
+        assertEquals(0, QuietSchedule.getMinuteOfWeek(at(2026, Calendar.OCTOBER, 12, 0, 0)));
+        assertEquals(7 * 24 * 60 - 1,
+                QuietSchedule.getMinuteOfWeek(at(2026, Calendar.OCTOBER, 18, 23, 59)));
+    }
+
+    @Test
+    public void unreadableSchedulesAreRejected() {
+        assertNull(QuietSchedule.parse(null));
+        assertNull(QuietSchedule.parse(" "));
+        assertNull(QuietSchedule.parse("FUN 09:00-17:00"));
+        assertNull(QuietSchedule.parse("MON 25:00-26:00"));
+        assertNull(QuietSchedule.parse("MON 09:60-17:00"));
+        assertNull(QuietSchedule.parse("MON 24:00-02:00"));
+        assertNull(QuietSchedule.parse("MON 09:00"));
+        assertNull(QuietSchedule.parse("MON-TUE-WED 09:00-17:00"));
+        assertTrue(QuietSchedule.parse(" mon,wed 09:00-17:00 ; sat 10:00-11:00 ") != null);
+    }
+
+    private static Calendar at(int year, int month, int day, int hour, int minute) {
+        Calendar time = Calendar.getInstance(NEW_YORK, Locale.US);
+        time.clear();
+        time.set(year, month, day, hour, minute);
+        return time;
+    }
+
+    private static long millis(int year, int month, int day, int hour, int minute) {
+        return at(year, month, day, hour, minute).getTimeInMillis();
+    }
+}
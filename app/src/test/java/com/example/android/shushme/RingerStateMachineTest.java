@@ -0,0 +1,130 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class RingerStateMachineTest {
+
+    private static final int NORMAL = 2;
+
+    @Test
+    public void overlappingZonesSilenceOnFirstEntryAndRestoreOnLastExit() {
+        RingerStateMachine state = new RingerStateMachine(Collections.<String>emptySet(),
+                RingerStateMachine.NO_SAVED_MODE);
+        assertEquals(RingerStateMachine.ACTION_SILENCE, state.onEnter(Arrays.asList("a"), NORMAL));
+        assertEquals(RingerStateMachine.ACTION_NONE, state.onEnter(Arrays.asList("b"), 0));
+        assertEquals(RingerStateMachine.ACTION_NONE, state.onExit(Arrays.asList("a")));
+        assertEquals(RingerStateMachine.ACTION_RESTORE, state.onExit(Arrays.asList("b")));
+        assertEquals(NORMAL, state.getModeBeforeEntry());
+    }
+
+    @Test
+    public void replacedFenceHandsOverItsOccupancy() {
+        RingerStateMachine state = new RingerStateMachine(new HashSet<>(Arrays.asList("a")),
+                NORMAL);
+        Map<String, List<String>> replacements = new HashMap<>();
+        replacements.put("a", Arrays.asList("cluster:a"));
+        state.onReplace(replacements);
+        assertEquals(new HashSet<>(Arrays.asList("cluster:a")), state.getOccupiedIds());
+        // The removal of the old fence is then a no-op, and leaving the new one restores
+        assertEquals(RingerStateMachine.ACTION_NONE, state.onExit(Arrays.asList("a")));
+        assertEquals(RingerStateMachine.ACTION_RESTORE,
+                state.onExit(Arrays.asList("cluster:a")));
+    }
+
+    @Test
+    public void replacementOfUnoccupiedFenceIsIgnored() {
+        RingerStateMachine state = new RingerStateMachine(Collections.<String>emptySet(),
+                RingerStateMachine.NO_SAVED_MODE);
+        Map<String, List<String>> replacements = new HashMap<>();
+        replacements.put("a", Arrays.asList("cluster:a"));
+        state.onReplace(replacements);
+        assertEquals(Collections.<String>emptySet(), state.getOccupiedIds());
+        assertEquals(RingerStateMachine.ACTION_SILENCE,
+                state.onEnter(Arrays.asList("cluster:a"), NORMAL));
+    }
+
+    @Test
+    public void pendingEntryIsConfirmedLaterOrDroppedOnExit() {
+        RingerStateMachine state = new RingerStateMachine(Collections.<String>emptySet(),
+                RingerStateMachine.NO_SAVED_MODE);
+        state.onPending(Arrays.asList("a", "b"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), state.getPendingIds());
+        assertEquals(Collections.<String>emptySet(), state.getOccupiedIds());
+
+        // A later fix inside the polygon confirms the entry
+        assertEquals(RingerStateMachine.ACTION_SILENCE, state.onEnter(Arrays.asList("a"), NORMAL));
+        assertEquals(new HashSet<>(Arrays.asList("b")), state.getPendingIds());
+        // Leaving a fence whose entry was never confirmed changes nothing but the pending set
+        assertEquals(RingerStateMachine.ACTION_NONE, state.onExit(Arrays.asList("b")));
+        assertEquals(Collections.<String>emptySet(), state.getPendingIds());
+        assertEquals(RingerStateMachine.ACTION_RESTORE, state.onExit(Arrays.asList("a")));
+    }
+
+    @Test
+    public void occupiedFenceIsNeverPending() {
+        RingerStateMachine state = new RingerStateMachine(new HashSet<>(Arrays.asList("a")),
+                new HashSet<>(Arrays.asList("a", "b")), NORMAL);
+        assertEquals(new HashSet<>(Arrays.asList("b")), state.getPendingIds());
+        state.onPending(Arrays.asList("a"));
+        assertEquals(new HashSet<>(Arrays.asList("b")), state.getPendingIds());
+    }
+
+    @Test
+    public void replacedFenceHandsOverItsPendingEntry() {
+        RingerStateMachine state = new RingerStateMachine(Collections.<String>emptySet(),
+                new HashSet<>(Arrays.asList("a")), RingerStateMachine.NO_SAVED_MODE);
+        Map<String, List<String>> replacements = new HashMap<>();
+        replacements.put("a", Arrays.asList("cluster:a"));
+        state.onReplace(replacements);
+        assertEquals(new HashSet<>(Arrays.asList("cluster:a")), state.getPendingIds());
+        assertEquals(Collections.<String>emptySet(), state.getOccupiedIds());
+    }
+
+    @Test
+    public void restartKeepsZonesUntilTheyAreReportedAgain() {
+        RingerStateMachine state = new RingerStateMachine(new HashSet<>(Arrays.asList("a", "b")),
+                new HashSet<>(Arrays.asList("c")), NORMAL);
+        state.onRestart();
+        assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), state.getUnconfirmedIds());
+        // The re-registered fence of a zone the device is still in enters it again, silently
+        assertEquals(RingerStateMachine.ACTION_NONE, state.onEnter(Arrays.asList("a"), 0));
+        state.onPending(Arrays.asList("c"));
+        assertEquals(new HashSet<>(Arrays.asList("b")), state.getUnconfirmedIds());
+        // The zone no fence reported again is exited, the others are kept
+        assertEquals(RingerStateMachine.ACTION_NONE, state.onExit(state.getUnconfirmedIds()));
+        assertEquals(new HashSet<>(Arrays.asList("a")), state.getOccupiedIds());
+        assertEquals(new HashSet<>(Arrays.asList("c")), state.getPendingIds());
+        assertEquals(NORMAL, state.getModeBeforeEntry());
+    }
+
+    @Test
+    public void restartOutsideEveryZoneRestoresOnce() {
+        RingerStateMachine state = new RingerStateMachine(new HashSet<>(Arrays.asList("a")),
+                NORMAL);
+        state.onRestart();
+        // Re-planned under a new request ID, but the device already left
+        Map<String, List<String>> replacements = new HashMap<>();
+        replacements.put("a", Arrays.asList("cluster:a"));
+        state.onReplace(replacements);
+        assertEquals(new HashSet<>(Arrays.asList("cluster:a")), state.getUnconfirmedIds());
+        assertEquals(RingerStateMachine.ACTION_RESTORE,
+                state.onExit(state.getUnconfirmedIds()));
+        assertEquals(Collections.<String>emptySet(), state.getUnconfirmedIds());
+    }
+
+    @Test
+    public void unconfirmedZonesAreOnlyTrackedOnes() {
+        RingerStateMachine state = new RingerStateMachine(new HashSet<>(Arrays.asList("a")),
+                Collections.<String>emptySet(), new HashSet<>(Arrays.asList("a", "gone")), NORMAL);
+        assertEquals(new HashSet<>(Arrays.asList("a")), state.getUnconfirmedIds());
+    }
+}
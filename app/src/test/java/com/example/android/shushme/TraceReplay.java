@@ -0,0 +1,497 @@
+package com.example.android.shushme;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays recorded location traces through the app's geofence logic in simulated time, to
+ * reproduce late or flapping silencing off the device.
+ * <p>
+ * Fences are planned from the {@link FencedPlaces} as in {@link Geofencing}, and re-planned
+ * when the trace leaves the re-plan fence or a schedule turns on or off. Containment is
+ * decided by the {@link LocalGeofenceEngine}, standing in for Play Services, and the resulting
+ * transitions drive a {@link RingerStateMachine} as in {@link GeofenceBroadcastReceiver}:
+ * entries into a polygon's enclosing circle stay pending until a fix inside the polygon
+ * confirms them, and a removed fence the device is inside hands over to the new fences
+ * covering its places. Each fix is also compared with the exact position relative to every
+ * fence, which gives the detection latencies and false transitions.
+ */
+public class TraceReplay {
+
+    // A ringer change undone within this time counts as a spurious toggle
+    private static final long SPURIOUS_TOGGLE_WINDOW = 2 * 60 * 1000; // 2 minutes
+    // Ringer modes, with the values of AudioManager.RINGER_MODE_SILENT and RINGER_MODE_NORMAL
+    private static final int RINGER_MODE_SILENT = 0;
+    private static final int RINGER_MODE_NORMAL = 2;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    private static final Pattern GPX_POINT = Pattern.compile(
+            "<trkpt\\s+lat=\"([-0-9.eE]+)\"\\s+lon=\"([-0-9.eE]+)\"[^>]*>(.*?)</trkpt>",
+            Pattern.DOTALL);
+    private static final Pattern GPX_TIME = Pattern.compile("<time>([^<.Z]+)(\\.\\d+)?Z?</time>");
+
+    /**
+     * A location fix of a trace
+     */
+    public static class Fix {
+        public final long timeMillis;
+        public final double latitude;
+        public final double longitude;
+        public final float accuracy;
+
+        public Fix(long timeMillis, double latitude, double longitude, float accuracy) {
+            this.timeMillis = timeMillis;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+        }
+    }
+
+    /**
+     * The metrics of one replayed trace. Latencies are in milliseconds, from the first fix
+     * inside (or outside) a fence, or the schedule change, to the transition it caused.
+     */
+    public static class Report {
+        public int fixes;
+        public long durationMillis;
+        public int enters;
+        public int exits;
+        public long totalEnterLatency;
+        public long maxEnterLatency;
+        public long totalExitLatency;
+        public long maxExitLatency;
+        // Transitions while the exact position said otherwise, and visits never detected
+        public int falseEnters;
+        public int falseExits;
+        public int missedVisits;
+        // Entries into a polygon's enclosing circle held until the polygon confirmed them
+        public int pendingEntries;
+        // Occupied fences handed over to their replacements on a re-plan
+        public int handovers;
+        public int ringerChanges;
+        public int spuriousToggles;
+
+        public double getRingerChangesPerHour() {
+            return durationMillis == 0 ? 0 : ringerChanges * (double) HOUR_MILLIS / durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "fixes=%d duration=%.1fh enters=%d exits=%d " +
+                            "enterLatency(mean=%ds max=%ds) exitLatency(mean=%ds max=%ds) " +
+                            "falseEnters=%d falseExits=%d missedVisits=%d pendingEntries=%d " +
+                            "handovers=%d ringerChanges=%d (%.2f/h) spuriousToggles=%d",
+                    fixes, durationMillis / (double) HOUR_MILLIS, enters, exits,
+                    enters == 0 ? 0 : totalEnterLatency / enters / 1000, maxEnterLatency / 1000,
+                    exits == 0 ? 0 : totalExitLatency / exits / 1000, maxExitLatency / 1000,
+                    falseEnters, falseExits, missedVisits, pendingEntries, handovers,
+                    ringerChanges, getRingerChangesPerHour(), spuriousToggles);
+        }
+    }
+
+    private final PlaceSnapshot mPlaces;
+    private final TimeZone mTimeZone;
+
+    /**
+     * @param places   the places
+     * @param timeZone the local time zone of the schedules
+     */
+    public TraceReplay(PlaceSnapshot places, TimeZone timeZone) {
+        mPlaces = places;
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Replays a trace from a clean state, with the ringer in normal mode
+     *
+     * @param trace the fixes, in time order
+     * @return the metrics of the trace
+     */
+    public Report replay(List<Fix> trace) {
+        Report report = new Report();
+        if (trace.isEmpty()) return report;
+        report.fixes = trace.size();
+        report.durationMillis = trace.get(trace.size() - 1).timeMillis - trace.get(0).timeMillis;
+
+        RingerStateMachine ringerState = new RingerStateMachine(Collections.<String>emptySet(),
+                RingerStateMachine.NO_SAVED_MODE);
+        Ringer ringer = new Ringer(ringerState);
+
+        Replan replan = null;
+        long nextRecheckAt = Long.MIN_VALUE;
+        for (Fix fix : trace) {
+            List<String> entered = new ArrayList<>();
+            List<String> exited = new ArrayList<>();
+            if (replan == null || replan.isOutside(fix) || fix.timeMillis >= replan.nextBoundary) {
+                // A schedule change is known from its boundary on, not from the fix after it
+                Replan next = plan(fix, replan != null && fix.timeMillis >= replan.nextBoundary ?
+                        replan.nextBoundary : fix.timeMillis);
+                if (replan != null) handOver(replan, next, fix, ringerState, exited, report);
+                replan = next;
+            }
+            replan.engine.onLocation(fix.latitude, fix.longitude, fix.accuracy, fix.timeMillis);
+            exited.addAll(replan.engine.getExited());
+
+            // Pending entries are re-checked by the platform fixes requested for them
+            List<String> confirmed = new ArrayList<>();
+            Set<String> pending = ringerState.getPendingIds();
+            pending.removeAll(exited);
+            if (!pending.isEmpty() && fix.accuracy <= LocalGeofenceEngine.MAX_ACCURACY &&
+                    fix.timeMillis >= nextRecheckAt) {
+                nextRecheckAt = fix.timeMillis +
+                        GeofenceBroadcastReceiver.RECHECK_MIN_TIME_MILLIS;
+                confirmed.addAll(replan.confirm(pending, fix));
+            }
+            List<String> newlyEntered = replan.engine.getEntered();
+            List<String> newlyConfirmed = replan.confirm(newlyEntered, fix);
+            confirmed.addAll(newlyConfirmed);
+            List<String> unconfirmed = new ArrayList<>(newlyEntered);
+            unconfirmed.removeAll(newlyConfirmed);
+            entered.addAll(confirmed);
+            report.pendingEntries += unconfirmed.size();
+            replan.score(fix, entered, exited, ringerState.getOccupiedIds(), report);
+
+            // Exits and entries arrive as separate broadcasts, exits first
+            if (!exited.isEmpty()) {
+                ringer.onRingerAction(ringerState.onExit(exited), fix.timeMillis, report);
+            }
+            if (!unconfirmed.isEmpty()) ringerState.onPending(unconfirmed);
+            if (!entered.isEmpty()) {
+                ringer.onRingerAction(ringerState.onEnter(entered, ringer.mode), fix.timeMillis,
+                        report);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Plans the fences of the places whose schedule is active at a fix, as Geofencing does
+     *
+     * @param since when the exact state of the planned fences is known from
+     */
+    private Replan plan(Fix fix, long since) {
+        Calendar now = Calendar.getInstance(mTimeZone, Locale.US);
+        now.setTimeInMillis(fix.timeMillis);
+        FencedPlaces fenced = FencedPlaces.resolve(mPlaces, now);
+        GeofencePlanner planner = fenced.newPlanner();
+        List<GeofencePlanner.Fence> plan = planner == null ?
+                Collections.<GeofencePlanner.Fence>emptyList() :
+                planner.plan(fix.latitude, fix.longitude);
+        return new Replan(plan, fenced.polygons, since, fenced.nextScheduleBoundary);
+    }
+
+    /**
+     * Carries the fences the device is inside over to a new plan. A fence planned again keeps
+     * its state; a removed one hands over to its replacements as in Geofencing, which adds the
+     * new fences before it removes the old ones, and is exited if there are none.
+     */
+    private static void handOver(Replan previous, Replan next, Fix fix,
+                                 RingerStateMachine ringerState, List<String> exited,
+                                 Report report) {
+        Set<String> inside = new HashSet<>();
+        Map<String, String[]> removedPlaceIds = new LinkedHashMap<>();
+        for (String requestId : previous.engine.getInside()) {
+            if (next.fencesById.containsKey(requestId)) {
+                inside.add(requestId);
+            } else {
+                removedPlaceIds.put(requestId, previous.fencesById.get(requestId).placeIds);
+            }
+        }
+        Map<String, List<String>> replacements = GeofencePlanner.getReplacements(
+                removedPlaceIds, next.fences, next.fencesById.keySet(), fix.latitude,
+                fix.longitude);
+        for (String requestId : removedPlaceIds.keySet()) {
+            List<String> replacing = replacements.get(requestId);
+            if (replacing == null) {
+                exited.add(requestId);
+            } else {
+                inside.addAll(replacing);
+                report.handovers++;
+            }
+        }
+        previous.scoreRemovals(fix, exited, ringerState.getOccupiedIds(), report);
+        ringerState.onReplace(replacements);
+        next.engine.setInside(inside);
+    }
+
+    /**
+     * The simulated ringer, applying the actions of the state machine as the receiver does
+     */
+    private static class Ringer {
+        final RingerStateMachine state;
+        int mode = RINGER_MODE_NORMAL;
+        long lastChangeAt = Long.MIN_VALUE;
+        boolean lastChangeWasToggle;
+
+        Ringer(RingerStateMachine state) {
+            this.state = state;
+        }
+
+        void onRingerAction(int action, long timeMillis, Report report) {
+            if (action == RingerStateMachine.ACTION_NONE) return;
+            if (action == RingerStateMachine.ACTION_SILENCE) {
+                mode = RINGER_MODE_SILENT;
+            } else {
+                int saved = state.getModeBeforeEntry();
+                mode = saved == RingerStateMachine.NO_SAVED_MODE ? RINGER_MODE_NORMAL : saved;
+            }
+            report.ringerChanges++;
+            // A change undoing the previous one shortly after it is a spurious toggle
+            boolean toggle = !lastChangeWasToggle && lastChangeAt != Long.MIN_VALUE &&
+                    timeMillis - lastChangeAt < SPURIOUS_TOGGLE_WINDOW;
+            if (toggle) report.spuriousToggles++;
+            lastChangeWasToggle = toggle;
+            lastChangeAt = timeMillis;
+        }
+    }
+
+    /**
+     * One planned set of fences, with the engine evaluating them and the exact state of the
+     * trace relative to each fence
+     */
+    private static class Replan {
+        final LocalGeofenceEngine engine;
+        final GeofencePlanner.Fence replanFence;
+        final List<GeofencePlanner.Fence> fences = new ArrayList<>();
+        final Map<String, GeofencePlanner.Fence> fencesById = new HashMap<>();
+        // The outline of each fence shaped by a polygon, which decides the exact state, and
+        // the outline of each fenced polygon-shaped place, which confirms entries
+        final PlacePolygon[] polygons;
+        final Map<String, PlacePolygon> placePolygons;
+        // When the exact state is known from, and when a schedule next changes which places
+        // are fenced
+        final long since;
+        final long nextBoundary;
+        // Per fence: whether the exact position is inside, since when, and whether the
+        // current visit was detected
+        final boolean[] truthInside;
+        final long[] truthChangedAt;
+        final boolean[] visitDetected;
+        // The exact state is unknown until the first fix scored against these fences
+        boolean scored;
+
+        Replan(List<GeofencePlanner.Fence> plan, Map<String, PlacePolygon> placePolygons,
+               long since, long nextBoundary) {
+            GeofencePlanner.Fence replanFence = null;
+            for (GeofencePlanner.Fence fence : plan) {
+                if (fence.isReplanFence()) {
+                    replanFence = fence;
+                } else {
+                    fences.add(fence);
+                    fencesById.put(fence.requestId, fence);
+                }
+            }
+            this.replanFence = replanFence;
+            this.placePolygons = placePolygons;
+            this.since = since;
+            this.nextBoundary = nextBoundary;
+            int count = fences.size();
+            String[] ids = new String[count];
+            double[] lats = new double[count];
+            double[] lngs = new double[count];
+            float[] radii = new float[count];
+            int[] loiteringDelays = new int[count];
+            polygons = new PlacePolygon[count];
+            for (int i = 0; i < count; i++) {
+                GeofencePlanner.Fence fence = fences.get(i);
+                ids[i] = fence.requestId;
+                lats[i] = fence.latitude;
+                lngs[i] = fence.longitude;
+                radii[i] = fence.radius;
+                loiteringDelays[i] = fence.loiteringDelay;
+                polygons[i] = placePolygons.get(fence.requestId);
+            }
+            engine = new LocalGeofenceEngine(ids, lats, lngs, radii, loiteringDelays);
+            truthInside = new boolean[count];
+            truthChangedAt = new long[count];
+            visitDetected = new boolean[count];
+        }
+
+        /**
+         * @return the entered fences that a fix confirms, those not shaped by a polygon or
+         * whose polygon contains the fix
+         */
+        List<String> confirm(Iterable<String> requestIds, Fix fix) {
+            List<String> confirmed = new ArrayList<>();
+            for (String requestId : requestIds) {
+                PlacePolygon polygon = placePolygons.get(requestId);
+                if (polygon == null || polygon.contains(fix.latitude, fix.longitude)) {
+                    confirmed.add(requestId);
+                }
+            }
+            return confirmed;
+        }
+
+        boolean isOutside(Fix fix) {
+            return replanFence != null && PlaceIndex.distanceMeters(fix.latitude, fix.longitude,
+                    replanFence.latitude, replanFence.longitude) > replanFence.radius;
+        }
+
+        boolean isInside(int fence, Fix fix) {
+            if (polygons[fence] != null) {
+                return polygons[fence].contains(fix.latitude, fix.longitude);
+            }
+            GeofencePlanner.Fence planned = fences.get(fence);
+            return PlaceIndex.distanceMeters(fix.latitude, fix.longitude, planned.latitude,
+                    planned.longitude) <= planned.radius;
+        }
+
+        /**
+         * @param occupiedIds the fences occupied before the fix, the only ones whose exits
+         *                    change anything, and whose visits need no new entry to count as
+         *                    detected, e.g. from before noise took the fix out of the fence or
+         *                    from the previous plan
+         */
+        void score(Fix fix, List<String> entered, List<String> exited, Set<String> occupiedIds,
+                   Report report) {
+            for (int i = 0; i < fences.size(); i++) {
+                String requestId = fences.get(i).requestId;
+                boolean inside = isInside(i, fix);
+                if (!scored || inside != truthInside[i]) {
+                    if (scored && !inside && !visitDetected[i]) report.missedVisits++;
+                    truthInside[i] = inside;
+                    truthChangedAt[i] = scored ? fix.timeMillis : since;
+                    visitDetected[i] = occupiedIds.contains(requestId);
+                }
+                long latency = fix.timeMillis - truthChangedAt[i];
+                if (entered.contains(requestId)) {
+                    if (!inside) {
+                        report.falseEnters++;
+                        continue;
+                    }
+                    visitDetected[i] = true;
+                    report.enters++;
+                    report.totalEnterLatency += latency;
+                    report.maxEnterLatency = Math.max(report.maxEnterLatency, latency);
+                } else if (exited.contains(requestId) && occupiedIds.contains(requestId)) {
+                    if (inside) {
+                        report.falseExits++;
+                        continue;
+                    }
+                    addExit(report, latency);
+                }
+            }
+            scored = true;
+        }
+
+        /**
+         * Scores the exits of occupied fences removed by a re-plan. Removing a fence the exact
+         * position is inside is a real exit only when its schedule ended, from the schedule
+         * change on.
+         */
+        void scoreRemovals(Fix fix, List<String> exited, Set<String> occupiedIds,
+                           Report report) {
+            for (int i = 0; i < fences.size(); i++) {
+                String requestId = fences.get(i).requestId;
+                if (!exited.contains(requestId) || !occupiedIds.contains(requestId)) continue;
+                if (!isInside(i, fix)) {
+                    addExit(report, truthInside[i] ? 0 : fix.timeMillis - truthChangedAt[i]);
+                } else if (fix.timeMillis >= nextBoundary) {
+                    addExit(report, fix.timeMillis - nextBoundary);
+                } else {
+                    report.falseExits++;
+                }
+            }
+        }
+
+        private static void addExit(Report report, long latency) {
+            latency = Math.max(0, latency);
+            report.exits++;
+            report.totalExitLatency += latency;
+            report.maxExitLatency = Math.max(report.maxExitLatency, latency);
+        }
+    }
+
+    /**
+     * Reads a trace from the test resources, as GPX if its name ends in .gpx and as CSV
+     * otherwise
+     *
+     * @param name the resource name of the trace
+     * @return the fixes, in time order
+     */
+    public static List<Fix> readTrace(String name) throws IOException {
+        String text = readResource(name);
+        List<Fix> trace = name.toLowerCase(Locale.US).endsWith(".gpx") ?
+                parseGpx(text) : parseCsv(text);
+        Collections.sort(trace, new Comparator<Fix>() {
+            @Override
+            public int compare(Fix a, Fix b) {
+                return a.timeMillis < b.timeMillis ? -1 : (a.timeMillis == b.timeMillis ? 0 : 1);
+            }
+        });
+        return trace;
+    }
+
+    /**
+     * Parses CSV lines of "timeMillis,latitude,longitude[,accuracy]". Lines that don't start
+     * with a number, like a header, are skipped.
+     */
+    public static List<Fix> parseCsv(String text) {
+        List<Fix> trace = new ArrayList<>();
+        for (String line : text.split("\\r?\\n")) {
+            String[] fields = line.trim().split("\\s*,\\s*");
+            if (fields.length < 3 || !fields[0].matches("-?\\d+")) continue;
+            float accuracy = fields.length > 3 ? Float.parseFloat(fields[3]) : 0;
+            trace.add(new Fix(Long.parseLong(fields[0]), Double.parseDouble(fields[1]),
+                    Double.parseDouble(fields[2]), accuracy));
+        }
+        return trace;
+    }
+
+    /**
+     * Parses the timed track points of a GPX document, in UTC
+     */
+    public static List<Fix> parseGpx(String text) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        List<Fix> trace = new ArrayList<>();
+        Matcher point = GPX_POINT.matcher(text);
+        while (point.find()) {
+            Matcher time = GPX_TIME.matcher(point.group(3));
+            if (!time.find()) continue;
+            try {
+                long timeMillis = format.parse(time.group(1)).getTime();
+                if (time.group(2) != null) {
+                    timeMillis += Math.round(Double.parseDouble(time.group(2)) * 1000);
+                }
+                trace.add(new Fix(timeMillis, Double.parseDouble(point.group(1)),
+                        Double.parseDouble(point.group(2)), 0));
+            } catch (ParseException e) {
+                // Points without a readable time cannot be replayed
+            }
+        }
+        return trace;
+    }
+
+    private static String readResource(String name) throws IOException {
+        InputStream in = TraceReplay.class.getResourceAsStream(name);
+        if (in == null) throw new IOException("No trace " + name);
+        StringBuilder text = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) text.append(line).append('\n');
+        } finally {
+            reader.close();
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.android.shushme;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the fixture traces in src/test/resources/traces, each near one of a few places, and
+ * checks how fast and how cleanly the ringer follows them
+ */
+public class TraceReplayTest {
+
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final double MUSEUM_LAT = 40.76;
+    private static final double MUSEUM_LNG = -73.99;
+    private static final String WEEKDAYS = "MON-FRI 09:00-17:00";
+
+    private static final double ANNEX_LAT = 40.78 + 80 / METERS_PER_DEGREE;
+
+    // The museum is a 100 m square U open to the east, around a courtyard, and the annex is
+    // 80 m north of the hall, close enough to share its fence
+    private final TraceReplay mReplay = new TraceReplay(new PlaceSnapshot.Builder(5)
+            .addPlace("library", 40.75, -73.99).setRadius(80)
+            .addPlace("museum", Double.NaN, Double.NaN).setPolygon(museum(new double[][]{
+                    {0, 0}, {100, 0}, {100, 100}, {70, 100}, {70, 30}, {30, 30}, {30, 100},
+                    {0, 100}}))
+            .addPlace("office", 40.77, -73.99).setRadius(100).setSchedule(WEEKDAYS)
+            .addPlace("hall", 40.78, -73.99).setRadius(50)
+            .addPlace("annex", ANNEX_LAT, -73.99).setRadius(50).setSchedule(WEEKDAYS)
+            .build(), TimeZone.getTimeZone("America/New_York"));
+
+    @Test
+    public void walkThroughSilencesOnceWithinAFix() throws IOException {
+        TraceReplay.Report report = replay("walk_through.gpx");
+        assertEquals(1, report.enters);
+        assertEquals(1, report.exits);
+        assertEquals(2, report.ringerChanges);
+        assertEquals(0, report.spuriousToggles);
+        assertEquals(0, report.missedVisits);
+        // Entered on the first fix inside; exited past the 20 m hysteresis at walking pace
+        assertEquals(0, report.maxEnterLatency);
+        assertTrue(report.maxExitLatency <= 30 * 1000);
+    }
+
+    @Test
+    public void noisyFixesAtTheEdgeDoNotToggle() throws IOException {
+        TraceReplay.Report report = replay("edge_dwell.csv");
+        assertEquals(2, report.ringerChanges);
+        assertEquals(0, report.spuriousToggles);
+        assertEquals(0, report.falseEnters);
+        assertEquals(0, report.missedVisits);
+    }
+
+    @Test
+    public void courtyardEntryStaysPendingUntilThePolygon() throws IOException {
+        TraceReplay.Report report = replay("polygon_notch.csv");
+        assertEquals(1, report.pendingEntries);
+        assertEquals(1, report.enters);
+        assertEquals(0, report.falseEnters);
+        assertEquals(2, report.ringerChanges);
+        // Confirmed by the next re-check inside the polygon
+        assertTrue(report.maxEnterLatency <= 30 * 1000);
+        // Only the enclosing circle is exited, well past the building's wall
+        assertTrue(report.maxExitLatency <= 2 * 60 * 1000);
+    }
+
+    @Test
+    public void scheduleSilencesOnlyDuringWorkingHours() throws IOException {
+        TraceReplay.Report report = replay("office_day.csv");
+        assertEquals(1, report.enters);
+        assertEquals(1, report.exits);
+        assertEquals(0, report.falseExits);
+        assertEquals(2, report.ringerChanges);
+        // Both schedule boundaries are acted on at the first fix after them
+        assertTrue(report.maxEnterLatency <= 60 * 1000);
+        assertTrue(report.maxExitLatency <= 60 * 1000);
+    }
+
+    @Test
+    public void mergedFenceHandsOverWhenItsAnnexCloses() throws IOException {
+        TraceReplay.Report report = replay("hall_annex.csv");
+        assertEquals(1, report.handovers);
+        assertEquals(1, report.exits);
+        assertEquals(0, report.falseExits);
+        assertEquals(2, report.ringerChanges);
+        assertEquals(0, report.spuriousToggles);
+    }
+
+    private TraceReplay.Report replay(String trace) throws IOException {
+        TraceReplay.Report report = mReplay.replay(TraceReplay.readTrace("/traces/" + trace));
+        System.out.println(trace + ": " + report);
+        return report;
+    }
+
+    /**
+     * @param vertices the vertices as {meters north, meters east} of the museum's corner
+     */
+    private static String museum(double[][] vertices) {
+        double[] lats = new double[vertices.length];
+        double[] lngs = new double[vertices.length];
+        for (int i = 0; i < vertices.length; i++) {
+            lats[i] = MUSEUM_LAT + vertices[i][0] / METERS_PER_DEGREE;
+            lngs[i] = MUSEUM_LNG + vertices[i][1] /
+                    (METERS_PER_DEGREE * Math.cos(Math.toRadians(MUSEUM_LAT)));
+        }
+        return PlacePolygon.encode(lats, lngs);
+    }
+}